@@ -113,6 +113,14 @@ import java.util.LinkedList;
 
 
 
+    /**
+     * The decorated parser chain returned by {@link #getParser()}. The decorators hold no crawl specific state - everything lives in the ParseContext - thus the chain
+     * is created once and shared by all crawls and threads using this Leech object
+     */
+    protected volatile Parser m_parserChain;
+
+
+
     public Leech()
     {
         super(LeechConfig.getDefaultLeechConfig());
@@ -229,10 +237,24 @@ import java.util.LinkedList;
 
 
 
+    /**
+     * Gets the parser chain Leech crawls with, i.e. the parser of the configuration decorated with an {@link IncrementalCrawlingParser} and an
+     * {@link URLFilteringParser}. The chain will be created at the first invocation, subsequent invocations return the same, thread safe object.
+     *
+     * @return the decorated parser
+     */
     @Override
     public Parser getParser()
     {
-        return new URLFilteringParser(new IncrementalCrawlingParser(super.getParser()));
+        Parser parserChain = m_parserChain;
+        if(parserChain != null) return parserChain;
+
+        synchronized (this)
+        {
+            if(m_parserChain == null) m_parserChain = new URLFilteringParser(new IncrementalCrawlingParser(super.getParser(), this));
+
+            return m_parserChain;
+        }
     }
 
 
@@ -5,6 +5,7 @@ package de.dfki.km.leech;
 import de.dfki.km.leech.config.CrawlerContext;
 import de.dfki.km.leech.parser.incremental.IncrementalCrawlingHistory;
 import de.dfki.km.leech.parser.incremental.IncrementalCrawlingParser;
+import de.dfki.km.leech.util.ScalableBloomFilter;
 import de.dfki.km.leech.util.TikaUtils;
 import org.apache.tika.metadata.Metadata;
 import org.apache.tika.parser.ParseContext;
@@ -98,7 +99,7 @@ public class SubDataEntityContentHandler extends XHTMLContentHandler
 
 
                 // the entity will be processed in the case the crawlingHistory is null
-                boolean bProcessEntity = IncrementalCrawlingParser.performHistoryStuff(crawlingHistory, m_metadata);
+                boolean bProcessEntity = IncrementalCrawlingParser.performHistoryStuff(crawlingHistory, context4history.get(ScalableBloomFilter.class), m_metadata);
 
                 if(bProcessEntity)
                 {
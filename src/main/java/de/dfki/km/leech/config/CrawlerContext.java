@@ -23,9 +23,16 @@ package de.dfki.km.leech.config;
 
 
 
+import de.dfki.km.leech.io.HttpClientTransport;
+import de.dfki.km.leech.io.HttpTransport;
+import de.dfki.km.leech.io.RobotsTxtCache;
+import de.dfki.km.leech.io.URLConnectionHttpTransport;
 import de.dfki.km.leech.parser.filter.URLFilter;
 import de.dfki.km.leech.parser.incremental.IncrementalCrawlingHistory;
+import de.dfki.km.leech.sax.DataSinkContentHandler;
 import de.dfki.km.leech.util.CookieManager;
+import de.dfki.km.leech.util.HeapPressureGcPolicy;
+import de.dfki.km.leech.util.ScalableBloomFilter;
 import org.apache.tika.parser.ParseContext;
 import org.slf4j.LoggerFactory;
 import org.xml.sax.ContentHandler;
@@ -62,16 +69,44 @@ public class CrawlerContext
 
     protected Boolean m_bDetectCycles = true;
 
+    protected Boolean m_bDetectCyclesInMemory = false;
+
     protected Boolean m_bInterruptIfException = false;
 
+    protected Boolean m_bObeyRobotsTxt = false;
+
     protected Boolean m_bStopRequested = false;
 
+    protected Boolean m_bUseConditionalGet = false;
+
+    protected Boolean m_bUseVirtualThreads = false;
+
     protected Boolean m_bVerbose = false;
 
     protected ContentHandler m_contentHandler;
 
     protected int m_crawlingDepth = Integer.MAX_VALUE;
 
+    protected double m_dCycleDetectionFalsePositiveProbability = 1E-6;
+
+    protected long m_lCycleDetectionExpectedEntityCount = 100000;
+
+    protected int m_iHttpConnectTimeout = 20000;
+
+    protected int m_iHttpReadTimeout = 20000;
+
+    protected HttpTransport m_httpTransport = new URLConnectionHttpTransport();
+
+    protected int m_iMaxInMemorySpoolSize = 1024 * 1024;
+
+    protected int m_iParallelism = 1;
+
+    protected long m_lRobotsTxtTimeToLive = 24 * 60 * 60 * 1000;
+
+    protected RobotsTxtCache m_robotsTxtCache = new RobotsTxtCache();
+
+    protected HeapPressureGcPolicy m_heapPressureGcPolicy;
+
     protected IncrementalCrawlingHistory m_incrementalCrawlingHistory;
 
     protected String m_strContentHandlerClassName;;
@@ -152,6 +187,32 @@ public class CrawlerContext
 
 
 
+    /**
+     * Gets the expected number of data entities of a crawl, as hint for the initial size of the in-memory cycle detection (see {@link #setDetectCyclesInMemory(Boolean)}).
+     * The default is 100000.
+     *
+     * @return the expected number of data entities of a crawl
+     */
+    public long getCycleDetectionExpectedEntityCount()
+    {
+        return m_lCycleDetectionExpectedEntityCount;
+    }
+
+
+
+    /**
+     * Gets the maximum probability that the in-memory cycle detection (see {@link #setDetectCyclesInMemory(Boolean)}) considers a data entity as processed during this
+     * crawl, although it was not. The default is 1E-6.
+     *
+     * @return the false positive probability of the in-memory cycle detection
+     */
+    public double getCycleDetectionFalsePositiveProbability()
+    {
+        return m_dCycleDetectionFalsePositiveProbability;
+    }
+
+
+
     /**
      * Gets whether the crawlers should detect cycles during the crawl or not. Cycle detection might be not necessary e.g. when you crawl a file
      * system directory without following symbolic links. Nevertheless you could run into a hard link cycle. Cycle detection is important when you
@@ -171,13 +232,26 @@ public class CrawlerContext
 
 
 
+    /**
+     * Gets whether the cycle detection remembers the processed data entities of a crawl in memory, with a {@link ScalableBloomFilter}, instead of a temporary incremental
+     * crawling history on disk. Only considered in the case cycle detection is enabled and no incremental crawling history is specified. The default is false.
+     *
+     * @return true in the case cycles will be detected in memory, false otherwise
+     */
+    public Boolean getDetectCyclesInMemory()
+    {
+        return m_bDetectCyclesInMemory;
+    }
+
+
+
     /**
      * Gets an IncrementalCrawlingHistory Object for the configured IncrementalCrawlingHistoryPath. At first invocation, the history Object will be
      * created.
      * 
      * @return the IncrementalCrawlingHistory Object for the configured IncrementalCrawlingHistoryPath, null in the case no path is configured.
      */
-    public IncrementalCrawlingHistory getIncrementalCrawlingHistory()
+    synchronized public IncrementalCrawlingHistory getIncrementalCrawlingHistory()
     {
         if(m_strIncrementalCrawlingHistoryPath == null) return null;
 
@@ -230,6 +304,141 @@ public class CrawlerContext
 
 
 
+    /**
+     * Gets the timeout for establishing http connections. The default is 20 seconds.
+     *
+     * @return the connect timeout in milliseconds
+     */
+    public int getHttpConnectTimeout()
+    {
+        return m_iHttpConnectTimeout;
+    }
+
+
+
+    /**
+     * Gets the timeout for reading from http connections. The default is 20 seconds.
+     *
+     * @return the read timeout in milliseconds
+     */
+    public int getHttpReadTimeout()
+    {
+        return m_iHttpReadTimeout;
+    }
+
+
+
+    /**
+     * Gets the transport used for all http and https requests. The default is a {@link URLConnectionHttpTransport}.
+     *
+     * @return the http transport
+     */
+    public HttpTransport getHttpTransport()
+    {
+        return m_httpTransport;
+    }
+
+
+
+    /**
+     * Gets the policy that decides whether Leech triggers a garbage collection during the crawl. The default is null, which means that Leech never triggers a gc
+     * by itself.
+     *
+     * @return the policy that decides whether Leech triggers a garbage collection during the crawl. Also offers metrics about how often this happened. Can be null
+     */
+    public HeapPressureGcPolicy getHeapPressureGcPolicy()
+    {
+        return m_heapPressureGcPolicy;
+    }
+
+
+
+    /**
+     * Gets the maximum size of a container data entity (e.g. an html page) that will be buffered in memory instead of a temporary file, in the case a crawling
+     * parser has to read the container content twice. The default is 1 MB.
+     *
+     * @return the maximum size in bytes of a container content that will be buffered in memory
+     */
+    public int getMaxInMemorySpoolSize()
+    {
+        return m_iMaxInMemorySpoolSize;
+    }
+
+
+
+    /**
+     * Gets the number of sub data entities that will be processed in parallel by a crawling parser. The default is 1, which means that all sub entities will be
+     * processed one after another inside the calling thread.
+     *
+     * @return the number of sub data entities that will be processed in parallel
+     */
+    public int getParallelism()
+    {
+        return m_iParallelism;
+    }
+
+
+
+    /**
+     * Gets whether the robots.txt files of the crawled web hosts will be obeyed. The default is false.
+     *
+     * @return true in the case the robots.txt files will be obeyed, false otherwise
+     */
+    public Boolean getObeyRobotsTxt()
+    {
+        return m_bObeyRobotsTxt;
+    }
+
+
+
+    /**
+     * Gets the cache for the robots.txt files of the crawled web hosts
+     *
+     * @return the cache for the robots.txt files
+     */
+    public RobotsTxtCache getRobotsTxtCache()
+    {
+        return m_robotsTxtCache;
+    }
+
+
+
+    /**
+     * Gets how long the rules of a robots.txt file will be cached before the file will be fetched again, in milliseconds. The default is 24 hours.
+     *
+     * @return the time to live for cached robots.txt files, in milliseconds
+     */
+    public long getRobotsTxtTimeToLive()
+    {
+        return m_lRobotsTxtTimeToLive;
+    }
+
+
+
+    /**
+     * Gets whether http resources will be fetched with a single conditional GET request, instead of a HEAD request followed by a GET request. The default is false.
+     *
+     * @return true in the case a single conditional GET request will be used, false otherwise
+     */
+    public Boolean getUseConditionalGet()
+    {
+        return m_bUseConditionalGet;
+    }
+
+
+
+    /**
+     * Gets whether the sub data entities of a parallel crawl will be processed inside virtual threads or inside pooled platform threads. The default is false.
+     *
+     * @return true in the case virtual threads will be used (if supported by the JVM), false otherwise
+     */
+    public Boolean getUseVirtualThreads()
+    {
+        return m_bUseVirtualThreads;
+    }
+
+
+
     /**
      * Gets whether the crawling process is verbose or not
      * 
@@ -345,11 +554,50 @@ public class CrawlerContext
 
 
 
+    /**
+     * Sets the expected number of data entities of a crawl, as hint for the initial size of the in-memory cycle detection (see {@link #setDetectCyclesInMemory(Boolean)}).
+     * A crawl can have more entities - the memory consumption simply grows in steps then. The default is 100000.
+     *
+     * @param lCycleDetectionExpectedEntityCount the expected number of data entities of a crawl
+     *
+     * @return this with the new entry. For convenience.
+     */
+    public CrawlerContext setCycleDetectionExpectedEntityCount(long lCycleDetectionExpectedEntityCount)
+    {
+        m_lCycleDetectionExpectedEntityCount = Math.max(lCycleDetectionExpectedEntityCount, 1);
+
+        return this;
+    }
+
+
+
+    /**
+     * Sets the maximum probability that the in-memory cycle detection (see {@link #setDetectCyclesInMemory(Boolean)}) considers a data entity as processed during this
+     * crawl, although it was not - such an entity will be skipped. Smaller values need more memory, about 0.6 bytes per entity for each factor of 10. The default is
+     * 1E-6.
+     *
+     * @param dCycleDetectionFalsePositiveProbability the false positive probability, between 0 and 1 (exclusive)
+     *
+     * @return this with the new entry. For convenience.
+     */
+    public CrawlerContext setCycleDetectionFalsePositiveProbability(double dCycleDetectionFalsePositiveProbability)
+    {
+        if(dCycleDetectionFalsePositiveProbability <= 0 || dCycleDetectionFalsePositiveProbability >= 1)
+            throw new IllegalArgumentException("the false positive probability must be between 0 and 1: " + dCycleDetectionFalsePositiveProbability);
+
+        m_dCycleDetectionFalsePositiveProbability = dCycleDetectionFalsePositiveProbability;
+
+        return this;
+    }
+
+
+
     /**
      * Sets whether the crawlers should detect cycles during the crawl or not. Cycle detection might be not necessary e.g. when you crawl a file
      * system directory without following symbolic links. Nevertheless you could run into a hard link cycle. Cycle detection is important when you
      * e.g. crawl websites, where links easily can result into cyclic structures. If cycle detection is enabled, Leech simply enables a temporar
-     * incremental crawling history for this crawl, that will be removed after the crawl. This also means that when you index incrementally by
+     * incremental crawling history for this crawl, that will be removed after the crawl (or remembers the processed entities in memory, see
+     * {@link #setDetectCyclesInMemory(Boolean)}). This also means that when you index incrementally by
      * specifying an incremental crawling history, cycle detection is given anyway - no further history will be created by enabling cycle detection
      * with this method. The default is the enabled cycle detection.
      * 
@@ -363,6 +611,25 @@ public class CrawlerContext
 
 
 
+    /**
+     * Sets whether the cycle detection remembers the processed data entities of a crawl in memory, with a {@link ScalableBloomFilter}, instead of a temporary incremental
+     * crawling history on disk. This needs only a few bytes per entity and no disk access, but with a small probability (see
+     * {@link #setCycleDetectionFalsePositiveProbability(double)}) an entity is considered as processed although it was not, and will be skipped. Only considered in
+     * the case cycle detection is enabled and no incremental crawling history is specified. The default is false.
+     *
+     * @param bDetectCyclesInMemory true in the case cycles should be detected in memory, false for the exact detection with a temporary history
+     *
+     * @return this with the new entry. For convenience.
+     */
+    public CrawlerContext setDetectCyclesInMemory(Boolean bDetectCyclesInMemory)
+    {
+        m_bDetectCyclesInMemory = bDetectCyclesInMemory;
+
+        return this;
+    }
+
+
+
     /**
      * Sets a path to the incremental crawling history. In the case a path is specified, the crawlers will use incremental parsing, which means that
      * they check whether a data entity is new, modified or deleted. Time consuming extraction will only performed in the new- and modified case. A
@@ -428,6 +695,209 @@ public class CrawlerContext
 
 
 
+    /**
+     * Sets the timeout for establishing http connections. The default is 20 seconds.
+     *
+     * @param iHttpConnectTimeout the connect timeout in milliseconds. 0 means infinite
+     *
+     * @return this with the new entry. For convenience.
+     */
+    public CrawlerContext setHttpConnectTimeout(int iHttpConnectTimeout)
+    {
+        m_iHttpConnectTimeout = Math.max(iHttpConnectTimeout, 0);
+
+        return this;
+    }
+
+
+
+    /**
+     * Sets the timeout for reading from http connections. The default is 20 seconds.
+     *
+     * @param iHttpReadTimeout the read timeout in milliseconds. 0 means infinite
+     *
+     * @return this with the new entry. For convenience.
+     */
+    public CrawlerContext setHttpReadTimeout(int iHttpReadTimeout)
+    {
+        m_iHttpReadTimeout = Math.max(iHttpReadTimeout, 0);
+
+        return this;
+    }
+
+
+
+    /**
+     * Sets the transport used for all http and https requests. The default is a {@link URLConnectionHttpTransport}, based on the JDK HttpURLConnection. For crawls
+     * with many requests to the same hosts, a {@link HttpClientTransport} reuses connections and speaks HTTP/2. The transport will be shared by all threads of a
+     * crawl.
+     *
+     * @param httpTransport the http transport
+     *
+     * @return this with the new entry. For convenience.
+     */
+    public CrawlerContext setHttpTransport(HttpTransport httpTransport)
+    {
+        m_httpTransport = httpTransport == null ? new URLConnectionHttpTransport() : httpTransport;
+
+        return this;
+    }
+
+
+
+    /**
+     * Sets a policy that triggers a garbage collection during the crawl, in the case the heap occupancy exceeds a threshold. This is opt-in - by default, Leech
+     * never triggers a gc by itself and leaves the memory management to the JVM.<br>
+     * <code>
+     * crawlerContext.setHeapPressureGcPolicy(new HeapPressureGcPolicy(0.9));
+     * </code>
+     *
+     * @param heapPressureGcPolicy the policy, or null in the case Leech should never trigger a gc
+     *
+     * @return this with the new entry. For convenience.
+     */
+    public CrawlerContext setHeapPressureGcPolicy(HeapPressureGcPolicy heapPressureGcPolicy)
+    {
+        m_heapPressureGcPolicy = heapPressureGcPolicy;
+
+        return this;
+    }
+
+
+
+    /**
+     * Sets the maximum size of a container data entity (e.g. an html page) that will be buffered in memory instead of a temporary file, in the case a crawling
+     * parser has to read the container content twice (once for processing the content of the container itself, once for extracting the sub entities, e.g. the
+     * links). Bigger containers will be spooled to a temporary file. Containers that are already files will never be copied. Keep in mind that with parallel
+     * crawling, up to 'parallelism' buffers can exist at the same time. The default is 1 MB.
+     *
+     * @param iMaxInMemorySpoolSize the maximum size in bytes of a container content that will be buffered in memory. 0 means that the content will always be
+     *            spooled to a temporary file
+     *
+     * @return this with the new entry. For convenience.
+     */
+    public CrawlerContext setMaxInMemorySpoolSize(int iMaxInMemorySpoolSize)
+    {
+        m_iMaxInMemorySpoolSize = Math.max(iMaxInMemorySpoolSize, 0);
+
+        return this;
+    }
+
+
+
+    /**
+     * Sets the number of sub data entities that will be processed in parallel by a crawling parser. With a value greater than 1, the sub entities delivered by a
+     * crawling parser (e.g. the files inside a directory) will be dispatched to a bounded pool of worker threads. The enumeration of the sub entities waits in the case
+     * all workers are busy, thus memory consumption stays bounded also for huge data sources. Note that the handler used for the crawl has to cope with this: in the
+     * case a single {@link DataSinkContentHandler} is set, all process..() invocations on it will be serialized by Leech, thus the implementation must not be thread
+     * safe, but should return quickly. In the case a content handler class name is set, each entity gets an own handler instance anyway. Other, plain ContentHandler
+     * objects can not be shared between threads - in this case Leech falls back to sequential processing.<br>
+     * The default is 1, which means that all sub entities will be processed one after another inside the calling thread.
+     *
+     * @param iParallelism the number of sub data entities that will be processed in parallel. Values smaller than 1 will be treated as 1.
+     *
+     * @return this with the new entry. For convenience.
+     */
+    public CrawlerContext setParallelism(int iParallelism)
+    {
+        m_iParallelism = Math.max(iParallelism, 1);
+
+        return this;
+    }
+
+
+
+    /**
+     * Sets whether the robots.txt files of the crawled web hosts will be obeyed. In this case, links that are disallowed for the user agent of the crawler (see
+     * {@link #setUserAgent(String)}) will not be followed, and the Crawl-delay of a host will be considered as minimum delay between two requests to this host (by
+     * the crawl frontier of the html crawler). The rules are also checked for the start url and each redirect target. In the case the robots.txt file of a host is
+     * unreachable, fetching its urls fails for a few minutes.<br>
+     * The default is false, thus fetching single urls (e.g. with Leech.parse(URL)) doesn't request any robots.txt file. Enable it for recursive web crawls.
+     *
+     * @param bObeyRobotsTxt true in the case the robots.txt files should be obeyed, false otherwise
+     *
+     * @return this with the new entry. For convenience.
+     */
+    public CrawlerContext setObeyRobotsTxt(Boolean bObeyRobotsTxt)
+    {
+        m_bObeyRobotsTxt = bObeyRobotsTxt;
+
+        return this;
+    }
+
+
+
+    /**
+     * Sets the cache for the robots.txt files of the crawled web hosts. You can share a cache between several crawls, e.g. for crawls of different sites with common
+     * hosts. A null value resets to a new, empty cache.
+     *
+     * @param robotsTxtCache the cache for the robots.txt files
+     *
+     * @return this with the new entry. For convenience.
+     */
+    public CrawlerContext setRobotsTxtCache(RobotsTxtCache robotsTxtCache)
+    {
+        m_robotsTxtCache = robotsTxtCache == null ? new RobotsTxtCache() : robotsTxtCache;
+
+        return this;
+    }
+
+
+
+    /**
+     * Sets how long the rules of a robots.txt file will be cached before the file will be fetched again, in milliseconds. In the case the crawl has an incremental
+     * crawling history, the files are stored there too, and are valid for the same time span. The default is 24 hours.
+     *
+     * @param lRobotsTxtTimeToLive the time to live for cached robots.txt files, in milliseconds
+     *
+     * @return this with the new entry. For convenience.
+     */
+    public CrawlerContext setRobotsTxtTimeToLive(long lRobotsTxtTimeToLive)
+    {
+        m_lRobotsTxtTimeToLive = Math.max(lRobotsTxtTimeToLive, 0);
+
+        return this;
+    }
+
+
+
+    /**
+     * Sets whether http resources will be fetched with a single conditional GET request (If-Modified-Since), instead of a HEAD request for the metadata followed by
+     * a GET request for the content. The response of the conditional GET fills the metadata and feeds the parser - thus each new or modified page costs only one
+     * round trip and one server hit. A '304 Not Modified' response marks the resource as unmodified. The default is false.
+     *
+     * @param bUseConditionalGet true in the case a single conditional GET request should be used, false otherwise
+     *
+     * @return this with the new entry. For convenience.
+     */
+    public CrawlerContext setUseConditionalGet(Boolean bUseConditionalGet)
+    {
+        m_bUseConditionalGet = bUseConditionalGet;
+
+        return this;
+    }
+
+
+
+    /**
+     * Sets whether the sub data entities of a parallel crawl (see {@link #setParallelism(int)}) will be processed inside virtual threads or inside pooled platform
+     * threads. Each sub entity fetch and parse will get its own virtual thread in this case. This is for I/O bound crawls, e.g. of web sites or IMAP servers, where
+     * the crawler spends most of the time waiting for the network. Together with a high parallelism (e.g. 1000) you can keep many fetches in flight without having
+     * as many OS threads. Virtual threads need Java 21 or newer at runtime - on older JVMs, Leech falls back to platform threads. The default is false.
+     *
+     * @param bUseVirtualThreads true in the case virtual threads should be used, false otherwise
+     *
+     * @return this with the new entry. For convenience.
+     */
+    public CrawlerContext setUseVirtualThreads(Boolean bUseVirtualThreads)
+    {
+        m_bUseVirtualThreads = bUseVirtualThreads;
+
+        return this;
+    }
+
+
+
     /**
      * Sets the crawling process to verbose. Some messages as skipped entities will be shown additionally
      * 
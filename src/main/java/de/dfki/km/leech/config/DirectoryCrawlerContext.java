@@ -25,6 +25,8 @@ package de.dfki.km.leech.config;
 
 import de.dfki.km.leech.parser.DirectoryCrawlerParser;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 
 
 /**
@@ -50,6 +52,14 @@ public class DirectoryCrawlerContext
 
     protected boolean m_ignoreHiddenFiles = true;
 
+    protected final AtomicInteger m_iListingQueueDepth = new AtomicInteger();
+
+    protected int m_iListingQueueSize = 512;
+
+    protected final AtomicInteger m_iMaxListingQueueDepth = new AtomicInteger();
+
+    protected boolean m_useContentHashFingerprints = false;
+
 
 
 
@@ -77,6 +87,68 @@ public class DirectoryCrawlerContext
 
 
 
+    /**
+     * Gets the number of directory entries that are listed, but not yet processed, summed over all directories that are currently crawled. This is a metric for
+     * how far the listing runs ahead of the processing.
+     *
+     * @return the number of directory entries that are listed, but not yet processed
+     */
+    public int getListingQueueDepth()
+    {
+        return m_iListingQueueDepth.get();
+    }
+
+
+
+    /**
+     * Gets the maximum number of directory entries the listing of a single directory can run ahead of the processing. The default is 512.
+     *
+     * @return the maximum number of directory entries the listing of a single directory can run ahead of the processing
+     */
+    public int getListingQueueSize()
+    {
+        return m_iListingQueueSize;
+    }
+
+
+
+    /**
+     * Gets the maximum of {@link #getListingQueueDepth()} since the creation of this context
+     *
+     * @return the maximum listing queue depth since the creation of this context
+     */
+    public int getMaxListingQueueDepth()
+    {
+        return m_iMaxListingQueueDepth.get();
+    }
+
+
+
+    /**
+     * Gets whether the content fingerprints of files are based on a content hash or on the modified date only. The default is false.
+     *
+     * @return true: the fingerprints are based on size, modified date and a content hash, false: the fingerprints are the modified date
+     */
+    public boolean getUseContentHashFingerprints()
+    {
+        return m_useContentHashFingerprints;
+    }
+
+
+
+    /**
+     * Will be invoked by the {@link DirectoryCrawlerParser} each time a directory entry is listed or taken for processing
+     *
+     * @param iDelta the change of the queue depth
+     */
+    public void listingQueueDepthChanged(int iDelta)
+    {
+        int iDepth = m_iListingQueueDepth.addAndGet(iDelta);
+        if(iDelta > 0) m_iMaxListingQueueDepth.accumulateAndGet(iDepth, Math::max);
+    }
+
+
+
     /**
      * Specifies whether the crawler should follow symbolic links or not. The default is false.
      * 
@@ -107,4 +179,43 @@ public class DirectoryCrawlerContext
         return this;
     }
 
+
+
+    /**
+     * Specifies whether the content fingerprints of files, which decide during an incremental crawl whether a file has to be processed again, are based on a content
+     * hash or on the modified date only. With the modified date only, a touched file, a restored backup or an rsync without '-t' leads to processing all these files
+     * again. With content hashes, size and modified date are checked first - only in the case they differ from the last crawl, the file will be read and its
+     * SHA-256 hash compared. Files with the same content stay unmodified. Note that switching this option makes all files modified once, and that it only makes
+     * sense with a persistent crawling history (see {@link CrawlerContext#setIncrementalCrawlingHistoryPath(String)}). The default is false.
+     *
+     * @param useContentHashFingerprints true: the fingerprints are based on size, modified date and a content hash, false: the fingerprints are the modified date
+     *
+     * @return this for convenience
+     */
+    public DirectoryCrawlerContext setUseContentHashFingerprints(boolean useContentHashFingerprints)
+    {
+        m_useContentHashFingerprints = useContentHashFingerprints;
+
+        return this;
+    }
+
+
+
+    /**
+     * Specifies the maximum number of directory entries the listing of a single directory can run ahead of the processing. The listing runs in an own thread - a
+     * bigger value hides the metadata latency of slow (e.g. network) file systems, 1 means that listing and processing work one after another. Each directory that
+     * is currently crawled (i.e. each recursion level) has its own buffer. The default is 512.
+     *
+     * @param iListingQueueSize the maximum number of directory entries the listing of a single directory can run ahead of the processing. Values smaller than 1
+     *            will be treated as 1.
+     *
+     * @return this for convenience
+     */
+    public DirectoryCrawlerContext setListingQueueSize(int iListingQueueSize)
+    {
+        m_iListingQueueSize = Math.max(iListingQueueSize, 1);
+
+        return this;
+    }
+
 }
@@ -24,6 +24,7 @@ package de.dfki.km.leech.config;
 
 
 import de.dfki.km.leech.parser.HtmlCrawlerParser;
+import de.dfki.km.leech.util.CrawlFrontier;
 
 
 
@@ -49,6 +50,10 @@ public class HtmlCrawlerContext
 
     protected boolean m_followRemoteLinksIfLocalFileCrawl = false;
 
+    protected long m_lMinDelayPerHost = 0;
+
+    protected boolean m_bUseFrontier = true;
+
 
 
     /**
@@ -64,6 +69,32 @@ public class HtmlCrawlerContext
 
 
 
+    /**
+     * Gets the minimum delay between the starts of two requests to the same host, in milliseconds. Only considered in the case the crawl frontier is used. The
+     * default is 0, i.e. no delay.
+     *
+     * @return the minimum delay between two requests to the same host, in milliseconds
+     */
+    public long getMinDelayPerHost()
+    {
+        return m_lMinDelayPerHost;
+    }
+
+
+
+    /**
+     * Gets whether the links will be crawled with a crawl frontier, i.e. breadth first with per-host queues, or depth first by following each link immediately. The
+     * default is true.
+     *
+     * @return true in the case the links will be crawled with a crawl frontier, false otherwise
+     */
+    public boolean getUseFrontier()
+    {
+        return m_bUseFrontier;
+    }
+
+
+
     /**
      * Sets whether or not remote links should be followed if the html crawlerParser crawls a file on the local file system. Remote links are links
      * with an URL protocoll different from 'file:'. The default is false.
@@ -81,6 +112,37 @@ public class HtmlCrawlerContext
 
 
 
+    /**
+     * Sets the minimum delay between the starts of two requests to the same host, in milliseconds. With a delay, there is at most one request to a host at a time,
+     * requests to different hosts still run in parallel (see {@link CrawlerContext#setParallelism(int)}). Only considered in the case the crawl frontier is used. The
+     * default is 0, i.e. no delay.
+     *
+     * @param lMinDelayPerHost the minimum delay between two requests to the same host, in milliseconds
+     *
+     * @return this for convinience
+     */
+    public HtmlCrawlerContext setMinDelayPerHost(long lMinDelayPerHost)
+    {
+        m_lMinDelayPerHost = Math.max(lMinDelayPerHost, 0);
+
+        return this;
+    }
+
 
 
+    /**
+     * Sets whether the links will be crawled with a crawl frontier ({@link CrawlFrontier}), i.e. breadth first with per-host queues, or depth first by following each
+     * link immediately. The default is true.
+     *
+     * @param bUseFrontier true in the case the links should be crawled with a crawl frontier, false otherwise
+     *
+     * @return this for convinience
+     */
+    public HtmlCrawlerContext setUseFrontier(boolean bUseFrontier)
+    {
+        m_bUseFrontier = bUseFrontier;
+
+        return this;
+    }
+
 }
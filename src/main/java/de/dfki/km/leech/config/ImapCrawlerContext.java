@@ -23,6 +23,14 @@ package de.dfki.km.leech.config;
 
 
 
+import de.dfki.km.leech.io.ImapConnectionPool;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+
 
 
 
@@ -32,18 +40,82 @@ public class ImapCrawlerContext
 
 
 
+    protected ImapConnectionPool m_connectionPool = ImapConnectionPool.getDefaultPool();
+
+    protected int m_iConnectionTimeout = -1;
+
+    protected int m_iFetchPageSize = 500;
+
+    protected int m_iFetchSize = 256 * 1024;
+
     protected boolean m_ignoreSSLCertificates = true;
 
+    protected int m_iMaxConnectionsPerAccount = 8;
+
+    protected boolean m_bPartialFetch = true;
+
     protected String m_password;
 
+    protected HashMap<String, String> m_hsSessionProperties = new HashMap<>();
+
     protected String m_sslCertificateFilePassword;
 
     protected String m_sslCertificateFilePath;
 
+    protected int m_iTimeout = -1;
+
     protected String m_userName;
 
 
 
+    /**
+     * Gets the pool with the connections to the imap servers. By default, this is the pool shared by all crawls ({@link ImapConnectionPool#getDefaultPool()})
+     * 
+     * @return the pool with the connections to the imap servers
+     */
+    public ImapConnectionPool getConnectionPool()
+    {
+        return m_connectionPool;
+    }
+
+
+
+    /**
+     * Gets the timeout for establishing a connection to the imap server
+     * 
+     * @return the connection timeout in milliseconds. -1 (the default) means no timeout
+     */
+    public int getConnectionTimeout()
+    {
+        return m_iConnectionTimeout;
+    }
+
+
+
+    /**
+     * Gets the number of messages whose data will be fetched from the server with a single FETCH command during crawling
+     * 
+     * @return the number of messages per FETCH command. Default is 500
+     */
+    public int getFetchPageSize()
+    {
+        return m_iFetchPageSize;
+    }
+
+
+
+    /**
+     * Gets the number of bytes of a message body that will be fetched with a single FETCH command in the case of partial fetching (see {@link #getPartialFetch()})
+     * 
+     * @return the number of bytes per FETCH command. Default is 256 KB
+     */
+    public int getFetchSize()
+    {
+        return m_iFetchSize;
+    }
+
+
+
     /**
      * Gets whether the SSL certificates should be ignored for connection or not
      * 
@@ -56,6 +128,30 @@ public class ImapCrawlerContext
 
 
 
+    /**
+     * Gets the maximum number of connections that will be opened to the imap server for a single account
+     * 
+     * @return the maximum number of connections per account. Default is 8
+     */
+    public int getMaxConnectionsPerAccount()
+    {
+        return m_iMaxConnectionsPerAccount;
+    }
+
+
+
+    /**
+     * Gets whether the message bodies will be fetched in chunks of {@link #getFetchSize()} bytes, or each as a whole
+     * 
+     * @return true in the case of partial fetching (this is the default), false otherwise
+     */
+    public boolean getPartialFetch()
+    {
+        return m_bPartialFetch;
+    }
+
+
+
     /**
      * Gets the password for connecting the imap server
      * 
@@ -68,6 +164,33 @@ public class ImapCrawlerContext
 
 
 
+    /**
+     * Gets the additional properties for the mail session of a crawl, as set with {@link #setSessionProperty(String, String)}
+     * 
+     * @return the additional session properties. The map is the internal one
+     */
+    public Map<String, String> getSessionProperties()
+    {
+        return m_hsSessionProperties;
+    }
+
+
+
+    /**
+     * Gets a signature of all settings that go into the mail session of a crawl: fetch size, partial fetching, timeouts, SSL settings and the additional session
+     * properties. The connection pool shares stores only between crawls with the same signature, thus a crawl never works with a session configured by another one
+     * 
+     * @return the signature of the session settings
+     */
+    public String getSessionSignature()
+    {
+        return "fetchsize=" + m_iFetchSize + " partialfetch=" + m_bPartialFetch + " connectiontimeout=" + m_iConnectionTimeout + " timeout=" + m_iTimeout
+                + " ignoressl=" + m_ignoreSSLCertificates + " truststore=" + m_sslCertificateFilePath + ":" + m_sslCertificateFilePassword + " properties="
+                + new TreeMap<>(m_hsSessionProperties);
+    }
+
+
+
     /**
      * Returns the Keyphrase for the SSL keyfile
      * 
@@ -93,6 +216,18 @@ public class ImapCrawlerContext
 
 
 
+    /**
+     * Gets the timeout for reading from the imap server
+     * 
+     * @return the read timeout in milliseconds. -1 (the default) means no timeout
+     */
+    public int getTimeout()
+    {
+        return m_iTimeout;
+    }
+
+
+
     /**
      * Gets the username for connecting the imap server
      * 
@@ -109,6 +244,75 @@ public class ImapCrawlerContext
 
 
 
+    /**
+     * Sets the pool with the connections to the imap servers. The connections (logged in stores and opened folders) will be reused for all messages and crawls with
+     * the same pool. By default, this is the pool shared by all crawls ({@link ImapConnectionPool#getDefaultPool()})
+     * 
+     * @param connectionPool the pool with the connections to the imap servers. null for the default pool
+     * 
+     * @return this for convenience
+     */
+    public ImapCrawlerContext setConnectionPool(ImapConnectionPool connectionPool)
+    {
+        m_connectionPool = connectionPool == null ? ImapConnectionPool.getDefaultPool() : connectionPool;
+
+        return this;
+    }
+
+
+
+    /**
+     * Sets the timeout for establishing a connection to the imap server ('mail.imap.connectiontimeout')
+     * 
+     * @param iConnectionTimeout the connection timeout in milliseconds. -1 (the default) means no timeout
+     * 
+     * @return this for convenience
+     */
+    public ImapCrawlerContext setConnectionTimeout(int iConnectionTimeout)
+    {
+        m_iConnectionTimeout = iConnectionTimeout;
+
+        return this;
+    }
+
+
+
+    /**
+     * Sets the number of messages whose data (UID, flags, Message-ID) will be fetched from the server with a single FETCH command during crawling. The messages of a
+     * folder will be crawled page by page, thus this is also the number of messages that are hold in memory at once. Bigger values mean less round trips to the
+     * server.
+     * 
+     * @param iFetchPageSize the number of messages per FETCH command. Default is 500
+     * 
+     * @return this for convenience
+     */
+    public ImapCrawlerContext setFetchPageSize(int iFetchPageSize)
+    {
+        m_iFetchPageSize = iFetchPageSize;
+
+        return this;
+    }
+
+
+
+    /**
+     * Sets the number of bytes of a message body that will be fetched with a single FETCH command in the case of partial fetching ('mail.imap.fetchsize'). Each chunk
+     * needs an own round trip to the server, thus bigger values speed up the download of big messages, e.g. with attachments. On the other hand, each reading thread
+     * buffers a chunk in memory. The default of the mail api is 16 KB, which is slow for messages with attachments of several MB.
+     * 
+     * @param iFetchSize the number of bytes per FETCH command. Default is 256 KB
+     * 
+     * @return this for convenience
+     */
+    public ImapCrawlerContext setFetchSize(int iFetchSize)
+    {
+        m_iFetchSize = iFetchSize;
+
+        return this;
+    }
+
+
+
     /**
      * Sets whether the SSL certificates should be ignored for connection or not
      * 
@@ -129,6 +333,52 @@ public class ImapCrawlerContext
 
 
 
+    /**
+     * Sets the maximum number of connections that will be opened to the imap server for a single account. Mail servers typically limit the number of concurrent
+     * connections per account (or per user and ip), thus this should be below the server limit. One connection is used for listing the folders, each other for a
+     * selected folder.<br>
+     * <br>
+     * In the case of a parallel crawl (see {@link CrawlerContext#setParallelism(int)}), the subfolders and messages will be processed by several
+     * threads. Each thread works with an own connection to the folder of its current entity, whereby the threads share the connections of the account. In the case all
+     * connections are in use, a thread waits until another thread gives its connection back (see {@link ImapConnectionPool#setMaxWaitTime(long)}). Thus, this value
+     * limits the effective parallelism of an imap crawl.
+     * 
+     * @param iMaxConnectionsPerAccount the maximum number of connections per account, at least 2. Default is 8
+     * 
+     * @return this for convenience
+     * 
+     * @throws IllegalArgumentException in the case the value is less than 2
+     */
+    public ImapCrawlerContext setMaxConnectionsPerAccount(int iMaxConnectionsPerAccount)
+    {
+        if(iMaxConnectionsPerAccount < 2)
+            throw new IllegalArgumentException("at least 2 connections per account are needed - one for the store and one for a folder: " + iMaxConnectionsPerAccount);
+
+        m_iMaxConnectionsPerAccount = iMaxConnectionsPerAccount;
+
+        return this;
+    }
+
+
+
+    /**
+     * Sets whether the message bodies will be fetched in chunks of {@link #getFetchSize()} bytes, or each as a whole ('mail.imap.partialfetch'). Without partial
+     * fetching, a message body will be fetched with a single FETCH command and buffered in memory completely. This is the fastest way to download big messages, but
+     * needs memory for the whole message per reading thread. Some servers also have problems with partial fetching.
+     * 
+     * @param bPartialFetch true in the case of partial fetching (this is the default), false for fetching and buffering the message bodies as a whole
+     * 
+     * @return this for convenience
+     */
+    public ImapCrawlerContext setPartialFetch(boolean bPartialFetch)
+    {
+        m_bPartialFetch = bPartialFetch;
+
+        return this;
+    }
+
+
+
     /**
      * Sets the password for connecting the imap server
      * 
@@ -147,6 +397,28 @@ public class ImapCrawlerContext
 
 
 
+    /**
+     * Sets an additional property for the mail session of a crawl, e.g. 'mail.imaps.ssl.protocols'. Each crawl gets an own session, thus crawls with different
+     * settings can run in the same process. Additional properties overwrite the ones derived from this context. Properties that are not set fall back to the system
+     * properties.
+     * 
+     * @param strKey the property name
+     * @param strValue the property value. null removes the property
+     * 
+     * @return this for convenience
+     */
+    public ImapCrawlerContext setSessionProperty(String strKey, String strValue)
+    {
+        if(strValue == null)
+            m_hsSessionProperties.remove(strKey);
+        else
+            m_hsSessionProperties.put(strKey, strValue);
+
+        return this;
+    }
+
+
+
     /**
      * Sets the Keyphrase for the SSL keyfile
      * 
@@ -182,6 +454,22 @@ public class ImapCrawlerContext
 
 
 
+    /**
+     * Sets the timeout for reading from the imap server ('mail.imap.timeout')
+     * 
+     * @param iTimeout the read timeout in milliseconds. -1 (the default) means no timeout
+     * 
+     * @return this for convenience
+     */
+    public ImapCrawlerContext setTimeout(int iTimeout)
+    {
+        m_iTimeout = iTimeout;
+
+        return this;
+    }
+
+
+
     /**
      * Sets the username for connecting the imap server
      * 
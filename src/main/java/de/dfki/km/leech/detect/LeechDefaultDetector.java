@@ -18,6 +18,8 @@ package de.dfki.km.leech.detect;
 
 
 
+import de.dfki.km.leech.metadata.LeechMetadata;
+import de.dfki.km.leech.parser.incremental.IncrementalCrawlingParser;
 import de.dfki.km.leech.util.TikaUtils;
 import org.apache.tika.config.ServiceLoader;
 import org.apache.tika.detect.CompositeDetector;
@@ -33,12 +35,22 @@ import org.apache.tika.parser.Parser;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 
 
 /**
- * A detector implementation that detects everything from the tika DefaultDetector, plus some extra datasource detectors (e.g. for directories)
+ * A detector implementation that detects everything from the tika DefaultDetector, plus some extra datasource detectors (e.g. for directories)<br>
+ * <br>
+ * The detected media type of a data entity will be recorded inside its metadata ({@link LeechMetadata#detectedMediaType}), thus the subsequent detections for the same
+ * entity during a crawl (e.g. by the {@link IncrementalCrawlingParser} and afterwards by the parser) don't check the stream again. Optionally, the results can be
+ * cached by file name extension and the first bytes of the stream (see {@link #setDetectionCacheSize(int)}), which saves the magic byte checks for large amounts of
+ * files of the same type.
  * 
  * @author Christian Reuschling, Dipl.Ing.(BA)
  */
@@ -66,8 +78,24 @@ public class LeechDefaultDetector extends CompositeDetector
 
 
 
+    /**
+     * The container formats the type of which depends on the content behind the first bytes - detection results for these won't be cached
+     */
+    protected static final List<MediaType> CONTAINER_TYPES = List.of(MediaType.APPLICATION_ZIP, MediaType.application("x-tika-msoffice"),
+            MediaType.application("x-tika-ooxml"));
+
+
+
     private CompositeParser m_usedCompoParserFromCrawlConfig = null;
 
+    protected int m_iDetectionCacheSize = 0;
+
+    protected int m_iDetectionCacheBytes = 8 * 1024;
+
+    protected volatile Map<String, MediaType> m_hsDetectionCache;
+
+    protected final List<Detector> m_lDatasourceDetectors = List.of(new DirectoryDatasourceDetector(), new ImapDatasourceDetector());
+
 
 
     protected final MediaTypeRegistry registry;
@@ -126,10 +154,43 @@ public class LeechDefaultDetector extends CompositeDetector
 
     @Override
     public MediaType detect(InputStream input, Metadata metadata) throws IOException
+    {
+        // wurde für diese Entity schon erkannt (z.B. vom IncrementalCrawlingParser), dann nehmen wir das Ergebnis einfach wieder
+        String strEntityKey = getEntityKey(metadata);
+        String strRecordedType = metadata.get(LeechMetadata.detectedMediaType);
+        if(strRecordedType != null && strRecordedType.startsWith(strEntityKey + '\n'))
+        {
+            MediaType recordedType = MediaType.parse(strRecordedType.substring(strEntityKey.length() + 1));
+            if(recordedType != null) return recordedType;
+        }
+
+
+        MediaType detectedType = detectUnrecorded(input, metadata);
+
+        metadata.set(LeechMetadata.detectedMediaType, strEntityKey + '\n' + detectedType);
+
+        return detectedType;
+    }
+
+
+
+    /**
+     * Detects the media type of a data entity, without considering a recorded result
+     *
+     * @param input    the stream of the data entity
+     * @param metadata the metadata of the data entity
+     *
+     * @return the detected media type
+     *
+     * @throws IOException
+     */
+    protected MediaType detectUnrecorded(InputStream input, Metadata metadata) throws IOException
     {
         // wenn in den Metadaten schon eins drin steht, dann werten wir den stream hier nicht nochmal extra aus.
         // wenn wir den media type schon wissen, aber lediglich der EmptyParser damit assoziiert wäre, dann kucken wir trotzdem noch mal nach
         // (magic bytes und so)
+        MediaType detectedType = null;
+
         String strType = metadata.get(Metadata.CONTENT_TYPE);
         if(strType != null)
         {
@@ -139,14 +200,14 @@ public class LeechDefaultDetector extends CompositeDetector
             // wir müssen noch abchecken, ob es nicht noch einen spezialisierteren Parser gibt
             if(registry != null)
             {
-                MediaType detectedType2check = super.detect(input, metadata);
+                detectedType = detectWithCache(input, metadata);
 
-                if((mediaType == null && detectedType2check != null) || registry.isSpecializationOf(detectedType2check.getBaseType(), mediaType.getBaseType()))
+                if((mediaType == null && detectedType != null) || registry.isSpecializationOf(detectedType.getBaseType(), mediaType.getBaseType()))
                 {
                     metadata.remove(Metadata.CONTENT_TYPE);
-                    metadata.set(Metadata.CONTENT_TYPE, detectedType2check.toString());
+                    metadata.set(Metadata.CONTENT_TYPE, detectedType.toString());
 
-                    mediaType = detectedType2check;
+                    mediaType = detectedType;
                 }
             }
 
@@ -157,7 +218,193 @@ public class LeechDefaultDetector extends CompositeDetector
             if(!(parser4Type instanceof EmptyParser)) return mediaType;
         }
 
-        return super.detect(input, metadata);
+        // the stream was checked already in the case of a known content type
+        if(detectedType != null) return detectedType;
+
+        return detectWithCache(input, metadata);
+    }
+
+
+
+    /**
+     * Detects the media type with the underlying detectors, considering the detection cache if enabled.
+     *
+     * @param input    the stream of the data entity
+     * @param metadata the metadata of the data entity
+     *
+     * @return the detected media type
+     *
+     * @throws IOException
+     */
+    protected MediaType detectWithCache(InputStream input, Metadata metadata) throws IOException
+    {
+        Map<String, MediaType> hsDetectionCache = m_hsDetectionCache;
+        if(hsDetectionCache == null || input == null || !input.markSupported()) return super.detect(input, metadata);
+
+
+        // die datasource detectors schauen nur auf die Metadaten (Verzeichnisse, imap folder) - die können wir nicht über die ersten bytes cachen
+        for (Detector datasourceDetector : m_lDatasourceDetectors)
+        {
+            MediaType datasourceType = datasourceDetector.detect(input, metadata);
+            if(!MediaType.OCTET_STREAM.equals(datasourceType)) return datasourceType;
+        }
+
+
+        int iDetectionCacheBytes = m_iDetectionCacheBytes;
+        byte[] firstBytes;
+        input.mark(iDetectionCacheBytes);
+        try
+        {
+            firstBytes = input.readNBytes(iDetectionCacheBytes);
+        }
+        finally
+        {
+            input.reset();
+        }
+
+        String strCacheKey = getNameKey(metadata) + '\n' + metadata.get(Metadata.CONTENT_TYPE) + '\n' + firstBytes.length + ':' + Arrays.hashCode(firstBytes) + ':'
+                + hash64(firstBytes);
+
+        MediaType cachedType = hsDetectionCache.get(strCacheKey);
+        if(cachedType != null) return cachedType;
+
+
+        MediaType detectedType = super.detect(input, metadata);
+
+        boolean bIsContainer = false;
+        for (MediaType containerType : CONTAINER_TYPES)
+            if(containerType.equals(detectedType.getBaseType()) || registry.isSpecializationOf(detectedType.getBaseType(), containerType)) bIsContainer = true;
+
+        if(!bIsContainer) hsDetectionCache.put(strCacheKey, detectedType);
+
+
+        return detectedType;
+    }
+
+
+
+    /**
+     * Gets the number of bytes at the beginning of a stream that are considered for the detection cache key. The default is 8192.
+     *
+     * @return the number of bytes at the beginning of a stream that are part of the detection cache key
+     */
+    public int getDetectionCacheBytes()
+    {
+        return m_iDetectionCacheBytes;
+    }
+
+
+
+    /**
+     * Gets the maximum number of cached detection results. The default is 0, i.e. no cache.
+     *
+     * @return the maximum number of cached detection results
+     */
+    public int getDetectionCacheSize()
+    {
+        return m_iDetectionCacheSize;
+    }
+
+
+
+    /**
+     * Gets the key that identifies the data entity a recorded detection result belongs to
+     *
+     * @param metadata the metadata of the data entity
+     *
+     * @return the source or the resource name of the entity, an empty String if none of them is known
+     */
+    protected String getEntityKey(Metadata metadata)
+    {
+        String strName = metadata.get(Metadata.SOURCE);
+        if(strName == null) strName = metadata.get(LeechMetadata.RESOURCE_NAME_KEY);
+
+        return strName == null ? "" : strName;
+    }
+
+
+
+    /**
+     * Gets the part of the name of a data entity that is relevant for the name based detection, for the detection cache key
+     *
+     * @param metadata the metadata of the data entity
+     *
+     * @return the lower case file name extension, or the whole file name in the case there is no extension (e.g. 'Makefile')
+     */
+    protected String getNameKey(Metadata metadata)
+    {
+        String strName = metadata.get(LeechMetadata.RESOURCE_NAME_KEY);
+        if(strName == null) strName = metadata.get(Metadata.SOURCE);
+        if(strName == null) return "";
+
+        strName = strName.substring(Math.max(strName.lastIndexOf('/'), strName.lastIndexOf('\\')) + 1).toLowerCase(Locale.ROOT);
+
+        int iDotIndex = strName.lastIndexOf('.');
+
+        return iDotIndex < 0 ? strName : strName.substring(iDotIndex);
+    }
+
+
+
+    protected static long hash64(byte[] bytes)
+    {
+        // FNV-1a
+        long lHash = 0xcbf29ce484222325L;
+        for (byte b : bytes)
+        {
+            lHash ^= b & 0xff;
+            lHash *= 0x100000001b3L;
+        }
+
+        return lHash;
+    }
+
+
+
+    /**
+     * Sets the number of bytes at the beginning of a stream that are considered for the detection cache key. Files with the same name extension and the same first bytes
+     * are considered to be of the same type - thus this should cover the magic bytes of the crawled file types. The default is 8192.
+     *
+     * @param iDetectionCacheBytes the number of bytes at the beginning of a stream that are part of the detection cache key
+     *
+     * @return this with the new entry. For convenience.
+     */
+    public LeechDefaultDetector setDetectionCacheBytes(int iDetectionCacheBytes)
+    {
+        m_iDetectionCacheBytes = Math.max(iDetectionCacheBytes, 1);
+
+        return this;
+    }
+
+
+
+    /**
+     * Sets the maximum number of cached detection results. With the cache, files with the same name extension and the same first bytes (see
+     * {@link #setDetectionCacheBytes(int)}) are detected only once, which saves the magic byte checks when crawling e.g. directories with millions of files of the same
+     * type. Container formats as zip or OLE2 will be detected each time, as their type depends on their content. The default is 0, i.e. no cache.
+     *
+     * @param iDetectionCacheSize the maximum number of cached detection results. 0 or less disables the cache
+     *
+     * @return this with the new entry. For convenience.
+     */
+    @SuppressWarnings("serial")
+    public LeechDefaultDetector setDetectionCacheSize(final int iDetectionCacheSize)
+    {
+        m_iDetectionCacheSize = Math.max(iDetectionCacheSize, 0);
+
+        if(m_iDetectionCacheSize == 0)
+            m_hsDetectionCache = null;
+        else
+            m_hsDetectionCache = Collections.synchronizedMap(new LinkedHashMap<String, MediaType>(16, 0.75f, true)
+            {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, MediaType> eldest)
+                {
+                    return size() > iDetectionCacheSize;
+                }
+            });
+
+        return this;
     }
 
 
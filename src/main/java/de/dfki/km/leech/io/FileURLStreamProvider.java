@@ -18,7 +18,10 @@ package de.dfki.km.leech.io;
 
 
 
+import de.dfki.km.leech.config.CrawlerContext;
+import de.dfki.km.leech.config.DirectoryCrawlerContext;
 import de.dfki.km.leech.metadata.LeechMetadata;
+import de.dfki.km.leech.parser.DirectoryCrawlerParser;
 import de.dfki.km.leech.parser.incremental.IncrementalCrawlingHistory;
 import org.apache.tika.io.TikaInputStream;
 import org.apache.tika.metadata.Metadata;
@@ -29,10 +32,20 @@ import javax.mail.URLName;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HexFormat;
 import java.util.Set;
 
 
@@ -64,12 +77,6 @@ public class FileURLStreamProvider extends URLStreamProvider
 
         File file = new File(new URL(url2getMetadata.toString()).toURI());
 
-        // Für Leech
-        metadata2fill.set(Metadata.SOURCE, file.toURI().toURL().toString());
-        // Optional
-        metadata2fill.set(TikaCoreProperties.MODIFIED.getName(),
-                new SimpleDateFormat("yyyy.MM.dd HH:mm:ss:SSS").format(new Date(file.lastModified())));
-
         // Für das inkrementelle indexieren
         String strEntityId;
         try
@@ -81,8 +88,43 @@ public class FileURLStreamProvider extends URLStreamProvider
             strEntityId = file.getAbsolutePath();
         }
 
+
+        return addFileMetadata(file, strEntityId, Files.readAttributes(file.toPath(), BasicFileAttributes.class), metadata2fill, parseContext);
+    }
+
+
+
+    /**
+     * Fills the metadata of a file with already known values, without further file system access. This is for crawlers that read the file attributes anyway during
+     * listing a directory, as {@link DirectoryCrawlerParser} does. In the case all values are set, {@link #addFirstMetadata(URLName, Metadata, ParseContext)} will not
+     * touch the file again.
+     *
+     * @param file           the file
+     * @param strEntityId    the canonical path of the file, that will become the data entity id
+     * @param fileAttributes the attributes of the file
+     * @param metadata2fill  the metadata object to fill
+     * @param parseContext   the parse context with the crawl configuration
+     *
+     * @return metadata2fill, for convenience
+     */
+    public static Metadata addFileMetadata(File file, String strEntityId, BasicFileAttributes fileAttributes, Metadata metadata2fill, ParseContext parseContext)
+            throws URISyntaxException, IOException
+    {
+        long lLastModified = fileAttributes.lastModifiedTime().toMillis();
+
+        // Für Leech
+        metadata2fill.set(Metadata.SOURCE, toFileURI(file, fileAttributes.isDirectory()));
+        // Optional
+        metadata2fill.set(TikaCoreProperties.MODIFIED.getName(), new SimpleDateFormat("yyyy.MM.dd HH:mm:ss:SSS").format(new Date(lLastModified)));
+
+        // Für das inkrementelle indexieren
         metadata2fill.set(IncrementalCrawlingHistory.dataEntityId, strEntityId);
-        metadata2fill.set(IncrementalCrawlingHistory.dataEntityContentFingerprint, String.valueOf(file.lastModified()));
+        DirectoryCrawlerContext directoryCrawlerContext = parseContext == null ? null : parseContext.get(DirectoryCrawlerContext.class);
+        if(directoryCrawlerContext != null && directoryCrawlerContext.getUseContentHashFingerprints() && fileAttributes.isRegularFile())
+            metadata2fill.set(IncrementalCrawlingHistory.dataEntityContentFingerprint,
+                    createContentHashFingerprint(file, strEntityId, fileAttributes, parseContext.get(CrawlerContext.class)));
+        else
+            metadata2fill.set(IncrementalCrawlingHistory.dataEntityContentFingerprint, String.valueOf(lLastModified));
 
 
         // Für Tika
@@ -94,6 +136,99 @@ public class FileURLStreamProvider extends URLStreamProvider
 
 
 
+    /**
+     * Creates a content fingerprint of the form 'size_modifiedDate_sha256'. The content hash will only be computed in the case size or modified date differ from
+     * the ones remembered inside the crawling history - otherwise, the former fingerprint will be reused without reading the file. In the case the content is the
+     * same, but the file was e.g. touched or restored from a backup, the new size and date will be written into the history, thus the entity will be recognized as
+     * unmodified, and the next crawl takes the fast path again.
+     *
+     * @param file           the (regular) file
+     * @param strEntityId    the data entity id of the file
+     * @param fileAttributes the attributes of the file
+     * @param crawlerContext the crawler context with the crawling history. Can be null
+     *
+     * @return the content fingerprint
+     */
+    protected static String createContentHashFingerprint(File file, String strEntityId, BasicFileAttributes fileAttributes, CrawlerContext crawlerContext)
+            throws IOException
+    {
+        String strStatPart = fileAttributes.size() + "_" + fileAttributes.lastModifiedTime().toMillis() + "_";
+
+        IncrementalCrawlingHistory crawlingHistory = crawlerContext == null ? null : crawlerContext.getIncrementalCrawlingHistory();
+        if(crawlingHistory != null && !crawlingHistory.isOpen()) crawlingHistory = null;
+
+        String strFormerFingerprint = crawlingHistory == null ? null : crawlingHistory.getDataEntityContentFingerprint(strEntityId);
+
+        if(strFormerFingerprint != null && strFormerFingerprint.startsWith(strStatPart)) return strFormerFingerprint;
+
+
+        String strFingerprint = strStatPart + computeSha256(file);
+
+        if(strFormerFingerprint != null && !strFormerFingerprint.equals(strFingerprint)
+                && strFormerFingerprint.substring(strFormerFingerprint.lastIndexOf('_') + 1).equals(strFingerprint.substring(strStatPart.length())))
+            crawlingHistory.updateDataEntityContentFingerprint(strEntityId, strFingerprint);
+
+
+        return strFingerprint;
+    }
+
+
+
+    /**
+     * Computes the SHA-256 hash of a file content, streaming
+     *
+     * @param file the file
+     *
+     * @return the hash as hex String
+     */
+    public static String computeSha256(File file) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+            while (channel.read(buffer) != -1)
+            {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+
+            return HexFormat.of().formatHex(digest.digest());
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            // every Java platform has to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+
+    /**
+     * Creates the same 'file:' URI string as File.toURI() does. File.toURI() asks the file system whether the file is a directory - here, the caller gives this
+     * information, which saves a file system call per file.
+     *
+     * @param file         the file
+     * @param bIsDirectory true in the case the file is a directory. Directory URIs end with a slash
+     *
+     * @return the URI of the file, as String
+     */
+    public static String toFileURI(File file, boolean bIsDirectory) throws URISyntaxException
+    {
+        String strPath = file.getAbsolutePath();
+
+        if(File.separatorChar != '/') strPath = strPath.replace(File.separatorChar, '/');
+        if(!strPath.startsWith("/")) strPath = "/" + strPath;
+        if(bIsDirectory && !strPath.endsWith("/")) strPath = strPath + "/";
+        if(strPath.startsWith("//")) strPath = "//" + strPath;
+
+        return new URI("file", null, strPath, null).toString();
+    }
+
+
+
 
     @Override
     public TikaInputStream getStream(URLName url2getStream, Metadata metadata, ParseContext parseContext) throws Exception
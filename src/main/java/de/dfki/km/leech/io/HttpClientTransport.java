@@ -0,0 +1,848 @@
+/*
+ * Leech - crawling capabilities for Apache Tika
+ *
+ * Copyright (C) 2012 DFKI GmbH, Author: Christian Reuschling
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contact us by mail: christian.reuschling@dfki.de
+ */
+
+package de.dfki.km.leech.io;
+
+
+
+import de.dfki.km.leech.config.CrawlerContext;
+
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+
+/**
+ * An {@link HttpTransport} based on java.net.http.HttpClient. All connections of a crawl are created by one shared client, thus connections will be kept alive and
+ * reused (TCP and TLS setup is paid only once per host), and HTTP/2 will be used where the server supports it - with fallback to HTTP/1.1 otherwise. The number of
+ * concurrent requests per host is bounded (default 8), which also bounds the number of connections per host in the case of HTTP/1.1. A request waits up to the
+ * read timeout of its connection for a free slot - after this, it fails with a {@link SocketTimeoutException}.<br>
+ * <br>
+ * The timeouts are taken from the crawler context of each connection, thus crawls with different settings can share a transport. As with HttpURLConnection, the
+ * read timeout applies to the response headers as well as to each read of the response body.<br>
+ * <br>
+ * The created connections are {@link HttpURLConnection} objects, thus they behave as the ones of the default transport. Redirects will be followed (if enabled
+ * with {@link HttpURLConnection#setInstanceFollowRedirects(boolean)}) by the connection itself. A slot will be freed when the response body was read to the end or
+ * closed, or with {@link HttpURLConnection#disconnect()}. Requests can also be sent asynchronously with {@link #sendAsync(HttpURLConnection)}.<br>
+ * <br>
+ * Usage: <code>crawlerContext.setHttpTransport(new HttpClientTransport());</code>
+ */
+public class HttpClientTransport implements HttpTransport
+{
+
+    /**
+     * An {@link HttpURLConnection} that sends its request with the HttpClient of the transport
+     */
+    protected class HttpClientConnection extends HttpURLConnection
+    {
+
+        protected InputStream m_body;
+
+        protected final HttpClient m_httpClient;
+
+        protected List<Map.Entry<String, String>> m_lHeaders;
+
+        protected HttpResponse<InputStream> m_response;
+
+
+
+        protected HttpClientConnection(URL url, HttpClient client)
+        {
+            super(url);
+            m_httpClient = client;
+        }
+
+
+
+        @Override
+        public void connect() throws IOException
+        {
+            if(connected) return;
+
+
+            HttpResponse<InputStream> response = send(createRequest(url));
+
+            int iRedirections = 0;
+            while (getInstanceFollowRedirects() && isRedirect(response.statusCode()) && response.headers().firstValue("Location").isPresent())
+            {
+                if(++iRedirections > HttpURLStreamProvider.MAX_REDIRECTIONS) break;
+
+                m_body.close();
+                url = new URL(url, response.headers().firstValue("Location").get());
+                response = send(createRequest(url));
+            }
+
+
+            setResponse(response);
+        }
+
+
+
+        /**
+         * Sends the request asynchronously. See {@link HttpClientTransport#sendAsync(HttpURLConnection)}
+         *
+         * @return the future that completes when the response headers are received
+         *
+         * @throws IOException
+         */
+        protected CompletableFuture<HttpURLConnection> connectAsync() throws IOException
+        {
+            if(connected) return CompletableFuture.completedFuture(this);
+
+            HttpRequest request = createRequest(url);
+            Semaphore permits = acquirePermit(url, getPermitTimeout());
+
+            return m_httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofInputStream()).handle((response, throwable) -> {
+                if(throwable != null)
+                {
+                    if(permits != null) permits.release();
+                    throw new CompletionException(throwable);
+                }
+
+                m_body = wrapBody(response, permits, getReadTimeout());
+                setResponse(response);
+                return this;
+            });
+        }
+
+
+
+        protected HttpRequest createRequest(URL url2request) throws IOException
+        {
+            HttpRequest.Builder builder = HttpRequest.newBuilder(toURI(url2request)).method(getRequestMethod(), HttpRequest.BodyPublishers.noBody());
+
+            if(getReadTimeout() > 0) builder.timeout(Duration.ofMillis(getReadTimeout()));
+
+            boolean bIfModifiedSinceSet = false;
+            for (Map.Entry<String, List<String>> property : getRequestProperties().entrySet())
+            {
+                if(property.getKey() == null || RESTRICTED_HEADERS.contains(property.getKey().toLowerCase())) continue;
+                if("if-modified-since".equalsIgnoreCase(property.getKey())) bIfModifiedSinceSet = true;
+
+                for (String strValue : property.getValue())
+                    builder.header(property.getKey(), strValue);
+            }
+
+            if(getIfModifiedSince() > 0 && !bIfModifiedSinceSet)
+                builder.header("If-Modified-Since", DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(getIfModifiedSince()).atZone(ZoneOffset.UTC)));
+
+            return builder.build();
+        }
+
+
+
+        @Override
+        public void disconnect()
+        {
+            try
+            {
+                if(m_body != null) m_body.close();
+            }
+            catch (IOException e)
+            {
+                // nothing to do
+            }
+        }
+
+
+
+        @Override
+        public InputStream getErrorStream()
+        {
+            if(m_response == null || m_response.statusCode() < 400) return null;
+
+            return m_body;
+        }
+
+
+
+        @Override
+        public String getHeaderField(int n)
+        {
+            if(!ensureConnected() || n < 0 || n >= m_lHeaders.size()) return null;
+
+            return m_lHeaders.get(n).getValue();
+        }
+
+
+
+        @Override
+        public String getHeaderField(String name)
+        {
+            if(!ensureConnected() || name == null) return null;
+
+            // as HttpURLConnection, we return the last value
+            List<String> lValues = m_response.headers().allValues(name);
+            if(lValues.isEmpty()) return null;
+
+            return lValues.get(lValues.size() - 1);
+        }
+
+
+
+        @Override
+        public String getHeaderFieldKey(int n)
+        {
+            if(!ensureConnected() || n < 0 || n >= m_lHeaders.size()) return null;
+
+            return m_lHeaders.get(n).getKey();
+        }
+
+
+
+        @Override
+        public Map<String, List<String>> getHeaderFields()
+        {
+            if(!ensureConnected()) return Collections.emptyMap();
+
+            return m_response.headers().map();
+        }
+
+
+
+        @Override
+        public InputStream getInputStream() throws IOException
+        {
+            connect();
+
+            int iStatusCode = m_response.statusCode();
+            if(iStatusCode == HTTP_NOT_FOUND || iStatusCode == HTTP_GONE) throw new FileNotFoundException(url.toString());
+            if(iStatusCode >= 400) throw new IOException("Server returned HTTP response code: " + iStatusCode + " for URL: " + url);
+
+            return m_body;
+        }
+
+
+
+        @Override
+        public int getResponseCode() throws IOException
+        {
+            connect();
+
+            return m_response.statusCode();
+        }
+
+
+
+        @Override
+        public String getResponseMessage() throws IOException
+        {
+            connect();
+
+            // the HttpClient doesn't offer the reason phrase of the status line (and HTTP/2 has none) - we return the standard one of the status code
+            return getReasonPhrase(m_response.statusCode());
+        }
+
+
+
+        /**
+         * Gets the HTTP version the response was sent with
+         *
+         * @return the HTTP version of the response, null in the case the request was not sent yet
+         */
+        public HttpClient.Version getResponseVersion()
+        {
+            return m_response == null ? null : m_response.version();
+        }
+
+
+
+        @Override
+        public boolean usingProxy()
+        {
+            return false;
+        }
+
+
+
+        /**
+         * Gets the time a request of this connection waits for a free slot of its host: the read timeout, or {@link #DEFAULT_PERMIT_TIMEOUT} in the case there is none
+         *
+         * @return the time to wait for a free slot in milliseconds
+         */
+        protected long getPermitTimeout()
+        {
+            return getReadTimeout() > 0 ? getReadTimeout() : DEFAULT_PERMIT_TIMEOUT;
+        }
+
+
+
+        protected boolean ensureConnected()
+        {
+            try
+            {
+                connect();
+                return true;
+            }
+            catch (IOException e)
+            {
+                return false;
+            }
+        }
+
+
+
+        protected HttpResponse<InputStream> send(HttpRequest request) throws IOException
+        {
+            Semaphore permits = acquirePermit(request.uri().toURL(), getPermitTimeout());
+
+            try
+            {
+                HttpResponse<InputStream> response = m_httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream());
+                m_body = wrapBody(response, permits, getReadTimeout());
+
+                return response;
+            }
+            catch (InterruptedException e)
+            {
+                if(permits != null) permits.release();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for the response of " + request.uri());
+            }
+            catch (IOException | RuntimeException e)
+            {
+                if(permits != null) permits.release();
+                throw e;
+            }
+        }
+
+
+
+        protected void setResponse(HttpResponse<InputStream> response)
+        {
+            m_response = response;
+            url = urlOf(response.uri(), url);
+
+            m_lHeaders = new ArrayList<>();
+            // as HttpURLConnection, index 0 is the status line
+            String strReasonPhrase = getReasonPhrase(response.statusCode());
+            m_lHeaders.add(new AbstractMap.SimpleImmutableEntry<>(null, "HTTP/" + (response.version() == HttpClient.Version.HTTP_2 ? "2" : "1.1") + " "
+                    + response.statusCode() + (strReasonPhrase == null ? "" : " " + strReasonPhrase)));
+            for (Map.Entry<String, List<String>> header : response.headers().map().entrySet())
+                for (String strValue : header.getValue())
+                    m_lHeaders.add(new AbstractMap.SimpleImmutableEntry<>(header.getKey(), strValue));
+
+            connected = true;
+        }
+    }
+
+
+
+    /**
+     * A response body that frees the host slot when it was read to the end or closed. In the case of a read timeout, a single read that blocks longer than the
+     * timeout will be aborted by the watchdog of the transport with a {@link SocketTimeoutException}, as with the reads of an HttpURLConnection.
+     */
+    protected static class PermitReleasingInputStream extends FilterInputStream
+    {
+        protected final Semaphore m_permits;
+
+        protected final long m_lReadTimeout;
+
+        protected long m_lReadStartTime;
+
+        protected final Object m_readLock = new Object();
+
+        protected Thread m_readingThread;
+
+        protected final AtomicBoolean m_released = new AtomicBoolean(false);
+
+        protected volatile boolean m_bTimedOut = false;
+
+        protected final Set<PermitReleasingInputStream> m_sWatchedStreams;
+
+
+
+        /**
+         * Creates a new body
+         *
+         * @param in              the body of the response
+         * @param permits         the slots of the host, null in the case no slot was acquired
+         * @param lReadTimeout    the read timeout in milliseconds, 0 or less for none
+         * @param sWatchedStreams the streams checked by the watchdog for timed out reads. This stream adds itself in the case of a read timeout, and removes itself
+         *                        when it is released
+         */
+        protected PermitReleasingInputStream(InputStream in, Semaphore permits, long lReadTimeout, Set<PermitReleasingInputStream> sWatchedStreams)
+        {
+            super(in);
+            m_permits = permits;
+            m_lReadTimeout = lReadTimeout;
+            m_sWatchedStreams = sWatchedStreams;
+
+            if(m_lReadTimeout > 0) m_sWatchedStreams.add(this);
+        }
+
+
+
+        /**
+         * Aborts the current read in the case it blocks longer than the read timeout, by closing the stream and interrupting the reading thread. Invoked by the
+         * watchdog of the transport.
+         *
+         * @param lNow the current time
+         */
+        protected void abortTimedOutRead(long lNow)
+        {
+            synchronized (m_readLock)
+            {
+                if(m_readingThread == null || lNow - m_lReadStartTime < m_lReadTimeout) return;
+
+                m_bTimedOut = true;
+
+                try
+                {
+                    close();
+                }
+                catch (IOException e)
+                {
+                    // nothing to do
+                }
+
+                // the body of the HttpClient blocks in a queue - it recognizes the closing after an interrupt
+                m_readingThread.interrupt();
+            }
+        }
+
+
+
+        protected void beginRead() throws SocketTimeoutException
+        {
+            if(m_bTimedOut) throw new SocketTimeoutException("Read timed out");
+            if(m_lReadTimeout <= 0) return;
+
+            synchronized (m_readLock)
+            {
+                m_lReadStartTime = System.currentTimeMillis();
+                m_readingThread = Thread.currentThread();
+            }
+        }
+
+
+
+        @Override
+        public void close() throws IOException
+        {
+            try
+            {
+                super.close();
+            }
+            finally
+            {
+                release();
+            }
+        }
+
+
+
+        protected void endRead()
+        {
+            if(m_lReadTimeout <= 0) return;
+
+            synchronized (m_readLock)
+            {
+                m_readingThread = null;
+
+                // the interrupt of the watchdog was for the read only
+                if(m_bTimedOut) Thread.interrupted();
+            }
+        }
+
+
+
+        @Override
+        public int read() throws IOException
+        {
+            beginRead();
+
+            int iByte;
+            try
+            {
+                iByte = super.read();
+            }
+            catch (IOException e)
+            {
+                if(m_bTimedOut) throw new SocketTimeoutException("Read timed out");
+                throw e;
+            }
+            finally
+            {
+                endRead();
+            }
+
+            if(iByte == -1) release();
+
+            return iByte;
+        }
+
+
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            beginRead();
+
+            int iRead;
+            try
+            {
+                iRead = super.read(b, off, len);
+            }
+            catch (IOException e)
+            {
+                if(m_bTimedOut) throw new SocketTimeoutException("Read timed out");
+                throw e;
+            }
+            finally
+            {
+                endRead();
+            }
+
+            if(iRead == -1) release();
+
+            return iRead;
+        }
+
+
+
+        protected void release()
+        {
+            if(m_released.compareAndSet(false, true))
+            {
+                if(m_permits != null) m_permits.release();
+                m_sWatchedStreams.remove(this);
+            }
+        }
+    }
+
+
+
+    /**
+     * The time a request waits for a free slot of its host in the case the connection has no read timeout
+     */
+    protected static final long DEFAULT_PERMIT_TIMEOUT = 20000;
+
+    /**
+     * The interval in which the watchdog checks for reads that block longer than the read timeout
+     */
+    protected static final long READ_TIMEOUT_CHECK_INTERVAL = 500;
+
+    protected static final Set<String> RESTRICTED_HEADERS = Set.of("connection", "content-length", "expect", "host", "upgrade");
+
+    /**
+     * The standard reason phrases of the status codes, as of RFC 9110
+     */
+    protected static final Map<Integer, String> REASON_PHRASES = Map.ofEntries(Map.entry(100, "Continue"), Map.entry(101, "Switching Protocols"),
+            Map.entry(200, "OK"), Map.entry(201, "Created"), Map.entry(202, "Accepted"), Map.entry(203, "Non-Authoritative Information"),
+            Map.entry(204, "No Content"), Map.entry(205, "Reset Content"), Map.entry(206, "Partial Content"), Map.entry(300, "Multiple Choices"),
+            Map.entry(301, "Moved Permanently"), Map.entry(302, "Found"), Map.entry(303, "See Other"), Map.entry(304, "Not Modified"),
+            Map.entry(305, "Use Proxy"), Map.entry(307, "Temporary Redirect"), Map.entry(308, "Permanent Redirect"), Map.entry(400, "Bad Request"),
+            Map.entry(401, "Unauthorized"), Map.entry(402, "Payment Required"), Map.entry(403, "Forbidden"), Map.entry(404, "Not Found"),
+            Map.entry(405, "Method Not Allowed"), Map.entry(406, "Not Acceptable"), Map.entry(407, "Proxy Authentication Required"),
+            Map.entry(408, "Request Timeout"), Map.entry(409, "Conflict"), Map.entry(410, "Gone"), Map.entry(411, "Length Required"),
+            Map.entry(412, "Precondition Failed"), Map.entry(413, "Content Too Large"), Map.entry(414, "URI Too Long"), Map.entry(415, "Unsupported Media Type"),
+            Map.entry(416, "Range Not Satisfiable"), Map.entry(417, "Expectation Failed"), Map.entry(421, "Misdirected Request"),
+            Map.entry(422, "Unprocessable Content"), Map.entry(426, "Upgrade Required"), Map.entry(429, "Too Many Requests"),
+            Map.entry(500, "Internal Server Error"), Map.entry(501, "Not Implemented"), Map.entry(502, "Bad Gateway"), Map.entry(503, "Service Unavailable"),
+            Map.entry(504, "Gateway Timeout"), Map.entry(505, "HTTP Version Not Supported"));
+
+
+
+    protected static boolean isRedirect(int iStatusCode)
+    {
+        return iStatusCode == HttpURLConnection.HTTP_MULT_CHOICE || iStatusCode == HttpURLConnection.HTTP_MOVED_PERM
+                || iStatusCode == HttpURLConnection.HTTP_MOVED_TEMP || iStatusCode == HttpURLConnection.HTTP_SEE_OTHER || iStatusCode == 307 || iStatusCode == 308;
+    }
+
+
+
+    protected static URI toURI(URL url) throws IOException
+    {
+        try
+        {
+            return url.toURI();
+        }
+        catch (URISyntaxException e)
+        {
+            try
+            {
+                // not escaped correctly - this constructor escapes
+                return new URI(url.getProtocol(), url.getUserInfo(), url.getHost(), url.getPort(), url.getPath(), url.getQuery(), url.getRef());
+            }
+            catch (URISyntaxException e2)
+            {
+                throw new IOException("invalid url " + url, e2);
+            }
+        }
+    }
+
+
+
+    protected static URL urlOf(URI uri, URL fallback)
+    {
+        try
+        {
+            return uri.toURL();
+        }
+        catch (Exception e)
+        {
+            return fallback;
+        }
+    }
+
+
+
+
+
+    protected final HttpClient m_client;
+
+    protected final ConcurrentHashMap<Integer, HttpClient> m_hsConnectTimeout2Client = new ConcurrentHashMap<>();
+
+    protected final ConcurrentHashMap<String, Semaphore> m_hsHost2Permits = new ConcurrentHashMap<>();
+
+    protected final int m_iMaxConcurrentRequestsPerHost;
+
+    protected ScheduledExecutorService m_readTimeoutWatchdog;
+
+    protected final Set<PermitReleasingInputStream> m_sWatchedStreams = ConcurrentHashMap.newKeySet();
+
+    protected final HttpClient.Version m_version;
+
+
+
+    /**
+     * Creates a new transport that prefers HTTP/2, with at most 8 concurrent requests per host
+     */
+    public HttpClientTransport()
+    {
+        this(HttpClient.Version.HTTP_2, 8);
+    }
+
+
+
+    /**
+     * Creates a new transport
+     *
+     * @param version                       the preferred HTTP version. In the case of HTTP_2, the client falls back to HTTP/1.1 for servers that don't support HTTP/2
+     * @param iMaxConcurrentRequestsPerHost the maximum number of concurrent requests per host. 0 or less means unbounded
+     */
+    public HttpClientTransport(HttpClient.Version version, int iMaxConcurrentRequestsPerHost)
+    {
+        m_client = null;
+        m_version = version;
+        m_iMaxConcurrentRequestsPerHost = iMaxConcurrentRequestsPerHost;
+    }
+
+
+
+    /**
+     * Creates a new transport with a preconfigured client, e.g. with a proxy or an SSL context. Make sure that the client doesn't follow redirects by itself. The
+     * connect timeout of the client will be used for all crawls
+     *
+     * @param client                        the client
+     * @param iMaxConcurrentRequestsPerHost the maximum number of concurrent requests per host. 0 or less means unbounded
+     */
+    public HttpClientTransport(HttpClient client, int iMaxConcurrentRequestsPerHost)
+    {
+        m_client = client;
+        m_version = client.version();
+        m_iMaxConcurrentRequestsPerHost = iMaxConcurrentRequestsPerHost;
+    }
+
+
+
+    /**
+     * Gets the standard reason phrase of a status code
+     *
+     * @param iStatusCode the status code
+     *
+     * @return the reason phrase, null in the case the status code is unknown
+     */
+    protected static String getReasonPhrase(int iStatusCode)
+    {
+        return REASON_PHRASES.get(iStatusCode);
+    }
+
+
+
+    /**
+     * Waits up to the given time for a free slot for the host of the url.
+     *
+     * @param url            the url
+     * @param lPermitTimeout the maximum time to wait in milliseconds
+     *
+     * @return the acquired slot, null in the case there is no bound
+     *
+     * @throws InterruptedIOException in the case the thread was interrupted while waiting
+     * @throws SocketTimeoutException in the case there was no free slot within the given time
+     */
+    protected Semaphore acquirePermit(URL url, long lPermitTimeout) throws InterruptedIOException, SocketTimeoutException
+    {
+        if(m_iMaxConcurrentRequestsPerHost <= 0) return null;
+
+        Semaphore permits = m_hsHost2Permits.computeIfAbsent(url.getAuthority(), strHost -> new Semaphore(m_iMaxConcurrentRequestsPerHost));
+
+        try
+        {
+            if(permits.tryAcquire(lPermitTimeout, TimeUnit.MILLISECONDS)) return permits;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for a free connection to " + url.getAuthority());
+        }
+
+
+        // sending it anyway would exceed the bound - maybe someone forgot to close a response body
+        throw new SocketTimeoutException("No free connection slot to " + url.getAuthority() + " after " + lPermitTimeout + " ms - all "
+                + m_iMaxConcurrentRequestsPerHost + " slots of the host are in use");
+    }
+
+
+
+    /**
+     * Gets the client used by this transport for the connect timeout of the given crawler context. The connect timeout is a setting of the whole client, thus there
+     * is one client per connect timeout - crawls with different connect timeouts can share the transport without affecting each other. A client will be created at
+     * first usage. In the case the transport was created with a preconfigured client, this one will be returned.
+     *
+     * @param crawlerContext the crawler context
+     *
+     * @return the client
+     */
+    public HttpClient getClient(CrawlerContext crawlerContext)
+    {
+        if(m_client != null) return m_client;
+
+        return m_hsConnectTimeout2Client.computeIfAbsent(Math.max(crawlerContext.getHttpConnectTimeout(), 1),
+                iConnectTimeout -> HttpClient.newBuilder().version(m_version).followRedirects(HttpClient.Redirect.NEVER)
+                        .connectTimeout(Duration.ofMillis(iConnectTimeout)).build());
+    }
+
+
+
+    @Override
+    public HttpURLConnection openConnection(URL url, CrawlerContext crawlerContext) throws IOException
+    {
+        HttpClientConnection connection = new HttpClientConnection(url, getClient(crawlerContext));
+        connection.setConnectTimeout(crawlerContext.getHttpConnectTimeout());
+        connection.setReadTimeout(crawlerContext.getHttpReadTimeout());
+
+        return connection;
+    }
+
+
+
+    /**
+     * Sends the request of a connection asynchronously, without following redirects. The returned future completes with the connected connection as soon as the
+     * response headers are received - the body can be read afterwards with {@link HttpURLConnection#getInputStream()}. This is for high fan out fetching, where
+     * many requests should be in flight without blocking a thread for each. The method blocks only in the case there is no free slot for the host.
+     *
+     * @param connection an unconnected connection, created by {@link #openConnection(URL, CrawlerContext)} of this transport
+     *
+     * @return the future that completes with the connected connection
+     *
+     * @throws IOException
+     */
+    public CompletableFuture<HttpURLConnection> sendAsync(HttpURLConnection connection) throws IOException
+    {
+        if(!(connection instanceof HttpClientConnection)) throw new IllegalArgumentException("the connection was not created by this transport");
+
+        return ((HttpClientConnection) connection).connectAsync();
+    }
+
+
+
+    /**
+     * Starts the watchdog that aborts reads blocking longer than the read timeout, in the case it is not running yet
+     */
+    synchronized protected void startReadTimeoutWatchdog()
+    {
+        if(m_readTimeoutWatchdog != null) return;
+
+        m_readTimeoutWatchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "leech-http-read-timeout-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        m_readTimeoutWatchdog.scheduleWithFixedDelay(() -> {
+            long lNow = System.currentTimeMillis();
+            for (PermitReleasingInputStream stream : m_sWatchedStreams)
+                stream.abortTimedOutRead(lNow);
+        }, READ_TIMEOUT_CHECK_INTERVAL, READ_TIMEOUT_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+
+
+    /**
+     * Wraps the response body, such that the slot for the host will be freed when the body was read to the end or closed, and a read blocks not longer than the
+     * read timeout
+     *
+     * @param response     the response
+     * @param permits      the slots of the host, null in the case no slot was acquired
+     * @param lReadTimeout the read timeout in milliseconds, 0 or less for none
+     *
+     * @return the wrapped body
+     */
+    protected InputStream wrapBody(HttpResponse<InputStream> response, Semaphore permits, long lReadTimeout)
+    {
+        if(lReadTimeout > 0) startReadTimeoutWatchdog();
+
+        InputStream body = new PermitReleasingInputStream(response.body(), permits, lReadTimeout, m_sWatchedStreams);
+
+        // no body is expected - we free the connection immediately
+        int iStatusCode = response.statusCode();
+        if("HEAD".equals(response.request().method()) || iStatusCode == HttpURLConnection.HTTP_NOT_MODIFIED || iStatusCode == HttpURLConnection.HTTP_NO_CONTENT)
+        {
+            try
+            {
+                body.close();
+            }
+            catch (IOException e)
+            {
+                // nothing to do
+            }
+        }
+
+        return body;
+    }
+
+}
@@ -0,0 +1,50 @@
+/*
+ * Leech - crawling capabilities for Apache Tika
+ *
+ * Copyright (C) 2012 DFKI GmbH, Author: Christian Reuschling
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contact us by mail: christian.reuschling@dfki.de
+ */
+
+package de.dfki.km.leech.io;
+
+
+
+import de.dfki.km.leech.config.CrawlerContext;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+
+
+/**
+ * The transport {@link HttpURLStreamProvider} uses for all http and https requests, as configured with {@link CrawlerContext#setHttpTransport(HttpTransport)}. A
+ * transport creates {@link HttpURLConnection} objects - thus the provider works the same way, independent from the underlying http implementation. The default
+ * transport is {@link URLConnectionHttpTransport}, {@link HttpClientTransport} is based on java.net.http.HttpClient, with connection reuse and HTTP/2.
+ */
+public interface HttpTransport
+{
+
+    /**
+     * Creates a connection for an http or https url, with the connect and read timeouts of the crawler context. As with {@link URL#openConnection()}, the request
+     * will not be sent yet - you can set the request method and properties before.
+     *
+     * @param url            the url
+     * @param crawlerContext the crawler context
+     *
+     * @return the new, unconnected connection
+     *
+     * @throws IOException
+     */
+    public HttpURLConnection openConnection(URL url, CrawlerContext crawlerContext) throws IOException;
+
+}
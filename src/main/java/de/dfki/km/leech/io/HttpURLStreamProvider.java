@@ -27,30 +27,191 @@ import de.dfki.km.leech.util.UrlUtil;
 import org.apache.tika.io.TikaInputStream;
 import org.apache.tika.metadata.Metadata;
 import org.apache.tika.parser.ParseContext;
+import org.slf4j.LoggerFactory;
 
 import javax.mail.URLName;
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
-import java.util.Date;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.HashSet;
+import java.util.HexFormat;
 import java.util.Map;
 import java.util.Set;
 import java.util.zip.GZIPInputStream;
 
 
 
+/**
+ * The {@link URLStreamProvider} for http and https urls. All requests will be sent with the {@link HttpTransport} of the crawler context (see
+ * {@link CrawlerContext#setHttpTransport(HttpTransport)}). By default, {@link #addFirstMetadata(URLName, Metadata, ParseContext)} sends a HEAD request to determine the
+ * metadata, and the stream returned by {@link #getStream(URLName, Metadata, ParseContext)} sends a GET request at first data access. In the case
+ * {@link CrawlerContext#setUseConditionalGet(Boolean)} is enabled, {@link #addFirstMetadata(URLName, Metadata, ParseContext)} sends a conditional GET request
+ * instead. The response body will be handed over to the following {@link #getStream(URLName, Metadata, ParseContext)} invocation of the same thread, thus each
+ * resource will be fetched with a single request.<br>
+ * <br>
+ * The content fingerprint for incremental crawling is the ETag of the response, if there is one ('etag:' + ETag). Otherwise it is the Last-Modified date in
+ * milliseconds. For servers that send none of these validators (as many dynamic sites), the fingerprint is the SHA-256 hash of the response body ('sha256:' +
+ * hash). The body will be spooled for this - into memory up to {@link CrawlerContext#getMaxInMemorySpoolSize()}, into a temporary file otherwise - and handed over
+ * to {@link #getStream(URLName, Metadata, ParseContext)} afterwards. During a recrawl, the stored fingerprint will be sent as validator (If-None-Match or
+ * If-Modified-Since), thus unmodified resources are answered with '304 Not Modified'.
+ */
 public class HttpURLStreamProvider extends URLStreamProvider
 {
 
-    protected static final int connectTimeout = 20000;
+    /**
+     * An open GET response from {@link #addFirstMetadata(URLName, Metadata, ParseContext)}, waiting to be consumed by {@link #getStream(URLName, Metadata, ParseContext)}
+     */
+    protected static class PendingResponse
+    {
+        protected final HttpURLConnection m_connection;
+
+        protected final InputStream m_spooledBody;
+
+        protected final String m_strContentHash;
+
+        protected final String m_strUrl;
+
+
+
+        protected PendingResponse(String strUrl, HttpURLConnection connection)
+        {
+            m_strUrl = strUrl;
+            m_connection = connection;
+            m_spooledBody = null;
+            m_strContentHash = null;
+        }
+
+
+
+        protected PendingResponse(String strUrl, InputStream spooledBody, String strContentHash)
+        {
+            m_strUrl = strUrl;
+            m_connection = null;
+            m_spooledBody = spooledBody;
+            m_strContentHash = strContentHash;
+        }
+
+
+
+        protected void discard()
+        {
+            if(m_connection != null) closeQuietly(m_connection);
+
+            try
+            {
+                if(m_spooledBody != null) m_spooledBody.close();
+            }
+            catch (IOException e)
+            {
+                LoggerFactory.getLogger(HttpURLStreamProvider.class.getName()).warn("Could not close spooled response body of " + m_strUrl, e);
+            }
+        }
+
+
+
+        protected InputStream getBody() throws IOException
+        {
+            if(m_spooledBody != null) return m_spooledBody;
+
+            return getDecodedInputStream(m_connection);
+        }
+    }
+
+
+
+    /**
+     * The prefix of ETag content fingerprints
+     */
+    public static final String ETAG_FINGERPRINT_PREFIX = "etag:";
+
+    /**
+     * The prefix of content hash fingerprints, for responses without validators
+     */
+    public static final String HASH_FINGERPRINT_PREFIX = "sha256:";
+
+
 
     protected static final int MAX_REDIRECTIONS = 20;
 
-    protected static final int readTimeout = 20000;
+    protected static final ThreadLocal<PendingResponse> m_tlPendingResponse = new ThreadLocal<>();
+
+
+
+    /**
+     * Closes the response body of a connection without reading it. In the case of an error response (4xx, 5xx), this is the error stream
+     *
+     * @param connection the connection
+     */
+    protected static void closeQuietly(URLConnection connection)
+    {
+        try
+        {
+            connection.getInputStream().close();
+            return;
+        }
+        catch (Exception e)
+        {
+            // e.g. an error response - its body is the error stream
+        }
+
+        if(!(connection instanceof HttpURLConnection)) return;
+
+        try
+        {
+            InputStream errorStream = ((HttpURLConnection) connection).getErrorStream();
+            if(errorStream != null) errorStream.close();
+        }
+        catch (Exception e)
+        {
+            // there is nothing to close
+        }
+    }
+
+
+
+    /**
+     * Discards the pending response of the current thread, if there is one
+     */
+    public static void discardPendingResponse()
+    {
+        PendingResponse pendingResponse = m_tlPendingResponse.get();
+        m_tlPendingResponse.remove();
+
+        if(pendingResponse != null) pendingResponse.discard();
+    }
+
+
+
+    /**
+     * Gets the response body of a connection, decompressed in the case of a gzip content encoding
+     *
+     * @param connection the connection
+     *
+     * @return the (buffered) response body
+     *
+     * @throws IOException
+     */
+    protected static InputStream getDecodedInputStream(URLConnection connection) throws IOException
+    {
+        InputStream ourStream = connection.getInputStream();
+
+        String strContentEncoding = connection.getHeaderField("Content-Encoding");
+        if(strContentEncoding != null) strContentEncoding = strContentEncoding.toLowerCase().trim();
+
+
+        if("gzip".equals(strContentEncoding)) ourStream = new BufferedInputStream(new GZIPInputStream(ourStream));
+        else ourStream = new BufferedInputStream(ourStream);
+
+        return ourStream;
+    }
 
 
 
@@ -65,6 +226,101 @@ public class HttpURLStreamProvider extends URLStreamProvider
 
 
 
+    /**
+     * Opens a connection with the http transport, cookies, timeouts, user headers and user agent as configured in the crawler context. The request will not be sent
+     * yet.
+     *
+     * @param url            the url to open
+     * @param crawlerContext the crawler context
+     *
+     * @return the connection
+     *
+     * @throws IOException
+     */
+    protected static URLConnection openConnection(URL url, CrawlerContext crawlerContext) throws IOException
+    {
+        URLConnection connection = crawlerContext.getHttpTransport().openConnection(url, crawlerContext);
+
+        crawlerContext.getCookieManager().setCookies(connection);
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+
+        Map<String, String> userHeaders = crawlerContext.getUserHeaders();
+        if(userHeaders != null)
+        {
+            for (Map.Entry<String, String> entry : userHeaders.entrySet())
+            {
+                connection.setRequestProperty(entry.getKey(), entry.getValue());
+            }
+        }
+
+        String userAgent = crawlerContext.getUserAgent();
+        if(userAgent != null && !userAgent.isEmpty())
+        {
+            connection.setRequestProperty("User-Agent", userAgent);
+        }
+
+        return connection;
+    }
+
+
+
+    /**
+     * Reads the response body of a connection completely, computes its SHA-256 hash and spools it into memory or, if it exceeds iMaxInMemorySize, into a
+     * temporary file. The spooled body will be deleted when the returned response will be discarded or its body will be closed.
+     *
+     * @param strUrl           the url of the response
+     * @param connection       the connection with a '200 OK' response
+     * @param iMaxInMemorySize the maximum body size that will be kept in memory
+     *
+     * @return the response with the spooled body and the content hash
+     *
+     * @throws IOException
+     */
+    protected static PendingResponse spoolAndHash(String strUrl, HttpURLConnection connection, int iMaxInMemorySize) throws IOException
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            // every Java platform has to support SHA-256
+            throw new IllegalStateException(e);
+        }
+
+
+        InputStream decodedBody;
+        try
+        {
+            decodedBody = getDecodedInputStream(connection);
+        }
+        catch (IOException e)
+        {
+            closeQuietly(connection);
+            throw e;
+        }
+
+        try (InputStream body = new DigestInputStream(decodedBody, digest))
+        {
+            byte[] content = body.readNBytes(Math.min(iMaxInMemorySize, Integer.MAX_VALUE - 9) + 1);
+
+            InputStream spooledBody;
+            if(content.length <= iMaxInMemorySize) spooledBody = TikaInputStream.get(content);
+            else
+            {
+                // too big for the memory - we spool the already read part together with the rest to a temporary file. This reads the body to the end
+                TikaInputStream tikaStream = TikaInputStream.get(new SequenceInputStream(new ByteArrayInputStream(content), body));
+                tikaStream.getPath();
+                spooledBody = tikaStream;
+            }
+
+            return new PendingResponse(strUrl, spooledBody, HexFormat.of().formatHex(digest.digest()));
+        }
+    }
+
+
+
     protected static boolean isRedirected(int responseCode)
     {
         return responseCode == HttpURLConnection.HTTP_MULT_CHOICE || responseCode == HttpURLConnection.HTTP_MOVED_PERM || responseCode == HttpURLConnection.HTTP_MOVED_TEMP
@@ -91,6 +347,30 @@ public class HttpURLStreamProvider extends URLStreamProvider
      */
     @Override
     public Metadata addFirstMetadata(URLName url2getMetadata, Metadata metadata2fill, ParseContext parseContext) throws Exception
+    {
+        // a response that was not consumed by a getStream(..) invocation is outdated now
+        discardPendingResponse();
+
+        try
+        {
+            return fetchFirstMetadata(url2getMetadata, metadata2fill, parseContext);
+        }
+        catch (Exception e)
+        {
+            // nobody will invoke getStream(..) now - the open response would hold its connection (and the permit of the http transport) otherwise
+            discardPendingResponse();
+
+            throw e;
+        }
+    }
+
+
+
+    /**
+     * The implementation of {@link #addFirstMetadata(URLName, Metadata, ParseContext)}. In the case of a GET request, the open response will be left as pending
+     * response for the following getStream(..) invocation of this thread
+     */
+    protected Metadata fetchFirstMetadata(URLName url2getMetadata, Metadata metadata2fill, ParseContext parseContext) throws Exception
     {
 
 
@@ -126,11 +406,15 @@ public class HttpURLStreamProvider extends URLStreamProvider
 
         URLConnection connection = null;
         int nrRedirections = 0;
+        String strFormerFingerprint = null;
 
         String strCurrentUrl = url2getMetadata.toString();
 
         CookieManager cookies = crawlerContext.getCookieManager();
 
+        // with a single conditional GET, the response body will be the stream for the parser afterwards
+        boolean bUseConditionalGet = Boolean.TRUE.equals(crawlerContext.getUseConditionalGet());
+
         // We're going to loop, accessing urls until we arrive at a url that is not redirected. The
         // redirection is followed manually rather than automatically, which is HttpURLConnection's
         // default behaviour, so that we know the actual url we arrive at.
@@ -147,46 +431,40 @@ public class HttpURLStreamProvider extends URLStreamProvider
             currentUrl = new URL(UrlUtil.normalizeURL(new URLName(currentUrl)).toString());
             strCurrentUrl = currentUrl.toExternalForm();
 
-            // see if a date was registered for this url
-            Date ifModifiedSinceDate = null;
+            // see if a validator (a date or an ETag) was registered for this url. A content hash is no validator, the server can't check it
+            strFormerFingerprint = null;
             if(crawlingHistory != null)
             {
-                String lastIfModifiedSinceDate = crawlingHistory.getDataEntityContentFingerprint(strCurrentUrl);
-                if(lastIfModifiedSinceDate != null && lastIfModifiedSinceDate.matches("\\d+")) ifModifiedSinceDate = new Date(Long.valueOf(lastIfModifiedSinceDate));
+                strFormerFingerprint = crawlingHistory.getDataEntityContentFingerprint(strCurrentUrl);
+                if(strFormerFingerprint != null && !strFormerFingerprint.matches("\\d+") && !strFormerFingerprint.startsWith(ETAG_FINGERPRINT_PREFIX))
+                    strFormerFingerprint = null;
+            }
+
+            // the robots.txt rules are checked for each hop - the original url as well as the redirect targets
+            String strProtocol = currentUrl.getProtocol().toLowerCase();
+            if(Boolean.TRUE.equals(crawlerContext.getObeyRobotsTxt()) && ("http".equals(strProtocol) || "https".equals(strProtocol))
+                    && !crawlerContext.getRobotsTxtCache().isAllowed(currentUrl, crawlerContext))
+            {
+                throw new LeechException(strCurrentUrl + " is disallowed by the robots.txt file of its host");
             }
 
             try
             {
                 // maybe there exists other connections as http - in this case we want to fall back zu standard Tika behaviour
-                connection = currentUrl.openConnection();
+                connection = openConnection(currentUrl, crawlerContext);
 
                 if(!(connection instanceof HttpURLConnection)) break;
 
-                ((HttpURLConnection) connection).setRequestMethod("HEAD");
-                cookies.setCookies(connection);
-                connection.setConnectTimeout(connectTimeout);
-                connection.setReadTimeout(readTimeout);
-                connection.setRequestProperty("Accept-Encoding", "gzip");
-
-                Map<String, String> userHeaders = crawlerContext.getUserHeaders();
-                if(userHeaders != null)
-                {
-                    for (Map.Entry<String, String> entry : userHeaders.entrySet())
-                    {
-                        connection.setRequestProperty(entry.getKey(), entry.getValue());
-                    }
-                }
+                ((HttpURLConnection) connection).setRequestMethod(bUseConditionalGet ? "GET" : "HEAD");
 
-                String userAgent = crawlerContext.getUserAgent();
-                if(userAgent != null && !userAgent.isEmpty())
+                ((HttpURLConnection) connection).setInstanceFollowRedirects(false);
+                if(strFormerFingerprint != null && strFormerFingerprint.startsWith(ETAG_FINGERPRINT_PREFIX))
                 {
-                    connection.setRequestProperty("User-Agent", userAgent);
+                    connection.setRequestProperty("If-None-Match", strFormerFingerprint.substring(ETAG_FINGERPRINT_PREFIX.length()));
                 }
-
-                ((HttpURLConnection) connection).setInstanceFollowRedirects(false);
-                if(ifModifiedSinceDate != null)
+                else if(strFormerFingerprint != null)
                 {
-                    connection.setIfModifiedSince(ifModifiedSinceDate.getTime());
+                    connection.setIfModifiedSince(Long.parseLong(strFormerFingerprint));
                 }
 
                 // send the request to the server
@@ -212,6 +490,8 @@ public class HttpURLStreamProvider extends URLStreamProvider
 
             if(isRedirected(responseCode))
             {
+                if(bUseConditionalGet) closeQuietly(connection);
+
                 // follow the redirected url
                 String lastUrl = strCurrentUrl;
                 strCurrentUrl = getRedirectedUrl(currentUrl, connection);
@@ -227,32 +507,44 @@ public class HttpURLStreamProvider extends URLStreamProvider
             else if(responseCode == HttpURLConnection.HTTP_NOT_FOUND)
             {
                 // TODO hier wollen wir noch verschiedene Möglichkeiten durchprobieren: z.B. mit und ohne www, mit und ohne https
+                if(bUseConditionalGet) closeQuietly(connection);
                 throw new LeechException(strCurrentUrl + " not found");
             }
             else if(responseCode == HttpURLConnection.HTTP_NOT_MODIFIED)
             {
-                // des isch nicht modifiziert seit dem letzten crawl - wir geben die ('modification') time des letzten crawls zurück, damit des teil
+                // des isch nicht modifiziert seit dem letzten crawl - wir geben den fingerprint des letzten crawls zurück, damit des teil
                 // als unmodifiziert erkannt wird.
-                if(crawlingHistory != null && ifModifiedSinceDate != null)
-                    metadata2fill.set(IncrementalCrawlingHistory.dataEntityContentFingerprint, String.valueOf(ifModifiedSinceDate.getTime()));
+                if(strFormerFingerprint != null) metadata2fill.set(IncrementalCrawlingHistory.dataEntityContentFingerprint, strFormerFingerprint);
 
                 break;
             }
             else if(responseCode != HttpURLConnection.HTTP_OK)
             {
                 // this is a communication error, quit with an exception
+                if(bUseConditionalGet) closeQuietly(connection);
                 throw new IOException("Http connection error, response code = " + responseCode + ", url = " + currentUrl);
             }
             else
             {
-                // we're done
+                // we're done - in the case of a GET, the response body will be consumed by the following getStream(..) invocation
+                if(bUseConditionalGet) m_tlPendingResponse.set(new PendingResponse(strCurrentUrl, (HttpURLConnection) connection));
+
                 break;
             }
         }
 
 
         if(metadata2fill.get(IncrementalCrawlingHistory.dataEntityContentFingerprint) == null)
-            metadata2fill.set(IncrementalCrawlingHistory.dataEntityContentFingerprint, String.valueOf(System.currentTimeMillis()));
+        {
+            String strFingerprint = null;
+            if(connection instanceof HttpURLConnection)
+                strFingerprint = createContentFingerprint((HttpURLConnection) connection, strCurrentUrl, bUseConditionalGet, crawlerContext);
+
+            // this is the last resort - the entity will be considered as modified with each crawl
+            if(strFingerprint == null) strFingerprint = String.valueOf(System.currentTimeMillis());
+
+            metadata2fill.set(IncrementalCrawlingHistory.dataEntityContentFingerprint, strFingerprint);
+        }
 
         // die Einträge, die Tika auch in das metadata einträgt, und noch etwas dazu
 
@@ -288,6 +580,60 @@ public class HttpURLStreamProvider extends URLStreamProvider
 
 
 
+    /**
+     * Creates the content fingerprint for a '200 OK' response: the ETag, if there is one. Otherwise the Last-Modified date, and for responses without both, the hash
+     * of the response body. In the latter case, the spooled body will become the pending response for the following getStream(..) invocation.
+     *
+     * @param connection         the connection with the '200 OK' response
+     * @param strUrl             the url of the response
+     * @param bUseConditionalGet true in the case the response is the one of a GET request, false in the case of a HEAD request
+     * @param crawlerContext     the crawler context
+     *
+     * @return the fingerprint, or null in the case it could not be created
+     *
+     * @throws IOException
+     */
+    protected String createContentFingerprint(HttpURLConnection connection, String strUrl, boolean bUseConditionalGet, CrawlerContext crawlerContext)
+            throws IOException
+    {
+        String strETag = connection.getHeaderField("ETag");
+        if(strETag != null && !strETag.isBlank()) return ETAG_FINGERPRINT_PREFIX + strETag.trim();
+
+        long lLastModified = connection.getLastModified();
+        if(lLastModified > 0) return String.valueOf(lLastModified);
+
+
+        // no validators - we need the body for a content hash. In the case of a HEAD request, we have to fetch it now
+        HttpURLConnection getConnection = connection;
+        if(bUseConditionalGet) m_tlPendingResponse.remove();
+        else
+        {
+            getConnection = (HttpURLConnection) openConnection(new URL(strUrl), crawlerContext);
+            getConnection.setInstanceFollowRedirects(false);
+            getConnection.connect();
+            crawlerContext.getCookieManager().storeCookies(getConnection);
+
+            if(getConnection.getResponseCode() != HttpURLConnection.HTTP_OK)
+            {
+                closeQuietly(getConnection);
+                return null;
+            }
+        }
+
+
+        PendingResponse spooledResponse = spoolAndHash(strUrl, getConnection, crawlerContext.getMaxInMemorySpoolSize());
+        m_tlPendingResponse.set(spooledResponse);
+
+        return HASH_FINGERPRINT_PREFIX + spooledResponse.m_strContentHash;
+    }
+
+
+
+    /**
+     * Gets the stream for an http url. The GET request will be sent at first data access. In the case the preceding
+     * {@link #addFirstMetadata(URLName, Metadata, ParseContext)} invocation of the same thread already fetched the url with a single conditional GET (see
+     * {@link CrawlerContext#setUseConditionalGet(Boolean)}), its response body will be returned instead, without a second request.
+     */
     @Override
     public TikaInputStream getStream(URLName url2getStream, Metadata metadata, ParseContext parseContext) throws Exception
     {
@@ -306,47 +652,43 @@ public class HttpURLStreamProvider extends URLStreamProvider
 
         final CrawlerContext crawlerContext = parseContext.get(CrawlerContext.class, new CrawlerContext());
 
+
+        // the response of a single conditional GET - only in the case it belongs to this entity
+        PendingResponse pendingResponse = m_tlPendingResponse.get();
+        m_tlPendingResponse.remove();
+        if(pendingResponse != null && !pendingResponse.m_strUrl.equals(metadata.get(Metadata.SOURCE)))
+        {
+            pendingResponse.discard();
+            pendingResponse = null;
+        }
+        final PendingResponse pendingResponse4Stream = pendingResponse;
+
+
         return TikaInputStream.get(new ShiftInitInputStream()
         {
             @Override
-            protected InputStream initBeforeFirstStreamDataAccess() throws Exception
+            public void close() throws IOException
             {
-                CookieManager cookies = crawlerContext.getCookieManager();
+                // if nobody read the stream, the pending response body would be left open otherwise
+                if(m_wrappedInputStream == null && pendingResponse4Stream != null) pendingResponse4Stream.discard();
 
-                URLConnection connection = url4Stream.openConnection();
-                cookies.setCookies(connection);
-
-                connection.setConnectTimeout(connectTimeout);
-                connection.setReadTimeout(readTimeout);
-                connection.setRequestProperty("Accept-Encoding", "gzip");
+                super.close();
+            }
 
-                Map<String, String> userHeaders = crawlerContext.getUserHeaders();
-                if(userHeaders != null)
-                {
-                    for (Map.Entry<String, String> entry : userHeaders.entrySet())
-                    {
-                        connection.setRequestProperty(entry.getKey(), entry.getValue());
-                    }
-                }
 
-                String userAgent = crawlerContext.getUserAgent();
-                if(userAgent != null && !userAgent.isEmpty())
-                {
-                    connection.setRequestProperty("User-Agent", userAgent);
-                }
 
-                connection.connect();
-                cookies.storeCookies(connection);
-                InputStream ourStream = connection.getInputStream();
+            @Override
+            protected InputStream initBeforeFirstStreamDataAccess() throws Exception
+            {
+                if(pendingResponse4Stream != null) return pendingResponse4Stream.getBody();
 
-                String strContentEncoding = connection.getHeaderField("Content-Encoding");
-                if(strContentEncoding != null) strContentEncoding = strContentEncoding.toLowerCase().trim();
 
+                URLConnection connection = openConnection(url4Stream, crawlerContext);
 
-                if("gzip".equals(strContentEncoding)) ourStream = new BufferedInputStream(new GZIPInputStream(ourStream));
-                else ourStream = new BufferedInputStream(ourStream);
+                connection.connect();
+                crawlerContext.getCookieManager().storeCookies(connection);
 
-                return ourStream;
+                return getDecodedInputStream(connection);
             }
         });
     }
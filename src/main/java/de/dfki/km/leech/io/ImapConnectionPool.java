@@ -0,0 +1,772 @@
+/*
+ * Leech - crawling capabilities for Apache Tika
+ *
+ * Copyright (C) 2012 DFKI GmbH, Author: Christian Reuschling
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contact us by mail: christian.reuschling@dfki.de
+ */
+
+package de.dfki.km.leech.io;
+
+
+
+import com.sun.mail.imap.IMAPFolder;
+import de.dfki.km.leech.config.ImapCrawlerContext;
+import de.dfki.km.leech.parser.ImapCrawlerParser;
+import org.apache.tika.parser.ParseContext;
+import org.slf4j.LoggerFactory;
+
+import javax.mail.Folder;
+import javax.mail.MessagingException;
+import javax.mail.Store;
+import javax.mail.URLName;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+
+
+/**
+ * A thread safe pool of authenticated IMAP {@link Store} connections and opened (read only) {@link Folder} handles, as used by the {@link ImapCrawlerParser} and the
+ * {@link ImapURLStreamProvider}. Without the pool, each message would need an own login and folder selection.<br>
+ * <br>
+ * There is one store per account, i.e. per protocol, host, port, user name, password and session settings (see {@link ImapCrawlerContext#getSessionSignature()}).
+ * Thus crawls with different timeouts, SSL or fetch settings never share a store. A store can be used by several threads at the same time. Folder handles are
+ * exclusive - a borrowed folder is used by one thread until it is given back with {@link #returnFolder(Folder)}. In the case several threads need the same folder at
+ * the same time, the pool opens several handles (each with an own server connection).<br>
+ * <br>
+ * The number of connections per account is limited, as configured with {@link ImapCrawlerContext#setMaxConnectionsPerAccount(int)}. In the case all connections are in
+ * use, an idle handle of another folder will be closed for the new one, or the borrowing thread waits until a handle is given back - at most the configured time
+ * (see {@link #setMaxWaitTime(long)}).<br>
+ * <br>
+ * Connections that were idle for a while will be checked (NOOP) before they are handed out again, and connections that were idle longer than the configured time
+ * (see {@link #setMaxIdleTime(long)}) will be closed by a background thread.
+ */
+public class ImapConnectionPool
+{
+
+    /**
+     * An account with its store and the idle folder handles
+     */
+    protected static class AccountEntry
+    {
+        protected final Map<String, LinkedList<IdleFolder>> m_hsFolderName2IdleFolders = new HashMap<>();
+
+        /**
+         * the number of borrowed stores and folders of this account
+         */
+        protected int m_iBorrowCount = 0;
+
+        /**
+         * the number of open folder handles of this account, i.e. the borrowed and the idle ones. Each of them has an own server connection
+         */
+        protected int m_iOpenFolderCount = 0;
+
+        /**
+         * all stores of this account that were handed out, i.e. the current one and the ones that were replaced because of a broken connection
+         */
+        protected final List<Store> m_lStores = new ArrayList<>();
+
+        protected long m_lLastUseTime = System.currentTimeMillis();
+
+        protected final String m_strKey;
+
+        protected Store m_store;
+
+
+
+        protected AccountEntry(String strKey)
+        {
+            m_strKey = strKey;
+        }
+    }
+
+
+
+    /**
+     * A folder handle that is currently borrowed
+     */
+    protected static class BorrowedFolder
+    {
+        protected final AccountEntry m_account;
+
+        protected final String m_strFolderName;
+
+
+
+        protected BorrowedFolder(AccountEntry account, String strFolderName)
+        {
+            m_account = account;
+            m_strFolderName = strFolderName;
+        }
+    }
+
+
+
+    /**
+     * An opened folder handle that is currently not borrowed
+     */
+    protected static class IdleFolder
+    {
+        protected final IMAPFolder m_folder;
+
+        protected final long m_lIdleSince = System.currentTimeMillis();
+
+
+
+        protected IdleFolder(IMAPFolder folder)
+        {
+            m_folder = folder;
+        }
+    }
+
+
+
+    /**
+     * Connections that were idle longer than this will be checked with a NOOP before they are handed out again
+     */
+    protected static final long HEALTH_CHECK_IDLE_TIME = 10 * 1000;
+
+    protected static final ImapConnectionPool m_defaultPool = new ImapConnectionPool();
+
+
+
+    /**
+     * Gets the pool that is used by default, shared by all crawls (see {@link ImapCrawlerContext#getConnectionPool()})
+     *
+     * @return the default pool
+     */
+    public static ImapConnectionPool getDefaultPool()
+    {
+        return m_defaultPool;
+    }
+
+
+
+    /**
+     * Gets the connection pool configured inside the {@link ImapCrawlerContext} of a parse context
+     *
+     * @param context the parse context. Can be null
+     *
+     * @return the configured pool, or the default pool in the case there is no configuration
+     */
+    public static ImapConnectionPool getPool(ParseContext context)
+    {
+        ImapCrawlerContext imapCrawlerContext = context == null ? null : context.get(ImapCrawlerContext.class);
+
+        return imapCrawlerContext == null ? getDefaultPool() : imapCrawlerContext.getConnectionPool();
+    }
+
+
+
+    protected static void closeQuietly(Folder folder)
+    {
+        try
+        {
+            if(folder.isOpen()) folder.close(false);
+        }
+        catch (Exception e)
+        {
+            LoggerFactory.getLogger(ImapConnectionPool.class.getName()).debug("Error while closing imap folder " + folder.getFullName(), e);
+        }
+    }
+
+
+
+    protected static void closeQuietly(Store store)
+    {
+        try
+        {
+            if(store != null) store.close();
+        }
+        catch (Exception e)
+        {
+            LoggerFactory.getLogger(ImapConnectionPool.class.getName()).debug("Error while closing imap store", e);
+        }
+    }
+
+
+
+    protected final Map<Folder, BorrowedFolder> m_hsBorrowedFolders = new IdentityHashMap<>();
+
+    protected final Map<Store, AccountEntry> m_hsStore2Account = new IdentityHashMap<>();
+
+    protected final Map<String, AccountEntry> m_hsKey2Account = new HashMap<>();
+
+    protected int m_iMaxIdleFoldersPerFolder = 4;
+
+    protected long m_lMaxIdleTime = 60 * 1000;
+
+    protected long m_lMaxWaitTime = 5 * 60 * 1000;
+
+    protected ScheduledExecutorService m_evictionExecutor;
+
+
+
+    /**
+     * Borrows an opened, read only handle for an IMAP folder. The folder is exclusive for the caller until it gives it back with {@link #returnFolder(Folder)}.
+     *
+     * @param url       an url to the account, i.e. with protocol, host, port and the credentials (if not specified inside the {@link ImapCrawlerContext})
+     * @param strFolder the full name of the folder
+     * @param context   the parse context, with the {@link ImapCrawlerContext} for the connection
+     *
+     * @return the opened folder
+     *
+     * @throws MessagingException
+     */
+    public IMAPFolder borrowFolder(URLName url, String strFolder, ParseContext context) throws MessagingException
+    {
+        // one connection is for the store itself, the others can be used for folders
+        ImapCrawlerContext imapCrawlerContext = context == null ? null : context.get(ImapCrawlerContext.class);
+        if(imapCrawlerContext == null) imapCrawlerContext = new ImapCrawlerContext();
+        int iMaxOpenFolders = imapCrawlerContext.getMaxConnectionsPerAccount() - 1;
+        long lWaitDeadline = System.currentTimeMillis() + m_lMaxWaitTime;
+
+        // the borrowed store stays borrowed as long as the folder is - it will be given back with the folder
+        Store store = borrowStore(url, context);
+
+        try
+        {
+            AccountEntry account;
+            synchronized (this)
+            {
+                account = m_hsStore2Account.get(store);
+            }
+
+            while (true)
+            {
+                IdleFolder idleFolder;
+                IdleFolder idleFolder2Replace = null;
+                synchronized (this)
+                {
+                    LinkedList<IdleFolder> llIdleFolders = account.m_hsFolderName2IdleFolders.get(strFolder);
+                    idleFolder = llIdleFolders == null ? null : llIdleFolders.pollFirst();
+                    if(llIdleFolders != null && llIdleFolders.isEmpty()) account.m_hsFolderName2IdleFolders.remove(strFolder);
+
+                    if(idleFolder == null)
+                    {
+                        // we need a new handle. In the case all connections are in use, we close an idle handle of another folder, or wait until one is given back
+                        if(account.m_iOpenFolderCount < iMaxOpenFolders)
+                            account.m_iOpenFolderCount++;
+                        else
+                        {
+                            idleFolder2Replace = pollOldestIdleFolder(account);
+
+                            if(idleFolder2Replace == null)
+                            {
+                                waitForReturnedFolder(lWaitDeadline, account);
+                                continue;
+                            }
+                        }
+                    }
+                }
+
+                if(idleFolder2Replace != null) closeQuietly(idleFolder2Replace.m_folder);
+
+                if(idleFolder == null) return openFolder(store, account, strFolder);
+
+
+                if(isHealthy(idleFolder))
+                {
+                    synchronized (this)
+                    {
+                        m_hsBorrowedFolders.put(idleFolder.m_folder, new BorrowedFolder(account, strFolder));
+                    }
+
+                    return idleFolder.m_folder;
+                }
+
+                closeQuietly(idleFolder.m_folder);
+                synchronized (this)
+                {
+                    account.m_iOpenFolderCount--;
+                    notifyAll();
+                }
+            }
+        }
+        catch (MessagingException | RuntimeException e)
+        {
+            returnStore(store);
+            throw e;
+        }
+    }
+
+
+
+    /**
+     * Borrows an authenticated store for an IMAP account. The store can be used by several threads at the same time, but it must be given back with
+     * {@link #returnStore(Store)} after usage. Don't close it.
+     *
+     * @param url     an url to the account, i.e. with protocol, host, port and the credentials (if not specified inside the {@link ImapCrawlerContext})
+     * @param context the parse context, with the {@link ImapCrawlerContext} for the connection
+     *
+     * @return the connected store
+     *
+     * @throws MessagingException
+     */
+    public Store borrowStore(URLName url, ParseContext context) throws MessagingException
+    {
+        String strKey = getAccountKey(url, context);
+
+        AccountEntry account;
+        Store store;
+        boolean bCheck;
+        synchronized (this)
+        {
+            account = m_hsKey2Account.computeIfAbsent(strKey, AccountEntry::new);
+            account.m_iBorrowCount++;
+            store = account.m_store;
+            bCheck = store != null && System.currentTimeMillis() - account.m_lLastUseTime > HEALTH_CHECK_IDLE_TIME;
+            account.m_lLastUseTime = System.currentTimeMillis();
+        }
+
+        try
+        {
+            // isConnected() of the IMAPStore pings the server
+            if(store != null && (!bCheck || store.isConnected())) return store;
+
+
+            Store newStore = ImapCrawlerParser.connect2Server(url, context);
+
+            synchronized (this)
+            {
+                if(account.m_store == store)
+                {
+                    account.m_store = newStore;
+                    account.m_lStores.add(newStore);
+                    m_hsStore2Account.put(newStore, account);
+                }
+                else
+                {
+                    // another thread was faster - we take its store
+                    closeQuietly(newStore);
+                    newStore = account.m_store;
+                }
+
+                startEviction();
+            }
+
+            // the old store is broken anyway
+            if(store != null && store != newStore) closeQuietly(store);
+
+            return newStore;
+        }
+        catch (MessagingException | RuntimeException e)
+        {
+            synchronized (this)
+            {
+                account.m_iBorrowCount--;
+            }
+            throw e;
+        }
+    }
+
+
+
+    /**
+     * Closes all connections that are currently not borrowed
+     */
+    public void closeIdle()
+    {
+        evict(0);
+    }
+
+
+
+    /**
+     * Closes the idle folders and stores that were idle longer than the given time
+     *
+     * @param lMaxIdleTime the maximum idle time in milliseconds
+     */
+    protected void evict(long lMaxIdleTime)
+    {
+        List<Folder> lFolders2Close = new ArrayList<>();
+        List<Store> lStores2Close = new ArrayList<>();
+        long lNow = System.currentTimeMillis();
+
+        synchronized (this)
+        {
+            Iterator<AccountEntry> itAccounts = m_hsKey2Account.values().iterator();
+            while (itAccounts.hasNext())
+            {
+                AccountEntry account = itAccounts.next();
+
+                Iterator<LinkedList<IdleFolder>> itIdleFolders = account.m_hsFolderName2IdleFolders.values().iterator();
+                while (itIdleFolders.hasNext())
+                {
+                    LinkedList<IdleFolder> llIdleFolders = itIdleFolders.next();
+                    llIdleFolders.removeIf(idleFolder -> {
+                        if(lNow - idleFolder.m_lIdleSince < lMaxIdleTime) return false;
+                        lFolders2Close.add(idleFolder.m_folder);
+                        account.m_iOpenFolderCount--;
+                        return true;
+                    });
+                    if(llIdleFolders.isEmpty()) itIdleFolders.remove();
+                }
+
+                if(account.m_iBorrowCount == 0 && account.m_hsFolderName2IdleFolders.isEmpty() && lNow - account.m_lLastUseTime >= lMaxIdleTime)
+                {
+                    if(account.m_store != null) lStores2Close.add(account.m_store);
+                    for (Store store : account.m_lStores)
+                        m_hsStore2Account.remove(store);
+                    itAccounts.remove();
+                }
+            }
+
+            if(!lFolders2Close.isEmpty()) notifyAll();
+
+            if(m_hsKey2Account.isEmpty() && m_evictionExecutor != null)
+            {
+                m_evictionExecutor.shutdown();
+                m_evictionExecutor = null;
+            }
+        }
+
+        for (Folder folder : lFolders2Close)
+            closeQuietly(folder);
+        for (Store store : lStores2Close)
+            closeQuietly(store);
+    }
+
+
+
+    /**
+     * Opens a new handle for a folder. The connection must be counted inside {@link AccountEntry#m_iOpenFolderCount} already - it will be uncounted in the case of an
+     * error.
+     */
+    protected IMAPFolder openFolder(Store store, AccountEntry account, String strFolder) throws MessagingException
+    {
+        try
+        {
+            IMAPFolder folder = (IMAPFolder) store.getFolder(strFolder);
+            folder.open(Folder.READ_ONLY);
+
+            synchronized (this)
+            {
+                m_hsBorrowedFolders.put(folder, new BorrowedFolder(account, strFolder));
+            }
+
+            return folder;
+        }
+        catch (MessagingException | RuntimeException e)
+        {
+            synchronized (this)
+            {
+                account.m_iOpenFolderCount--;
+                notifyAll();
+            }
+            throw e;
+        }
+    }
+
+
+
+    /**
+     * Removes the idle folder handle of an account that was idle for the longest time. Must be invoked while holding the lock of the pool.
+     *
+     * @param account the account
+     *
+     * @return the removed idle folder handle, null in the case there is none
+     */
+    protected IdleFolder pollOldestIdleFolder(AccountEntry account)
+    {
+        Map.Entry<String, LinkedList<IdleFolder>> oldestEntry = null;
+        for (Map.Entry<String, LinkedList<IdleFolder>> folderName2IdleFolders : account.m_hsFolderName2IdleFolders.entrySet())
+            if(oldestEntry == null || folderName2IdleFolders.getValue().getLast().m_lIdleSince < oldestEntry.getValue().getLast().m_lIdleSince)
+                oldestEntry = folderName2IdleFolders;
+
+        if(oldestEntry == null) return null;
+
+        IdleFolder idleFolder = oldestEntry.getValue().removeLast();
+        if(oldestEntry.getValue().isEmpty()) account.m_hsFolderName2IdleFolders.remove(oldestEntry.getKey());
+
+        return idleFolder;
+    }
+
+
+
+    /**
+     * Waits until a folder handle was given back or closed, but not beyond the given deadline. Must be invoked while holding the lock of the pool.
+     *
+     * @param lDeadline the time until the caller waits at most
+     * @param account   the account the caller needs a handle for
+     *
+     * @throws MessagingException in the case the deadline is reached, or the thread was interrupted while waiting
+     */
+    protected void waitForReturnedFolder(long lDeadline, AccountEntry account) throws MessagingException
+    {
+        long lRemaining = lDeadline - System.currentTimeMillis();
+        if(lRemaining <= 0)
+            throw new MessagingException("No free imap connection after waiting " + m_lMaxWaitTime + " ms - all " + account.m_iOpenFolderCount
+                    + " folder connections of the account are in use. Maybe folders were not given back to the pool, or the maximum number of connections per"
+                    + " account is too low.");
+
+        try
+        {
+            wait(lRemaining);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted while waiting for a free imap connection", e);
+        }
+    }
+
+
+
+    /**
+     * Gets the key of the account of an url: a SHA-256 digest over protocol, user name, password, host, port and the session settings. The credentials are not kept
+     * as plain text inside the pool this way, e.g. for heap dumps or debug output
+     *
+     * @param url     an url to the account
+     * @param context the parse context, with the {@link ImapCrawlerContext} for the connection
+     *
+     * @return the key as hex String
+     */
+    protected String getAccountKey(URLName url, ParseContext context)
+    {
+        ImapCrawlerContext imapCrawlerContext = context == null ? new ImapCrawlerContext() : context.get(ImapCrawlerContext.class, new ImapCrawlerContext());
+
+        String strUserName = imapCrawlerContext.getUserName();
+        if(strUserName == null) strUserName = url.getUsername();
+
+        String strPassword = imapCrawlerContext.getPassword();
+        if(strPassword == null) strPassword = url.getPassword();
+
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+
+            // crawls with different session settings must not share their stores
+            for (String strPart : new String[] { url.getProtocol(), strUserName, strPassword, url.getHost(), String.valueOf(url.getPort()),
+                    imapCrawlerContext.getSessionSignature() })
+            {
+                if(strPart != null) digest.update(strPart.getBytes(StandardCharsets.UTF_8));
+                // separator, thus 'ab' + 'c' differs from 'a' + 'bc'. null differs from ""
+                digest.update(strPart == null ? (byte) 1 : (byte) 0);
+            }
+
+            return HexFormat.of().formatHex(digest.digest());
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            // every Java platform has to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+
+    /**
+     * Gets the maximum number of idle handles that will be kept open for a single folder. The default is 4.
+     *
+     * @return the maximum number of idle handles per folder
+     */
+    public int getMaxIdleFoldersPerFolder()
+    {
+        return m_iMaxIdleFoldersPerFolder;
+    }
+
+
+
+    /**
+     * Gets the time after which idle connections will be closed, in milliseconds. The default is 60 seconds.
+     *
+     * @return the maximum idle time in milliseconds
+     */
+    public long getMaxIdleTime()
+    {
+        return m_lMaxIdleTime;
+    }
+
+
+
+    /**
+     * Gets the maximum time a thread waits for a free connection in the case all connections of an account are in use. The default is 5 minutes.
+     *
+     * @return the maximum waiting time in milliseconds
+     */
+    public long getMaxWaitTime()
+    {
+        return m_lMaxWaitTime;
+    }
+
+
+
+    protected boolean isHealthy(IdleFolder idleFolder)
+    {
+        if(!idleFolder.m_folder.isOpen()) return false;
+        if(System.currentTimeMillis() - idleFolder.m_lIdleSince <= HEALTH_CHECK_IDLE_TIME) return true;
+
+        try
+        {
+            // an open IMAPFolder pings the server for the current message count
+            idleFolder.m_folder.getMessageCount();
+
+            return idleFolder.m_folder.isOpen();
+        }
+        catch (Exception e)
+        {
+            return false;
+        }
+    }
+
+
+
+    /**
+     * Gives a borrowed folder back to the pool. In the case the folder was closed in the meantime, e.g. because of a connection error, it will be discarded.
+     *
+     * @param folder the folder, as borrowed with {@link #borrowFolder(URLName, String, ParseContext)}
+     */
+    public void returnFolder(Folder folder)
+    {
+        if(folder == null) return;
+
+        boolean bClose = false;
+        synchronized (this)
+        {
+            BorrowedFolder borrowedFolder = m_hsBorrowedFolders.remove(folder);
+            if(borrowedFolder == null)
+                bClose = true;
+            else
+            {
+                AccountEntry account = borrowedFolder.m_account;
+                account.m_iBorrowCount--;
+                account.m_lLastUseTime = System.currentTimeMillis();
+
+                LinkedList<IdleFolder> llIdleFolders = account.m_hsFolderName2IdleFolders.computeIfAbsent(borrowedFolder.m_strFolderName, strName -> new LinkedList<>());
+                if(!folder.isOpen() || folder.getStore() != account.m_store || llIdleFolders.size() >= m_iMaxIdleFoldersPerFolder)
+                {
+                    bClose = true;
+                    account.m_iOpenFolderCount--;
+                }
+                else
+                    llIdleFolders.addFirst(new IdleFolder((IMAPFolder) folder));
+
+                if(llIdleFolders.isEmpty()) account.m_hsFolderName2IdleFolders.remove(borrowedFolder.m_strFolderName);
+
+                // threads waiting for a free connection can take this one now
+                notifyAll();
+            }
+        }
+
+        if(bClose) closeQuietly(folder);
+    }
+
+
+
+    /**
+     * Gives a borrowed store back to the pool.
+     *
+     * @param store the store, as borrowed with {@link #borrowStore(URLName, ParseContext)}
+     */
+    public void returnStore(Store store)
+    {
+        if(store == null) return;
+
+        synchronized (this)
+        {
+            AccountEntry account = m_hsStore2Account.get(store);
+            if(account == null) return;
+
+            account.m_iBorrowCount--;
+            account.m_lLastUseTime = System.currentTimeMillis();
+        }
+    }
+
+
+
+    /**
+     * Sets the maximum number of idle handles that will be kept open for a single folder. Further handles will be closed when they are given back. The default is 4.
+     *
+     * @param iMaxIdleFoldersPerFolder the maximum number of idle handles per folder
+     *
+     * @return this with the new entry. For convenience.
+     */
+    public ImapConnectionPool setMaxIdleFoldersPerFolder(int iMaxIdleFoldersPerFolder)
+    {
+        m_iMaxIdleFoldersPerFolder = Math.max(iMaxIdleFoldersPerFolder, 0);
+
+        return this;
+    }
+
+
+
+    /**
+     * Sets the maximum time a thread waits for a free connection in the case all connections of an account are in use (see
+     * {@link ImapCrawlerContext#setMaxConnectionsPerAccount(int)}). After this, borrowing a folder fails with a MessagingException. The default is 5 minutes.
+     *
+     * @param lMaxWaitTime the maximum waiting time in milliseconds
+     *
+     * @return this with the new entry. For convenience.
+     */
+    public synchronized ImapConnectionPool setMaxWaitTime(long lMaxWaitTime)
+    {
+        m_lMaxWaitTime = Math.max(lMaxWaitTime, 0);
+
+        return this;
+    }
+
+
+
+    /**
+     * Sets the time after which idle connections will be closed, in milliseconds. The default is 60 seconds.
+     *
+     * @param lMaxIdleTime the maximum idle time in milliseconds
+     *
+     * @return this with the new entry. For convenience.
+     */
+    public synchronized ImapConnectionPool setMaxIdleTime(long lMaxIdleTime)
+    {
+        m_lMaxIdleTime = Math.max(lMaxIdleTime, 0);
+
+        // restart with the new interval
+        if(m_evictionExecutor != null)
+        {
+            m_evictionExecutor.shutdown();
+            m_evictionExecutor = null;
+            startEviction();
+        }
+
+        return this;
+    }
+
+
+
+    /**
+     * Starts the background eviction of idle connections, in the case it is not running yet. Must be invoked while holding the lock of the pool.
+     */
+    protected void startEviction()
+    {
+        if(m_evictionExecutor != null) return;
+
+        m_evictionExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "leech-imap-pool-eviction");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long lInterval = Math.max(m_lMaxIdleTime / 2, 1000);
+        m_evictionExecutor.scheduleWithFixedDelay(() -> evict(m_lMaxIdleTime), lInterval, lInterval, TimeUnit.MILLISECONDS);
+    }
+
+}
@@ -0,0 +1,201 @@
+/*
+ * Leech - crawling capabilities for Apache Tika
+ *
+ * Copyright (C) 2012 DFKI GmbH, Author: Christian Reuschling
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contact us by mail: christian.reuschling@dfki.de
+ */
+
+package de.dfki.km.leech.io;
+
+
+
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.protocol.Status;
+
+import javax.mail.MessagingException;
+
+
+
+/**
+ * The synchronization state of an imap folder, as reported by the STATUS command: UIDVALIDITY, UIDNEXT, the number of messages and - in the case the server supports
+ * CONDSTORE (RFC 7162) - HIGHESTMODSEQ. The state is used as content fingerprint of imap folders inside the incremental crawling history. Thus, a folder whose state
+ * did not change since the last crawl is recognized as unmodified, and its messages don't have to be enumerated again. With the former state, the crawler can also
+ * restrict the enumeration to the messages that were appended since the last crawl.
+ */
+public class ImapFolderState
+{
+
+    protected static final String HIGHESTMODSEQ = "HIGHESTMODSEQ";
+
+    protected static final String MESSAGES = "MESSAGES";
+
+    protected static final String UIDNEXT = "UIDNEXT";
+
+    protected static final String UIDVALIDITY = "UIDVALIDITY";
+
+
+
+    /**
+     * Gets the current state of a folder from the server, with a single STATUS command. The folder has not to be opened.
+     *
+     * @param folder the folder. Must be able to hold messages
+     *
+     * @return the current state of the folder
+     *
+     * @throws MessagingException
+     */
+    public static ImapFolderState fetch(final IMAPFolder folder) throws MessagingException
+    {
+        boolean bCondStore = ((IMAPStore) folder.getStore()).hasCapability("CONDSTORE");
+
+        final String[] straItems =
+                bCondStore ? new String[] { MESSAGES, UIDNEXT, UIDVALIDITY, HIGHESTMODSEQ } : new String[] { MESSAGES, UIDNEXT, UIDVALIDITY };
+
+        Status status = (Status) folder.doCommand(protocol -> protocol.status(folder.getFullName(), straItems));
+
+
+        return new ImapFolderState(status.uidvalidity, status.uidnext, status.total, bCondStore ? status.highestmodseq : -1);
+    }
+
+
+
+    /**
+     * Creates the state out of a content fingerprint, as created by {@link #toString()}
+     *
+     * @param strFingerprint the content fingerprint of the folder. Can be null
+     *
+     * @return the state, or null in the case the fingerprint is not a folder state (e.g. because it was created by an older version)
+     */
+    public static ImapFolderState fromFingerprint(String strFingerprint)
+    {
+        if(strFingerprint == null || !strFingerprint.startsWith(UIDVALIDITY + " ")) return null;
+
+        String[] straTokens = strFingerprint.split(" ");
+        if(straTokens.length % 2 != 0) return null;
+
+        long lUidValidity = -1;
+        long lUidNext = -1;
+        int iMessageCount = -1;
+        long lHighestModSeq = -1;
+
+        try
+        {
+            for (int i = 0; i < straTokens.length; i += 2)
+            {
+                long lValue = Long.parseLong(straTokens[i + 1]);
+
+                if(UIDVALIDITY.equals(straTokens[i]))
+                    lUidValidity = lValue;
+                else if(UIDNEXT.equals(straTokens[i]))
+                    lUidNext = lValue;
+                else if(MESSAGES.equals(straTokens[i]))
+                    iMessageCount = (int) lValue;
+                else if(HIGHESTMODSEQ.equals(straTokens[i])) lHighestModSeq = lValue;
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            return null;
+        }
+
+        if(lUidValidity < 0 || lUidNext < 0 || iMessageCount < 0) return null;
+
+
+        return new ImapFolderState(lUidValidity, lUidNext, iMessageCount, lHighestModSeq);
+    }
+
+
+
+    protected final int m_iMessageCount;
+
+    protected final long m_lHighestModSeq;
+
+    protected final long m_lUidNext;
+
+    protected final long m_lUidValidity;
+
+
+
+    public ImapFolderState(long lUidValidity, long lUidNext, int iMessageCount, long lHighestModSeq)
+    {
+        m_lUidValidity = lUidValidity;
+        m_lUidNext = lUidNext;
+        m_iMessageCount = iMessageCount;
+        m_lHighestModSeq = lHighestModSeq;
+    }
+
+
+
+    /**
+     * Gets the highest mod-sequence of the folder
+     *
+     * @return the HIGHESTMODSEQ value, -1 in the case the server does not support CONDSTORE
+     */
+    public long getHighestModSeq()
+    {
+        return m_lHighestModSeq;
+    }
+
+
+
+    /**
+     * Gets the number of messages inside the folder, including the ones that are flagged as deleted but not expunged yet
+     *
+     * @return the number of messages
+     */
+    public int getMessageCount()
+    {
+        return m_iMessageCount;
+    }
+
+
+
+    /**
+     * Gets the UID the next message appended to the folder will get (at least). All messages with a UID greater or equal were appended after this state
+     *
+     * @return the UIDNEXT value
+     */
+    public long getUidNext()
+    {
+        return m_lUidNext;
+    }
+
+
+
+    /**
+     * Gets the UIDVALIDITY value of the folder. In the case this value changes, all UIDs of the former state are invalid
+     *
+     * @return the UIDVALIDITY value
+     */
+    public long getUidValidity()
+    {
+        return m_lUidValidity;
+    }
+
+
+
+    /**
+     * Gets the state as content fingerprint, e.g. 'UIDVALIDITY 4711 UIDNEXT 201 MESSAGES 200 HIGHESTMODSEQ 201'
+     *
+     * @return the state as String, readable with {@link #fromFingerprint(String)}
+     */
+    @Override
+    public String toString()
+    {
+        String strFingerprint = UIDVALIDITY + " " + m_lUidValidity + " " + UIDNEXT + " " + m_lUidNext + " " + MESSAGES + " " + m_iMessageCount;
+        if(m_lHighestModSeq >= 0) strFingerprint += " " + HIGHESTMODSEQ + " " + m_lHighestModSeq;
+
+        return strFingerprint;
+    }
+
+}
@@ -22,19 +22,16 @@ import com.sun.mail.imap.IMAPFolder;
 import com.sun.mail.imap.IMAPMessage;
 import de.dfki.km.leech.detect.DatasourceMediaTypes;
 import de.dfki.km.leech.metadata.LeechMetadata;
-import de.dfki.km.leech.parser.ImapCrawlerParser;
 import de.dfki.km.leech.parser.incremental.IncrementalCrawlingHistory;
 import de.dfki.km.leech.util.UrlUtil;
 import org.apache.tika.io.TikaInputStream;
 import org.apache.tika.metadata.Metadata;
 import org.apache.tika.parser.ParseContext;
-import org.slf4j.LoggerFactory;
 
 import javax.mail.*;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -82,9 +79,10 @@ public class ImapURLStreamProvider extends URLStreamProvider
         }
 
 
-        Store mailStore = ImapCrawlerParser.connect2Server(url2getMetadata, parseContext);
+        ImapConnectionPool connectionPool = ImapConnectionPool.getPool(parseContext);
+        Store mailStore = connectionPool.borrowStore(url2getMetadata, parseContext);
+        IMAPFolder folder = null;
         URLName urlNameWithPassword = url2getMetadata;
-        IMAPFolder folder = (IMAPFolder) mailStore.getFolder(urlNameWithPassword.getFile());
 
 
 
@@ -102,29 +100,29 @@ public class ImapURLStreamProvider extends URLStreamProvider
             // folder+messageId, damit sich die uid auch zwischen den crawls ändern darf
             String strEntityId = null;
             String strDataEntityContentFingerprint = null;
-            if(folder != null && folder.exists())
+            String strUID = UrlUtil.extractUID(url2getMetadata);
+            IMAPFolder folder4Url = strUID == null ? (IMAPFolder) mailStore.getFolder(urlNameWithPassword.getFile()) : null;
+            if(folder4Url != null && folder4Url.exists())
             {
-                // das Teil ist ein Folder
+                // das Teil ist ein Folder. Als fingerprint nehmen wir dessen Zustand (UIDNEXT, etc.) - ist der unverändert, dann sind es auch die messages
                 strEntityId = url2getMetadata.getFile();
-                strDataEntityContentFingerprint = strEntityId;
+                if((folder4Url.getType() & Folder.HOLDS_MESSAGES) == Folder.HOLDS_MESSAGES)
+                    strDataEntityContentFingerprint = ImapFolderState.fetch(folder4Url).toString();
+                else
+                    strDataEntityContentFingerprint = strEntityId;
 
                 metadata2fill.set("Content-Type", DatasourceMediaTypes.IMAPFOLDER.toString());
             }
-            else if(folder != null)
+            else
             {
                 // ist das Teil eine message? Wir popeln mal den folder und die uid raus
-                if(folder.isOpen()) folder.close(false);
+                if(strUID == null) throw new FileNotFoundException("no message uid found");
 
                 String strFolder = UrlUtil.extractFolder(url2getMetadata);
-                folder = (IMAPFolder) mailStore.getFolder(strFolder);
-
-                if(!folder.isOpen()) folder.open(Folder.READ_ONLY);
-
-
-                String strUID = UrlUtil.extractUID(url2getMetadata);
-                if(strUID == null) throw new FileNotFoundException("no message uid found");
+                folder = connectionPool.borrowFolder(url2getMetadata, strFolder, parseContext);
 
                 Message message = folder.getMessageByUID(Long.valueOf(strUID));
+                if(message == null) throw new FileNotFoundException("no message with uid " + strUID + " in folder " + strFolder);
 
                 String strMessageId = null;
                 try
@@ -173,80 +171,56 @@ public class ImapURLStreamProvider extends URLStreamProvider
         }
         finally
         {
-
-            if(folder != null && folder.isOpen()) folder.close(false);
-            if(mailStore != null && mailStore.isConnected()) mailStore.close();
+            connectionPool.returnFolder(folder);
+            connectionPool.returnStore(mailStore);
         }
 
     }
 
 
-    static HashMap<String, Store> m_hsHost2Store = new HashMap<String, Store>();
-
-
 
     @Override
     public TikaInputStream getStream(final URLName url2getStream, final Metadata metadata, final ParseContext parseContext) throws Exception
     {
 
+        final ImapConnectionPool connectionPool = ImapConnectionPool.getPool(parseContext);
+
         return TikaInputStream.get(new ShiftInitInputStream()
         {
             IMAPFolder m_folderOfMessage;
 
-            boolean m_bCloseStore = false;
-
 
 
             @Override
             protected InputStream initBeforeFirstStreamDataAccess() throws Exception
             {
+                String strUID = UrlUtil.extractUID(url2getStream);
 
-                Store mailStore = m_hsHost2Store.get(url2getStream.getHost() + " usr: " + url2getStream.getUsername());
-                if(mailStore == null)
-                {
-                    mailStore = ImapCrawlerParser.connect2Server(url2getStream, parseContext);
-                    m_hsHost2Store.put(url2getStream.getHost() + " usr: " + url2getStream.getUsername(), mailStore);
-                    if(metadata.get("currentCrawlingDepth") == null || "0".equals(metadata.get("currentCrawlingDepth"))) m_bCloseStore = true;
-                }
-                Folder folder2Check = mailStore.getFolder(url2getStream.getFile());
-
-                try
+                if(strUID == null)
                 {
-
-                    if(folder2Check != null && folder2Check.exists())
+                    // das Teil ist ein Folder
+                    Store mailStore = connectionPool.borrowStore(url2getStream, parseContext);
+                    try
                     {
-                        // das Teil ist ein Folder
-                        return TikaInputStream.get("leech sucks - hopefully :)".getBytes("UTF-8"));
+                        if(mailStore.getFolder(url2getStream.getFile()).exists()) return TikaInputStream.get("leech sucks - hopefully :)".getBytes("UTF-8"));
+
+                        return null;
                     }
-                    else if(folder2Check != null)
+                    finally
                     {
-                        // ist das Teil eine message? Wir popeln mal den folder und die uid raus
-                        String strFolder = UrlUtil.extractFolder(url2getStream);
-                        m_folderOfMessage = (IMAPFolder) mailStore.getFolder(strFolder);
-
-                        if(!m_folderOfMessage.isOpen()) m_folderOfMessage.open(Folder.READ_ONLY);
-
-                        String strUID = UrlUtil.extractUID(url2getStream);
-                        if(strUID == null) throw new FileNotFoundException("no message uid found");
-
-
-                        final IMAPMessage message = (IMAPMessage) m_folderOfMessage.getMessageByUID(Long.valueOf(strUID));
-
-                        return message.getMimeStream();
+                        connectionPool.returnStore(mailStore);
                     }
-
-                    return null;
-
-
-                }
-                finally
-                {
-                    if(folder2Check.isOpen()) folder2Check.close(false);
                 }
 
 
+                // eine message - der folder bleibt ausgeliehen, bis der stream geschlossen wird
+                String strFolder = UrlUtil.extractFolder(url2getStream);
+                m_folderOfMessage = connectionPool.borrowFolder(url2getStream, strFolder, parseContext);
 
+                final IMAPMessage message = (IMAPMessage) m_folderOfMessage.getMessageByUID(Long.valueOf(strUID));
+                if(message == null) throw new FileNotFoundException("no message with uid " + strUID + " in folder " + strFolder);
 
+                return message.getMimeStream();
             }
 
 
@@ -256,23 +230,12 @@ public class ImapURLStreamProvider extends URLStreamProvider
             {
                 try
                 {
-
                     super.close();
-
-                    if(m_folderOfMessage != null && m_folderOfMessage.isOpen()) m_folderOfMessage.close(false);
-
-                    Store mailStore = m_hsHost2Store.get(url2getStream.getHost() + " usr: " + url2getStream.getUsername());
-
-                    if(mailStore != null && mailStore.isConnected() && m_bCloseStore)
-                    {
-                        mailStore.close();
-                        m_hsHost2Store.remove(url2getStream.getHost() + " usr: " + url2getStream.getUsername());
-                    }
-
                 }
-                catch (MessagingException e)
+                finally
                 {
-                    LoggerFactory.getLogger(ImapURLStreamProvider.class.getName()).error("Error", e);
+                    connectionPool.returnFolder(m_folderOfMessage);
+                    m_folderOfMessage = null;
                 }
             }
         });
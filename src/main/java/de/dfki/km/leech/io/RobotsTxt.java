@@ -0,0 +1,296 @@
+/*
+ * Leech - crawling capabilities for Apache Tika
+ *
+ * Copyright (C) 2012 DFKI GmbH, Author: Christian Reuschling
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contact us by mail: christian.reuschling@dfki.de
+ */
+
+package de.dfki.km.leech.io;
+
+
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+
+
+/**
+ * The rules of a robots.txt file (RFC 9309) that apply for a specific user agent. The rules of the group(s) that match the product token of the user agent will be
+ * used, or of the '*' group(s) in the case there is no matching group. The longest matching Allow/Disallow rule wins, in the case of a tie the Allow rule. Patterns
+ * can contain the wildcards '*' and '$'. Additionally, the non-standard Crawl-delay directive of the matching group will be considered.
+ */
+public class RobotsTxt
+{
+
+    /**
+     * A single Allow or Disallow rule
+     */
+    protected static class Rule
+    {
+        protected final boolean m_bAllow;
+
+        protected final String m_strPattern;
+
+
+
+        protected Rule(String strPattern, boolean bAllow)
+        {
+            m_strPattern = strPattern;
+            m_bAllow = bAllow;
+        }
+
+
+
+        /**
+         * Matches the pattern against a path, with '*' matching any sequence of characters and '$' at the end of the pattern matching the end of the path.
+         *
+         * @param strPath the path (with query) to match
+         *
+         * @return true in the case the pattern matches the beginning of the path (or the whole path, in the case of a trailing '$')
+         */
+        protected boolean matches(String strPath)
+        {
+            // without a trailing '$', the pattern only has to match the beginning of the path - the same as a trailing '*'
+            String strPattern = m_strPattern.endsWith("$") ? m_strPattern.substring(0, m_strPattern.length() - 1) : m_strPattern + "*";
+
+            int iPatternIndex = 0;
+            int iPathIndex = 0;
+            int iLastWildcardIndex = -1;
+            int iPathIndex4LastWildcard = 0;
+
+            while (iPathIndex < strPath.length())
+            {
+                if(iPatternIndex < strPattern.length() && strPattern.charAt(iPatternIndex) == '*')
+                {
+                    iLastWildcardIndex = iPatternIndex++;
+                    iPathIndex4LastWildcard = iPathIndex;
+                }
+                else if(iPatternIndex < strPattern.length() && strPattern.charAt(iPatternIndex) == strPath.charAt(iPathIndex))
+                {
+                    iPatternIndex++;
+                    iPathIndex++;
+                }
+                else if(iLastWildcardIndex >= 0)
+                {
+                    // the last wildcard swallows one more character
+                    iPatternIndex = iLastWildcardIndex + 1;
+                    iPathIndex = ++iPathIndex4LastWildcard;
+                }
+                else
+                    return false;
+            }
+
+            while (iPatternIndex < strPattern.length() && strPattern.charAt(iPatternIndex) == '*')
+                iPatternIndex++;
+
+            return iPatternIndex == strPattern.length();
+        }
+    }
+
+
+
+    /**
+     * The rules in the case everything is allowed, e.g. because there is no robots.txt file
+     */
+    public static final RobotsTxt ALLOW_ALL = new RobotsTxt(new ArrayList<>(), 0);
+
+    /**
+     * The rules in the case everything is disallowed, e.g. because the robots.txt file was unreachable because of a server error
+     */
+    public static final RobotsTxt DISALLOW_ALL = new RobotsTxt(List.of(new Rule("/", false)), 0);
+
+
+
+    /**
+     * Gets the product token of a user agent string, e.g. 'leech' for 'Leech/1.0 (+http://...)'
+     *
+     * @param strUserAgent the user agent string
+     *
+     * @return the product token, lower case. '*' in the case the user agent is null or empty
+     */
+    protected static String getProductToken(String strUserAgent)
+    {
+        if(strUserAgent == null || strUserAgent.trim().isEmpty()) return "*";
+
+        String strToken = strUserAgent.trim().split("[/\\s]", 2)[0];
+
+        return strToken.toLowerCase(Locale.ROOT);
+    }
+
+
+
+    /**
+     * Parses a robots.txt file and extracts the rules that apply for the given user agent.
+     *
+     * @param strContent   the content of the robots.txt file
+     * @param strUserAgent the user agent of the crawler. Only the product token will be considered, e.g. 'Leech' for 'Leech/1.0'
+     *
+     * @return the rules for this user agent
+     */
+    public static RobotsTxt parse(String strContent, String strUserAgent)
+    {
+        String strProductToken = getProductToken(strUserAgent);
+
+        List<Rule> lMatchingRules = new ArrayList<>();
+        List<Rule> lWildcardRules = new ArrayList<>();
+        boolean bMatchingGroupFound = false;
+        long lMatchingCrawlDelay = 0;
+        long lWildcardCrawlDelay = 0;
+
+        // the state of the current group
+        boolean bInUserAgentLines = false;
+        boolean bGroupMatches = false;
+        boolean bGroupIsWildcard = false;
+
+        for (String strLine : strContent.split("\r\n|\r|\n"))
+        {
+            int iCommentIndex = strLine.indexOf('#');
+            if(iCommentIndex >= 0) strLine = strLine.substring(0, iCommentIndex);
+
+            int iColonIndex = strLine.indexOf(':');
+            if(iColonIndex < 0) continue;
+
+            String strKey = strLine.substring(0, iColonIndex).trim().toLowerCase(Locale.ROOT);
+            String strValue = strLine.substring(iColonIndex + 1).trim();
+
+            if("user-agent".equals(strKey))
+            {
+                // a user-agent line after rules starts a new group
+                if(!bInUserAgentLines)
+                {
+                    bGroupMatches = false;
+                    bGroupIsWildcard = false;
+                }
+                bInUserAgentLines = true;
+
+                String strAgent = strValue.toLowerCase(Locale.ROOT);
+                if("*".equals(strAgent))
+                    bGroupIsWildcard = true;
+                else if(!strAgent.isEmpty() && strProductToken.equals(strAgent))
+                {
+                    bGroupMatches = true;
+                    bMatchingGroupFound = true;
+                }
+
+                continue;
+            }
+
+
+            if(!"allow".equals(strKey) && !"disallow".equals(strKey) && !"crawl-delay".equals(strKey)) continue;
+
+            bInUserAgentLines = false;
+            if(!bGroupMatches && !bGroupIsWildcard) continue;
+
+            if("crawl-delay".equals(strKey))
+            {
+                try
+                {
+                    long lCrawlDelay = (long) (Double.parseDouble(strValue) * 1000);
+                    if(bGroupMatches) lMatchingCrawlDelay = Math.max(lMatchingCrawlDelay, lCrawlDelay);
+                    if(bGroupIsWildcard) lWildcardCrawlDelay = Math.max(lWildcardCrawlDelay, lCrawlDelay);
+                }
+                catch (NumberFormatException e)
+                {
+                    // ignore the line
+                }
+
+                continue;
+            }
+
+            // an empty disallow means 'everything allowed' - same as no rule
+            if(strValue.isEmpty()) continue;
+
+            Rule rule = new Rule(strValue, "allow".equals(strKey));
+            if(bGroupMatches) lMatchingRules.add(rule);
+            if(bGroupIsWildcard) lWildcardRules.add(rule);
+        }
+
+
+        if(bMatchingGroupFound) return new RobotsTxt(lMatchingRules, lMatchingCrawlDelay);
+
+        return new RobotsTxt(lWildcardRules, lWildcardCrawlDelay);
+    }
+
+
+
+
+    protected final long m_lCrawlDelay;
+
+    protected final List<Rule> m_lRules;
+
+
+
+    protected RobotsTxt(List<Rule> lRules, long lCrawlDelay)
+    {
+        m_lRules = lRules;
+        m_lCrawlDelay = Math.max(lCrawlDelay, 0);
+    }
+
+
+
+    /**
+     * Gets the crawl delay for the host, as specified with the Crawl-delay directive
+     *
+     * @return the crawl delay in milliseconds, 0 in the case there is none
+     */
+    public long getCrawlDelay()
+    {
+        return m_lCrawlDelay;
+    }
+
+
+
+    /**
+     * Checks whether an url is allowed to be crawled. The url must be on the host this robots.txt file belongs to
+     *
+     * @param url the url to check
+     *
+     * @return true in the case the url can be crawled, false otherwise
+     */
+    public boolean isAllowed(URL url)
+    {
+        String strPath = url.getFile();
+        if(strPath == null || strPath.isEmpty()) strPath = "/";
+
+        return isAllowed(strPath);
+    }
+
+
+
+    /**
+     * Checks whether a path is allowed to be crawled.
+     *
+     * @param strPath the path, with the query part
+     *
+     * @return true in the case the path can be crawled, false otherwise
+     */
+    public boolean isAllowed(String strPath)
+    {
+        // the robots.txt file itself is always allowed
+        if("/robots.txt".equals(strPath)) return true;
+
+        Rule bestRule = null;
+        for (Rule rule : m_lRules)
+        {
+            if(!rule.matches(strPath)) continue;
+
+            if(bestRule == null || rule.m_strPattern.length() > bestRule.m_strPattern.length()
+                    || (rule.m_strPattern.length() == bestRule.m_strPattern.length() && rule.m_bAllow))
+                bestRule = rule;
+        }
+
+        return bestRule == null || bestRule.m_bAllow;
+    }
+
+}
@@ -0,0 +1,360 @@
+/*
+ * Leech - crawling capabilities for Apache Tika
+ *
+ * Copyright (C) 2012 DFKI GmbH, Author: Christian Reuschling
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contact us by mail: christian.reuschling@dfki.de
+ */
+
+package de.dfki.km.leech.io;
+
+
+
+import de.dfki.km.leech.config.CrawlerContext;
+import de.dfki.km.leech.parser.incremental.IncrementalCrawlingHistory;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+
+/**
+ * Fetches and caches the robots.txt files of the crawled hosts, as used by the crawlers if {@link CrawlerContext#setObeyRobotsTxt(Boolean)} is enabled. The
+ * robots.txt file of a host will be fetched only once, and the rules are cached in memory for the configured time to live (see
+ * {@link CrawlerContext#setRobotsTxtTimeToLive(long)}). In the case the crawl has an incremental crawling history, the files will be stored there too - thus the next
+ * crawl has not to fetch them again while they are not outdated.<br>
+ * <br>
+ * As of RFC 9309, a missing robots.txt file (4xx) means that everything is allowed. This is also the case for redirects that can not be resolved, e.g. because of
+ * more than {@link #MAX_REDIRECTIONS} hops. In the case the file is unreachable (5xx, network errors), everything is disallowed - the file will be requested again
+ * after a few minutes in this case. {@link #isAllowed(URL, CrawlerContext)} reports this as fetch failure, not as disallowed url.
+ */
+public class RobotsTxtCache
+{
+
+    /**
+     * The cached rules for a host
+     */
+    protected static class CacheEntry
+    {
+        protected final long m_lExpirationTime;
+
+        protected final RobotsTxt m_robotsTxt;
+
+        /**
+         * The reason in the case the robots.txt file was unreachable, null otherwise
+         */
+        protected final String m_strFetchError;
+
+
+
+        protected CacheEntry(RobotsTxt robotsTxt, long lExpirationTime)
+        {
+            this(robotsTxt, lExpirationTime, null);
+        }
+
+
+
+        protected CacheEntry(RobotsTxt robotsTxt, long lExpirationTime, String strFetchError)
+        {
+            m_robotsTxt = robotsTxt;
+            m_lExpirationTime = lExpirationTime;
+            m_strFetchError = strFetchError;
+        }
+    }
+
+
+
+    /**
+     * The time to live for the cached rules in the case the robots.txt file was unreachable
+     */
+    protected static final long ERROR_TIME_TO_LIVE = 5 * 60 * 1000;
+
+    /**
+     * The maximum size of a robots.txt file that will be read. Rules behind are ignored
+     */
+    protected static final int MAX_ROBOTS_TXT_SIZE = 500 * 1024;
+
+    /**
+     * The maximum number of redirects that will be followed for a robots.txt file. RFC 9309 demands at least 5
+     */
+    protected static final int MAX_REDIRECTIONS = 5;
+
+
+
+    protected final Map<String, CacheEntry> m_hsHost2CacheEntry = new ConcurrentHashMap<>();
+
+    protected final Map<String, Object> m_hsHost2Lock = new ConcurrentHashMap<>();
+
+
+
+    /**
+     * Gets the key for the robots.txt file of an url, i.e. protocol, host and port
+     *
+     * @param url the url
+     *
+     * @return the key, e.g. 'https://www.dfki.de:443'
+     */
+    protected static String getHostKey(URL url)
+    {
+        int iPort = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+
+        return url.getProtocol().toLowerCase() + "://" + url.getHost().toLowerCase() + ":" + iPort;
+    }
+
+
+
+    /**
+     * Gets the crawl delay of the host of an url, as specified with the Crawl-delay directive inside its robots.txt file. The file will be fetched if necessary.
+     *
+     * @param url            the url
+     * @param crawlerContext the crawler context
+     *
+     * @return the crawl delay in milliseconds, 0 in the case there is none
+     */
+    public long getCrawlDelay(URL url, CrawlerContext crawlerContext)
+    {
+        return getRobotsTxt(url, crawlerContext).getCrawlDelay();
+    }
+
+
+
+    /**
+     * Gets the robots.txt rules for the host of an url. The file will be fetched if it is not cached yet or outdated. Only one thread fetches the file of a host, other
+     * threads asking for the same host wait for it.
+     *
+     * @param url            an url on the host
+     * @param crawlerContext the crawler context, with the user agent, the time to live and potentially the history
+     *
+     * @return the rules for the host. For non-http urls, {@link RobotsTxt#ALLOW_ALL}
+     */
+    public RobotsTxt getRobotsTxt(URL url, CrawlerContext crawlerContext)
+    {
+        String strProtocol = url.getProtocol().toLowerCase();
+        if(!"http".equals(strProtocol) && !"https".equals(strProtocol)) return RobotsTxt.ALLOW_ALL;
+
+        return getCacheEntry(url, crawlerContext).m_robotsTxt;
+    }
+
+
+
+    /**
+     * Gets the cache entry for the host of an url. The robots.txt file will be fetched if it is not cached yet or outdated. Only one thread fetches the file of a
+     * host, other threads asking for the same host wait for it.
+     *
+     * @param url            an url on the host, must be a http(s) url
+     * @param crawlerContext the crawler context
+     *
+     * @return the cache entry for the host
+     */
+    protected CacheEntry getCacheEntry(URL url, CrawlerContext crawlerContext)
+    {
+        String strHostKey = getHostKey(url);
+
+        CacheEntry cacheEntry = m_hsHost2CacheEntry.get(strHostKey);
+        if(cacheEntry != null && cacheEntry.m_lExpirationTime > System.currentTimeMillis()) return cacheEntry;
+
+
+        synchronized (m_hsHost2Lock.computeIfAbsent(strHostKey, strKey -> new Object()))
+        {
+            // maybe another thread fetched it in the meantime
+            cacheEntry = m_hsHost2CacheEntry.get(strHostKey);
+            if(cacheEntry != null && cacheEntry.m_lExpirationTime > System.currentTimeMillis()) return cacheEntry;
+
+            cacheEntry = loadRobotsTxt(strHostKey, crawlerContext);
+            m_hsHost2CacheEntry.put(strHostKey, cacheEntry);
+
+            return cacheEntry;
+        }
+    }
+
+
+
+    /**
+     * Checks whether an url is allowed to be crawled, according to the robots.txt file of its host. The file will be fetched if necessary.
+     *
+     * @param url            the url to check
+     * @param crawlerContext the crawler context
+     *
+     * @return true in the case the url can be crawled, false otherwise
+     *
+     * @throws IOException in the case the robots.txt file of the host is unreachable (5xx, network errors). It will be requested again after a few minutes
+     */
+    public boolean isAllowed(URL url, CrawlerContext crawlerContext) throws IOException
+    {
+        String strProtocol = url.getProtocol().toLowerCase();
+        if(!"http".equals(strProtocol) && !"https".equals(strProtocol)) return true;
+
+        CacheEntry cacheEntry = getCacheEntry(url, crawlerContext);
+        if(cacheEntry.m_strFetchError != null)
+            throw new IOException("Could not fetch the robots.txt file for " + url + " (" + cacheEntry.m_strFetchError + ")");
+
+        return cacheEntry.m_robotsTxt.isAllowed(url);
+    }
+
+
+
+    /**
+     * Gets the rules of a host out of the history, or fetches them from the host in the case they are not stored or outdated.
+     *
+     * @param strHostKey     the host key, as created by {@link #getHostKey(URL)}
+     * @param crawlerContext the crawler context
+     *
+     * @return the cache entry for the host
+     */
+    protected CacheEntry loadRobotsTxt(String strHostKey, CrawlerContext crawlerContext)
+    {
+        long lTimeToLive = crawlerContext.getRobotsTxtTimeToLive();
+        long lNow = System.currentTimeMillis();
+
+        IncrementalCrawlingHistory history = crawlerContext.getIncrementalCrawlingHistory();
+        if(history != null && !history.isOpen()) history = null;
+
+        if(history != null)
+        {
+            Map.Entry<Long, String> fetchTime2Content = history.getRobotsTxt(strHostKey);
+            if(fetchTime2Content != null && fetchTime2Content.getKey() + lTimeToLive > lNow)
+                return new CacheEntry(RobotsTxt.parse(fetchTime2Content.getValue(), crawlerContext.getUserAgent()), fetchTime2Content.getKey() + lTimeToLive);
+        }
+
+
+        String strContent;
+        try
+        {
+            strContent = fetchRobotsTxt(new URL(strHostKey + "/robots.txt"), crawlerContext);
+        }
+        catch (IOException e)
+        {
+            LoggerFactory.getLogger(RobotsTxtCache.class.getName())
+                    .warn("Could not fetch robots.txt from " + strHostKey + ". Will not crawl this host for now. (" + e.getMessage() + ")");
+
+            return new CacheEntry(RobotsTxt.DISALLOW_ALL, lNow + Math.min(lTimeToLive, ERROR_TIME_TO_LIVE), String.valueOf(e.getMessage()));
+        }
+
+        if(history != null) history.putRobotsTxt(strHostKey, strContent, lNow);
+
+        return new CacheEntry(RobotsTxt.parse(strContent, crawlerContext.getUserAgent()), lNow + lTimeToLive);
+    }
+
+
+
+    /**
+     * Fetches a robots.txt file. Redirects will be followed by hand up to {@link #MAX_REDIRECTIONS} hops, also to another protocol (e.g. from http to https), which
+     * a plain HttpURLConnection does not do.
+     *
+     * @param url            the url of the robots.txt file
+     * @param crawlerContext the crawler context
+     *
+     * @return the content of the file. An empty String in the case there is no such file (4xx) or the redirects can not be resolved, which means that everything is
+     *         allowed
+     *
+     * @throws IOException in the case the file is unreachable, e.g. because of a server error
+     */
+    protected String fetchRobotsTxt(URL url, CrawlerContext crawlerContext) throws IOException
+    {
+        URL currentUrl = url;
+
+        for (int iRedirections = 0; iRedirections <= MAX_REDIRECTIONS; iRedirections++)
+        {
+            HttpURLConnection connection = (HttpURLConnection) HttpURLStreamProvider.openConnection(currentUrl, crawlerContext);
+            connection.setInstanceFollowRedirects(false);
+
+            try
+            {
+                int iResponseCode = connection.getResponseCode();
+
+                if(iResponseCode == HttpURLConnection.HTTP_OK)
+                {
+                    try (InputStream stream = HttpURLStreamProvider.getDecodedInputStream(connection))
+                    {
+                        return new String(stream.readNBytes(MAX_ROBOTS_TXT_SIZE), StandardCharsets.UTF_8);
+                    }
+                }
+
+
+                InputStream errorStream = connection.getErrorStream();
+                if(errorStream != null) errorStream.close();
+
+                if(isRedirected(iResponseCode))
+                {
+                    currentUrl = getRedirectedUrl(currentUrl, connection);
+
+                    if(currentUrl == null)
+                    {
+                        LoggerFactory.getLogger(RobotsTxtCache.class.getName()).debug("Unresolvable redirect for robots.txt " + url + ", will treat it as unavailable");
+                        return "";
+                    }
+
+                    continue;
+                }
+
+                if(iResponseCode >= 400 && iResponseCode < 500) return "";
+
+                throw new IOException("Server returned HTTP response code: " + iResponseCode + " for URL: " + currentUrl);
+            }
+            finally
+            {
+                HttpURLStreamProvider.closeQuietly(connection);
+            }
+        }
+
+
+        // as of RFC 9309, a robots.txt that can not be reached after (at least) 5 redirects is unavailable
+        LoggerFactory.getLogger(RobotsTxtCache.class.getName()).debug("Too many redirects for robots.txt " + url + ", will treat it as unavailable");
+
+        return "";
+    }
+
+
+
+    /**
+     * Gets the target of a redirect response
+     *
+     * @param url        the url of the redirected request
+     * @param connection the connection with the redirect response
+     *
+     * @return the redirect target, or null in the case there is no (valid) Location header or the target is no http(s) url
+     */
+    protected static URL getRedirectedUrl(URL url, HttpURLConnection connection)
+    {
+        String strLocation = connection.getHeaderField("Location");
+        if(strLocation == null) return null;
+
+        try
+        {
+            URL redirectedUrl = new URL(url, strLocation.trim());
+
+            String strProtocol = redirectedUrl.getProtocol().toLowerCase();
+            if(!"http".equals(strProtocol) && !"https".equals(strProtocol)) return null;
+
+            return redirectedUrl;
+        }
+        catch (MalformedURLException e)
+        {
+            return null;
+        }
+    }
+
+
+
+    protected static boolean isRedirected(int iResponseCode)
+    {
+        return iResponseCode == HttpURLConnection.HTTP_MOVED_PERM || iResponseCode == HttpURLConnection.HTTP_MOVED_TEMP || iResponseCode == HttpURLConnection.HTTP_SEE_OTHER
+                || iResponseCode == 307 || iResponseCode == 308;
+    }
+
+}
@@ -0,0 +1,50 @@
+/*
+ * Leech - crawling capabilities for Apache Tika
+ *
+ * Copyright (C) 2012 DFKI GmbH, Author: Christian Reuschling
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contact us by mail: christian.reuschling@dfki.de
+ */
+
+package de.dfki.km.leech.io;
+
+
+
+import de.dfki.km.leech.config.CrawlerContext;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+
+
+
+/**
+ * The default {@link HttpTransport}, based on the JDK {@link HttpURLConnection}. Connection reuse is up to the JDK keep-alive cache (see the system property
+ * 'http.maxConnections'), there is HTTP/1.1 only.
+ */
+public class URLConnectionHttpTransport implements HttpTransport
+{
+
+    @Override
+    public HttpURLConnection openConnection(URL url, CrawlerContext crawlerContext) throws IOException
+    {
+        URLConnection connection = url.openConnection();
+
+        if(!(connection instanceof HttpURLConnection)) throw new IOException("not an http url: " + url);
+
+        connection.setConnectTimeout(crawlerContext.getHttpConnectTimeout());
+        connection.setReadTimeout(crawlerContext.getHttpReadTimeout());
+
+        return (HttpURLConnection) connection;
+    }
+
+}
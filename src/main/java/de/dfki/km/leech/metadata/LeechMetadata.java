@@ -35,6 +35,9 @@ public interface LeechMetadata
     // if there was a redirect, the given origin of this redirect
     public static final String originSource = "originSource";
 
+    // the media type LeechDefaultDetector detected for the current data entity - subsequent detections for the same entity reuse it
+    public static final String detectedMediaType = "leechDetectedMediaType";
+
 
     
 
@@ -19,12 +19,20 @@ package de.dfki.km.leech.parser;
 
 
 import de.dfki.inquisitor.collections.MultiValueHashMap;
+import de.dfki.inquisitor.text.StringUtils;
+import de.dfki.km.leech.Leech;
 import de.dfki.km.leech.config.CrawlerContext;
+import de.dfki.km.leech.io.HttpURLStreamProvider;
+import de.dfki.km.leech.parser.filter.URLFilteringParser.URLFilteringParserContext;
 import de.dfki.km.leech.parser.incremental.IncrementalCrawlingParser;
 import de.dfki.km.leech.sax.DataSinkContentHandler;
+import de.dfki.km.leech.sax.SynchronizedDataSinkContentHandler;
+import de.dfki.km.leech.util.CrawlFrontier;
 import de.dfki.km.leech.util.ExceptionUtils;
+import de.dfki.km.leech.util.SubEntityExecutor;
 import de.dfki.km.leech.util.TikaUtils;
 import org.apache.tika.exception.TikaException;
+import org.apache.tika.io.TemporaryResources;
 import org.apache.tika.io.TikaInputStream;
 import org.apache.tika.metadata.Metadata;
 import org.apache.tika.parser.ParseContext;
@@ -33,8 +41,10 @@ import org.slf4j.LoggerFactory;
 import org.xml.sax.ContentHandler;
 import org.xml.sax.SAXException;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.util.Iterator;
 import java.util.LinkedList;
 
@@ -67,6 +77,26 @@ public abstract class CrawlerParser implements Parser
 
 
 
+    protected volatile Leech m_leech;
+
+
+
+    /**
+     * Creates all state inside the ParseContext that is shared by all crawler invocations of a crawl, in the case it doesn't exist yet. In a parallel crawl, this
+     * will be invoked before the first sub entity is dispatched to another thread. Thus, the ParseContext - which is not thread-safe - will never be modified by the
+     * worker threads, they only find the state there. The state objects itself are thread-safe.
+     *
+     * @param context the ParseContext of the crawl
+     */
+    protected static void createCrawlState(ParseContext context)
+    {
+        if(context.get(URLFilteringParserContext.class) == null) context.set(URLFilteringParserContext.class, new URLFilteringParserContext());
+
+        if(context.get(CrawlFrontier.Slot.class) == null) context.set(CrawlFrontier.Slot.class, new CrawlFrontier.Slot());
+    }
+
+
+
 
 
 
@@ -101,6 +131,28 @@ public abstract class CrawlerParser implements Parser
 
 
 
+    /**
+     * Gets the Leech instance for the recursive calls of this crawler. It will be created lazily with the first invocation, because Leech itself creates all parsers,
+     * including this one. Thread-safe.
+     *
+     * @return the Leech instance of this crawler
+     */
+    protected Leech getLeech()
+    {
+        Leech leech = m_leech;
+        if(leech != null) return leech;
+
+        synchronized (this)
+        {
+            if(m_leech == null) m_leech = new Leech();
+
+            return m_leech;
+        }
+    }
+
+
+
+
 
 
     @Override
@@ -115,7 +167,9 @@ public abstract class CrawlerParser implements Parser
 
         String strSourceURL = metadata.get(Metadata.SOURCE);
         int iCurrentCrawlingDepth = 0;
-        TikaInputStream tmpStream = null;
+        TemporaryResources tmpResources = new TemporaryResources();
+        SubEntityExecutor subEntityExecutor = null;
+        boolean bSubEntityExecutorCreatedHere = false;
 
         try
         {
@@ -130,16 +184,24 @@ public abstract class CrawlerParser implements Parser
 
             String strDataEntityModState = metadata.get(IncrementalCrawlingParser.DATA_ENTITY_MODIFICATION_STATE);
 
+            InputStream stream4subEntities = stream;
+
             if(!IncrementalCrawlingParser.UNMODIFIED.equals(strDataEntityModState))
             {
-                // hier ist es vermutlich besser, auf das tmp-file-Angebot vom TikaStream einzugehen - die Platte wird vermutlich schneller sein als
-                // eine durchschnittliche Internetverbindung.Auch schreibend. Sollte kein File hinter dem stream stecken (z.B. bei einer
-                // http-connection) wird Tika automatisch ein temporäres File erzeugen.
-                tmpStream = TikaInputStream.get((TikaInputStream.get(stream).getPath()));
+                InputStream stream4currentEntity = stream;
+
+                // den Inhalt brauchen wir evtl. zweimal - hier und beim Auslesen der SubEntities (z.B. die Links einer html-Seite). Nur in diesem Fall puffern
+                // wir, kleine Inhalte im Speicher, größere in einem temporären File.
+                if(needsCurrentDataEntityContent())
+                {
+                    InputStream[] streams = createRereadableStreams(stream, crawlerContext.getMaxInMemorySpoolSize(), tmpResources);
+                    stream4currentEntity = streams[0];
+                    stream4subEntities = streams[1];
+                }
 
                 ContentHandler handler2use4recursiveCall = TikaUtils.createContentHandler4SubCrawl(crawlerContext);
 
-                processCurrentDataEntity(tmpStream, metadata, handler2use4recursiveCall, context);
+                processCurrentDataEntity(stream4currentEntity, metadata, handler2use4recursiveCall, context);
             }
 
 
@@ -159,57 +221,97 @@ public abstract class CrawlerParser implements Parser
                 // wir kopieren das Metadata-Teil hier, damit wir in der Schleife das Original-Objekt verwenden können (der iterator wird evtl. erst
                 // während des Schleifendurchlaufs in einem anderen Thread beschickt, und da sollte das Metadata-Objekt noch gültig sein. Wir
                 // verändern allerdings dessen Inhalte in der Schleife
-                subDataEntitiesInformation = getSubDataEntitiesInformation(stream, handler, TikaUtils.copyMetadata(metadata), context);
+                subDataEntitiesInformation = getSubDataEntitiesInformation(stream4subEntities, handler, TikaUtils.copyMetadata(metadata), context);
             }
 
 
 
-            int iEntityIndex = 0;
-            while (subDataEntitiesInformation.hasNext() && !crawlerContext.stopRequested())
+            // ## in the case of a parallel crawl, we dispatch the sub entities to the executor shared by all invocations of this crawl
+            SubEntityExecutor.TaskGroup taskGroup = null;
+            if(crawlerContext.getParallelism() > 1)
             {
+                if(StringUtils.nullOrWhitespace(crawlerContext.getContentHandlerClassName()) && !(crawlerContext.getContentHandler() instanceof DataSinkContentHandler))
+                {
+                    if(iCurrentCrawlingDepth == 0) LoggerFactory.getLogger(CrawlerParser.class.getName())
+                            .warn("Parallel crawling needs a DataSinkContentHandler or a content handler class name inside the CrawlerContext. Will crawl sequentially.");
+                }
+                else
+                {
+                    subEntityExecutor = context.get(SubEntityExecutor.class);
+                    if(subEntityExecutor == null)
+                    {
+                        createCrawlState(context);
 
+                        subEntityExecutor = new SubEntityExecutor(crawlerContext.getParallelism(), Boolean.TRUE.equals(crawlerContext.getUseVirtualThreads()));
+                        context.set(SubEntityExecutor.class, subEntityExecutor);
+                        bSubEntityExecutorCreatedHere = true;
+                    }
 
-                MultiValueHashMap<String, Object> subDataEntityInfo = subDataEntitiesInformation.next();
+                    taskGroup = subEntityExecutor.createTaskGroup();
+                }
+            }
 
-                LoggerFactory.getLogger(CrawlerParser.class.getName()).debug("Processing sub entity " + iEntityIndex + " with sourceId " + subDataEntityInfo.getFirst(SOURCEID));
 
-                // bei jeder Entität schauen wir, ob wir einen neuen Handler erzeugen müssen
-                ContentHandler handler2use4recursiveCall = TikaUtils.createContentHandler4SubCrawl(crawlerContext);
-                try
+
+            int iEntityIndex = 0;
+            try
+            {
+                while (subDataEntitiesInformation.hasNext() && !crawlerContext.stopRequested())
                 {
 
 
-                    // wir löschen die Inhalte im Metadata-Objekt, da wir zwar die Referenz behalten wollen (falls ein Handler das auch hat), aber die
-                    // Inhalte für die subEntity neu gefüllt werden sollen.
-                    TikaUtils.clearMetadata(metadata);
+                    MultiValueHashMap<String, Object> subDataEntityInfo = subDataEntitiesInformation.next();
 
-                    // wir tragen dann noch die aktuelle depth ein, damit wir gegebenenfalls abbrechen können
-                    metadata.set(CURRENT_CRAWLING_DEPTH, String.valueOf(iCurrentCrawlingDepth + 1));
+                    LoggerFactory.getLogger(CrawlerParser.class.getName()).debug("Processing sub entity " + iEntityIndex + " with sourceId " + subDataEntityInfo.getFirst(SOURCEID));
 
 
-                    processSubDataEntity(subDataEntityInfo, metadata, handler2use4recursiveCall, context);
+                    if(taskGroup != null)
+                    {
+                        // each task gets its own metadata object and a handler that works with exactly this object
+                        if(taskGroup.hasFailed()) break;
 
+                        final Metadata metadata4Task = new Metadata();
+                        final ContentHandler handler4Task;
+                        ContentHandler handler2bind = null;
+                        if(StringUtils.nullOrWhitespace(crawlerContext.getContentHandlerClassName()))
+                        {
+                            handler4Task = new SynchronizedDataSinkContentHandler((DataSinkContentHandler) crawlerContext.getContentHandler(), metadata4Task);
+                            handler2bind = handler4Task;
+                        }
+                        else
+                        {
+                            handler4Task = TikaUtils.createContentHandler4SubCrawl(crawlerContext);
+                            if(handler4Task instanceof DataSinkContentHandler) ((DataSinkContentHandler) handler4Task).setMetaData(metadata4Task);
+                        }
 
+                        final CrawlerContext crawlerContext4Task = crawlerContext;
+                        final int iCrawlingDepth4Task = iCurrentCrawlingDepth;
+                        taskGroup.execute(handler2bind,
+                                () -> processSubDataEntityAndHandleErrors(subDataEntityInfo, metadata4Task, handler4Task, context, crawlerContext4Task, iCrawlingDepth4Task));
+                    }
+                    else
+                    {
+                        // bei jeder Entität schauen wir, ob wir einen neuen Handler erzeugen müssen
+                        ContentHandler handler2use4recursiveCall = TikaUtils.createContentHandler4SubCrawl(crawlerContext);
 
-                }
-                catch (Throwable e)
-                {
-                    Object sourceId = subDataEntityInfo.getFirst(SOURCEID);
+                        // wir löschen die Inhalte im Metadata-Objekt, da wir zwar die Referenz behalten wollen (falls ein Handler das auch hat), aber die
+                        // Inhalte für die subEntity neu gefüllt werden sollen.
+                        TikaUtils.clearMetadata(metadata);
 
-                    ExceptionUtils.handleException(e, sourceId == null ? "noSourceId" : sourceId.toString(), metadata, crawlerContext, context, iCurrentCrawlingDepth,
-                            handler2use4recursiveCall);
-                }
+                        processSubDataEntityAndHandleErrors(subDataEntityInfo, metadata, handler2use4recursiveCall, context, crawlerContext, iCurrentCrawlingDepth);
+                    }
 
 
-                iEntityIndex++;
+                    iEntityIndex++;
 
-                if(iEntityIndex % 10000 == 0)
-                {
-                    // twice is full gc
-                    System.gc();
-                    System.gc();
-                }
+                    if(crawlerContext.getHeapPressureGcPolicy() != null) crawlerContext.getHeapPressureGcPolicy().entityProcessed();
 
+                }
+            }
+            finally
+            {
+                // we return not before all our sub entities are processed - the caller relies on this, e.g. for detecting the removed entities at the end of the crawl
+                if(taskGroup != null) taskGroup.await();
             }
 
 
@@ -233,7 +335,13 @@ public abstract class CrawlerParser implements Parser
         finally
         {
 
-            if(tmpStream != null) tmpStream.close();
+            tmpResources.close();
+
+            if(bSubEntityExecutorCreatedHere)
+            {
+                subEntityExecutor.shutdown();
+                context.set(SubEntityExecutor.class, null);
+            }
 
 
 
@@ -249,6 +357,99 @@ public abstract class CrawlerParser implements Parser
 
 
 
+    /**
+     * Makes the content of the current container entity readable twice - once for
+     * {@link #processCurrentDataEntity(InputStream, Metadata, ContentHandler, ParseContext)} and once for
+     * {@link #getSubDataEntitiesInformation(InputStream, ContentHandler, Metadata, ParseContext)}. In the case the stream is backed by a file already, the file will
+     * simply be opened a second time. Otherwise, contents up to the given size will be buffered in memory, bigger contents will be spooled to a temporary file.
+     *
+     * @param stream           the stream-parameter from the parse method
+     * @param iMaxInMemorySize the maximum content size in bytes that will be buffered in memory
+     * @param tmpResources     all created streams and temporary files will be registered here, and are released as soon as this is closed
+     *
+     * @return two streams with the content of the container. The first one for processing the current entity, the second one for getting the sub entities
+     */
+    protected InputStream[] createRereadableStreams(InputStream stream, int iMaxInMemorySize, TemporaryResources tmpResources) throws IOException
+    {
+        TikaInputStream tikaStream = TikaInputStream.cast(stream);
+        if(tikaStream != null && tikaStream.hasFile())
+        {
+            TikaInputStream secondStream = TikaInputStream.get(tikaStream.getPath());
+            tmpResources.addResource(secondStream);
+
+            return new InputStream[] { secondStream, stream };
+        }
+
+
+        byte[] content = stream.readNBytes(Math.min(iMaxInMemorySize, Integer.MAX_VALUE - 9) + 1);
+        if(content.length <= iMaxInMemorySize) return new InputStream[] { TikaInputStream.get(content), TikaInputStream.get(content) };
+
+
+        // too big for the memory - we spool the already read part together with the rest to a temporary file
+        TikaInputStream spooledStream = TikaInputStream.get(new SequenceInputStream(new ByteArrayInputStream(content), stream));
+        tmpResources.addResource(spooledStream);
+        TikaInputStream secondStream = TikaInputStream.get(spooledStream.getPath());
+        tmpResources.addResource(secondStream);
+
+        return new InputStream[] { spooledStream, secondStream };
+    }
+
+
+
+    /**
+     * Gets whether {@link #processCurrentDataEntity(InputStream, Metadata, ContentHandler, ParseContext)} reads the content of the container stream. Only in this
+     * case, the content will be buffered so that it can be read a second time by
+     * {@link #getSubDataEntitiesInformation(InputStream, ContentHandler, Metadata, ParseContext)}. Crawlers for containers without own content (e.g. directories,
+     * IMAP folders) should return false here, which avoids copying the stream at all. The default is true.
+     *
+     * @return true in the case the content of the current data entity will be processed, false otherwise
+     */
+    protected boolean needsCurrentDataEntityContent()
+    {
+        return true;
+    }
+
+
+
+    /**
+     * Processes a sub data entity with {@link #processSubDataEntity(MultiValueHashMap, Metadata, ContentHandler, ParseContext)}. In the case of an error, the error will
+     * be forwarded to the handler as error entity. This will be invoked either inside the crawling thread, or inside a worker thread in the case of a parallel crawl.
+     *
+     * @param subDataEntityInfo         one entry out of the formerly returned iterator from
+     *                                  {@link #getSubDataEntitiesInformation(InputStream, ContentHandler, Metadata, ParseContext)}
+     * @param metadata2use4recursiveCall the (cleared) metadata object that should be used for handling / recursive calls
+     * @param handler2use4recursiveCall the content handler that should be used for handling / recursive calls
+     * @param context                   the origin ParseContext instance given from the parse method
+     * @param crawlerContext            the crawler configuration
+     * @param iCurrentCrawlingDepth     the crawling depth of the container entity
+     */
+    protected void processSubDataEntityAndHandleErrors(MultiValueHashMap<String, Object> subDataEntityInfo, Metadata metadata2use4recursiveCall,
+            ContentHandler handler2use4recursiveCall, ParseContext context, CrawlerContext crawlerContext, int iCurrentCrawlingDepth) throws TikaException, SAXException
+    {
+        try
+        {
+            // wir tragen dann noch die aktuelle depth ein, damit wir gegebenenfalls abbrechen können
+            metadata2use4recursiveCall.set(CURRENT_CRAWLING_DEPTH, String.valueOf(iCurrentCrawlingDepth + 1));
+
+
+            processSubDataEntity(subDataEntityInfo, metadata2use4recursiveCall, handler2use4recursiveCall, context);
+        }
+        catch (Throwable e)
+        {
+            Object sourceId = subDataEntityInfo.getFirst(SOURCEID);
+
+            ExceptionUtils.handleException(e, sourceId == null ? "noSourceId" : sourceId.toString(), metadata2use4recursiveCall, crawlerContext, context,
+                    iCurrentCrawlingDepth, handler2use4recursiveCall);
+        }
+        finally
+        {
+            // an http response that was not consumed would hold its connection - also this thread will process other entities now
+            HttpURLStreamProvider.discardPendingResponse();
+        }
+    }
+
+
+
     /**
      * Processes the current data entity that should be parsed. This method extracts the content by e.g. delegating the stream to a specific Parser in order to push the
      * content to the ContentHandler, whereby the {@link #getSubDataEntitiesInformation(InputStream, ContentHandler, Metadata, ParseContext)} method extracts all the
@@ -257,7 +458,8 @@ public abstract class CrawlerParser implements Parser
      * For example, the {@link HtmlCrawlerParser} simply delegates the parameters to a Tika HtmlParser Object when its unmodified (this info is inside the metadata
      * possibly generated by {@link IncrementalCrawlingParser}).
      * 
-     * @param stream a 'cloned' stream from the stream given from the parse method
+     * @param stream a 'cloned' stream from the stream given from the parse method, in the case {@link #needsCurrentDataEntityContent()} returns true. Otherwise
+     *            the stream given from the parse method
      * @param metadata the metadata given from the parse method
      * @param handler the origin content handler instance from the parse method, OR an instance created newly at every data entity as configured inside CrawlerContext
      * @param context the ParseContext Object given from the parse method
@@ -272,7 +474,7 @@ public abstract class CrawlerParser implements Parser
      * sub data entities, which needs further parsing again. In this case, normally you invoke some kind of Leech.parse(...) method here, e.g.<br>
      * <br>
      * <code>
-     * Parser parser = m_leech.getParser();<br>
+     * Parser parser = getLeech().getParser();<br>
      * parser.parse(stream, handler2use4recursiveCall, metadata, context);<br>
      * <br>
      * </code> In the other case, you have all the information yet, ready for the final handler. In this case, you can send it directly, without further processing: <br>
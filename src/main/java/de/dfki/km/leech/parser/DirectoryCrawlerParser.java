@@ -24,10 +24,10 @@ package de.dfki.km.leech.parser;
 
 
 import de.dfki.inquisitor.collections.MultiValueHashMap;
-import de.dfki.km.leech.Leech;
 import de.dfki.km.leech.config.CrawlerContext;
 import de.dfki.km.leech.config.DirectoryCrawlerContext;
 import de.dfki.km.leech.detect.DatasourceMediaTypes;
+import de.dfki.km.leech.io.FileURLStreamProvider;
 import de.dfki.km.leech.io.URLStreamProvider;
 import de.dfki.km.leech.util.OSUtils;
 import org.apache.tika.metadata.Metadata;
@@ -39,15 +39,24 @@ import org.xml.sax.ContentHandler;
 
 import javax.mail.URLName;
 import java.io.File;
-import java.io.FileFilter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Set;
-import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 
 
@@ -60,23 +69,72 @@ import java.util.concurrent.SynchronousQueue;
 public class DirectoryCrawlerParser extends CrawlerParser
 {
 
+    /**
+     * Hands over the entries of a directory from the lister thread to the crawling thread. The lister can run ahead up to the configured number of entries (see
+     * {@link DirectoryCrawlerContext#setListingQueueSize(int)}), which hides the metadata latency e.g. of network file systems. The crawling thread takes all
+     * queued entries at once, thus there is not one thread handoff per file.
+     */
     protected static class OneAfterOneIterator implements Iterator<MultiValueHashMap<String, Object>>
     {
 
         static final MultiValueHashMap<String, Object> m_noMoreLeftMarker = new MultiValueHashMap<String, Object>();
 
+        protected final LinkedList<MultiValueHashMap<String, Object>> m_llTakenElements = new LinkedList<MultiValueHashMap<String, Object>>();
+
+        protected final DirectoryCrawlerContext m_directoryCrawlerContext;
+
         protected MultiValueHashMap<String, Object> m_nextElement;
 
-        protected SynchronousQueue<MultiValueHashMap<String, Object>> m_synchronousQueue = new SynchronousQueue<MultiValueHashMap<String, Object>>();
+        protected final BlockingQueue<MultiValueHashMap<String, Object>> m_queue;
+
+
+
+        public OneAfterOneIterator()
+        {
+            this(new DirectoryCrawlerContext());
+        }
+
+
+
+        /**
+         * Creates a new iterator with the queue size configured inside the given context
+         *
+         * @param directoryCrawlerContext the context with the queue size. The queue depth metrics will be also updated there
+         */
+        public OneAfterOneIterator(DirectoryCrawlerContext directoryCrawlerContext)
+        {
+            m_directoryCrawlerContext = directoryCrawlerContext;
+            m_queue = new ArrayBlockingQueue<MultiValueHashMap<String, Object>>(directoryCrawlerContext.getListingQueueSize());
+        }
 
 
 
         public void addNextElement(MultiValueHashMap<String, Object> nextElement)
+        {
+            addNextElement(nextElement, null);
+        }
+
+
+
+        /**
+         * Adds the next element. Blocks in the case the queue is full.
+         *
+         * @param nextElement    the element to add
+         * @param crawlerContext in the case a stop will be requested here while waiting, the method gives up. Can be null
+         *
+         * @return true in the case the element was added, false in the case a stop was requested or the thread was interrupted
+         */
+        public boolean addNextElement(MultiValueHashMap<String, Object> nextElement, CrawlerContext crawlerContext)
         {
             try
             {
 
-                m_synchronousQueue.put(nextElement);
+                while (!m_queue.offer(nextElement, 200, TimeUnit.MILLISECONDS))
+                    if(crawlerContext != null && crawlerContext.stopRequested()) return false;
+
+                if(nextElement != m_noMoreLeftMarker) m_directoryCrawlerContext.listingQueueDepthChanged(1);
+
+                return true;
 
             }
             catch (InterruptedException e)
@@ -84,6 +142,41 @@ public class DirectoryCrawlerParser extends CrawlerParser
                 LoggerFactory.getLogger(DirectoryCrawlerParser.OneAfterOneIterator.class.getName()).error("Error", e);
             }
 
+            return false;
+        }
+
+
+
+        /**
+         * Marks the end of the listing. In the case the listing stopped because of a stop request, the crawling thread will not wait for more entries anyway, thus
+         * the marker will only be added in the case there is space left inside the queue.
+         *
+         * @param bStopRequested true in the case the listing stopped because of a stop request
+         */
+        public void addNoMoreLeftMarker(boolean bStopRequested)
+        {
+            if(bStopRequested)
+                m_queue.offer(m_noMoreLeftMarker);
+            else
+                addNextElement(m_noMoreLeftMarker);
+        }
+
+
+
+        /**
+         * Gets the number of entries that are listed, but not yet handed out by this iterator
+         *
+         * @return the number of entries that are listed, but not yet handed out
+         */
+        public int getQueueDepth()
+        {
+            synchronized (m_llTakenElements)
+            {
+                int iDepth = m_queue.size() + m_llTakenElements.size();
+                if(m_queue.contains(m_noMoreLeftMarker) || m_llTakenElements.contains(m_noMoreLeftMarker)) iDepth--;
+
+                return iDepth;
+            }
         }
 
 
@@ -95,10 +188,22 @@ public class DirectoryCrawlerParser extends CrawlerParser
             try
             {
 
-                m_nextElement = m_synchronousQueue.take();
+                synchronized (m_llTakenElements)
+                {
+                    if(m_llTakenElements.isEmpty())
+                    {
+                        // we wait for the next element, and take all others that are already there in one go
+                        m_llTakenElements.add(m_queue.take());
+                        m_queue.drainTo(m_llTakenElements);
+                    }
+
+                    m_nextElement = m_llTakenElements.removeFirst();
+                }
 
                 if(m_noMoreLeftMarker == m_nextElement) return false;
 
+                m_directoryCrawlerContext.listingQueueDepthChanged(-1);
+
                 return true;
 
             }
@@ -137,7 +242,14 @@ public class DirectoryCrawlerParser extends CrawlerParser
 
 
 
-    protected Leech m_leech;
+    /**
+     * The lister threads are shared by all directories of all crawls, instead of creating a new thread for each directory
+     */
+    protected static final ExecutorService m_listFilesExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "DirectoryCrawlerParser listFiles");
+        thread.setDaemon(true);
+        return thread;
+    });
 
 
 
@@ -217,6 +329,84 @@ public class DirectoryCrawlerParser extends CrawlerParser
 
 
 
+    /**
+     * Checks whether a directory entry is inside the configured constraints (hidden files, symbolic links, etc) or not, and creates the sub entity information for
+     * it. Other than {@link #checkIfInConstraints(File, CrawlerContext, DirectoryCrawlerContext)}, this works with the file attributes read once from the file
+     * system, which saves most of the file system calls per file. The parent directory of the entry must be canonical already - in this case, an entry that is not
+     * a symbolic link is canonical too.
+     *
+     * @param path2Check              the directory entry to check
+     * @param crawlerContext          the context object with the general constraints
+     * @param directoryCrawlerContext the context Object with the directory related constraints
+     *
+     * @return null in the case the entry is outside the constraints, the sub entity information otherwise. This contains the canonical file ('fileObject'), its
+     *         attributes ('fileAttributes') and its URI ('fileURI')
+     */
+    protected MultiValueHashMap<String, Object> createSubEntityInformation(Path path2Check, CrawlerContext crawlerContext,
+            DirectoryCrawlerContext directoryCrawlerContext) throws IOException, URISyntaxException
+    {
+        Path finalPath = path2Check;
+        BasicFileAttributes fileAttributes = Files.readAttributes(path2Check, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+
+        if(fileAttributes.isSymbolicLink())
+        {
+            // optionally skip symbolic links
+            if(!directoryCrawlerContext.getFollowSymbolicLinks())
+            {
+                if(crawlerContext.getVerbose())
+                    LoggerFactory.getLogger(DirectoryCrawlerParser.class.getName()).info("File " + path2Check.toUri() + " is a symbolic link that should be ignored. Skipping.");
+                return null;
+            }
+
+            finalPath = path2Check.toRealPath();
+            fileAttributes = Files.readAttributes(finalPath, BasicFileAttributes.class);
+        }
+
+
+        //ich hatte einen Fall mit einem 'fifo named pipe' 'File' mit Länge 0, das war weder File noch Directory und hing in der Endlosschleife
+        if(!fileAttributes.isRegularFile() && !fileAttributes.isDirectory()) return null;
+
+
+        File finalFile = finalPath.toFile();
+        String strFileURI = FileURLStreamProvider.toFileURI(finalFile, fileAttributes.isDirectory());
+
+        if(!crawlerContext.getURLFilter().accept(strFileURI))
+        {
+            if(crawlerContext.getVerbose())
+                LoggerFactory.getLogger(DirectoryCrawlerParser.class.getName()).info("File " + strFileURI + " is outside the URL constraints for this data source. Skipping.");
+            return null;
+        }
+
+
+        // in the case this file is hidden, we also ignore it silently
+        if(directoryCrawlerContext.getIgnoreHiddenFiles() && Files.isHidden(finalPath)) return null;
+
+
+        // Dont crawl into MacOSX bundles.
+        if(fileAttributes.isDirectory() && OSUtils.isMac() && OSUtils.isMacOSXBundle(finalFile)) return null;
+
+
+        if(!Files.isReadable(finalPath))
+        {
+            if(crawlerContext.getVerbose()) LoggerFactory.getLogger(DirectoryCrawlerParser.class.getName()).info("Can't read file " + strFileURI + ". Skipping.");
+            return null;
+        }
+
+
+
+        MultiValueHashMap<String, Object> hsEntityInformation = new MultiValueHashMap<String, Object>();
+
+        hsEntityInformation.add("fileObject", finalFile);
+        hsEntityInformation.add("fileAttributes", fileAttributes);
+        hsEntityInformation.add("fileURI", strFileURI);
+        hsEntityInformation.add(CrawlerParser.SOURCEID, finalFile.getAbsolutePath());
+
+
+        return hsEntityInformation;
+    }
+
+
+
 
 
 
@@ -246,10 +436,10 @@ public class DirectoryCrawlerParser extends CrawlerParser
 
 
 
-        final OneAfterOneIterator oneAfterOneIterator = new OneAfterOneIterator();
+        final OneAfterOneIterator oneAfterOneIterator = new OneAfterOneIterator(directoryCrawlerContext);
 
-        // wir übernehmen das Konzept aus Aperture mit dem FileFilter. Des isch ned schlecht.Spart memory.
-        Thread listFilesThread = new Thread(new Runnable()
+        // wir listen das Verzeichnis mit NIO - die Attribute jedes Eintrags werden nur einmal gelesen, und wiederverwendet
+        m_listFilesExecutor.execute(new Runnable()
         {
 
 
@@ -261,47 +451,45 @@ public class DirectoryCrawlerParser extends CrawlerParser
             public void run()
             {
 
-                fFinalDir.listFiles(new FileFilter()
+                try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(fFinalDir.toPath()))
                 {
-
-                    @Override
-                    public boolean accept(File fSubFile2Check)
+                    for (Path subPath : directoryStream)
                     {
-                        // we always return false - this saves memory
-
                         if(crawlerContext.stopRequested())
                         {
-                            if(!m_bStopWasRequested) m_bStopWasRequested = true;
-                            return false;
+                            m_bStopWasRequested = true;
+                            break;
                         }
 
 
-                        File fCheckedFile = checkIfInConstraints(fSubFile2Check, crawlerContext, directoryCrawlerContext);
-
-                        if(fCheckedFile == null) return false;
-
-                        //ich hatte einen Fall mit einem 'fifo named pipe' 'File' mit Länge 0, das war weder File noch Directory und hing in der Endlosschleife
-                        if(!fCheckedFile.isFile() && !fCheckedFile.isDirectory()) return false;
-
-                        MultiValueHashMap<String, Object> hsEntityInformation = new MultiValueHashMap<String, Object>();
-
-                        hsEntityInformation.add("fileObject", fCheckedFile);
-                        hsEntityInformation.add(CrawlerParser.SOURCEID, fCheckedFile.getAbsolutePath());
-
-                        oneAfterOneIterator.addNextElement(hsEntityInformation);
+                        try
+                        {
+                            MultiValueHashMap<String, Object> hsEntityInformation = createSubEntityInformation(subPath, crawlerContext, directoryCrawlerContext);
 
-                        return false;
+                            if(hsEntityInformation != null && !oneAfterOneIterator.addNextElement(hsEntityInformation, crawlerContext))
+                            {
+                                m_bStopWasRequested = true;
+                                break;
+                            }
+                        }
+                        catch (IOException | URISyntaxException e)
+                        {
+                            LoggerFactory.getLogger(DirectoryCrawlerParser.class.getName()).warn("Unable to read file attributes, skipping file: " + subPath, e);
+                        }
                     }
-                });
-
-                // wir markieren das Ende mit einer eigens dafür erstellten Konstante
-                if(!m_bStopWasRequested && !crawlerContext.stopRequested())
-                    oneAfterOneIterator.addNextElement(OneAfterOneIterator.m_noMoreLeftMarker);
+                }
+                catch (IOException e)
+                {
+                    LoggerFactory.getLogger(DirectoryCrawlerParser.class.getName()).error("Error while listing directory " + fFinalDir, e);
+                }
+                finally
+                {
+                    // wir markieren das Ende mit einer eigens dafür erstellten Konstante
+                    oneAfterOneIterator.addNoMoreLeftMarker(m_bStopWasRequested || crawlerContext.stopRequested());
+                }
 
             }
-        }, "DirectoryCrawlserParser listFiles");
-
-        listFilesThread.start();
+        });
 
 
 
@@ -321,6 +509,15 @@ public class DirectoryCrawlerParser extends CrawlerParser
 
 
 
+    @Override
+    protected boolean needsCurrentDataEntityContent()
+    {
+        // directories have no own content - we don't need to copy the stream
+        return false;
+    }
+
+
+
     @Override
     protected void processCurrentDataEntity(InputStream stream, Metadata metadata, ContentHandler handler2use4recursiveCall, ParseContext context)
             throws Exception
@@ -337,9 +534,14 @@ public class DirectoryCrawlerParser extends CrawlerParser
     {
 
         File fSubfile = (File) subDataEntityInformation.getFirst("fileObject");
+        BasicFileAttributes fileAttributes = (BasicFileAttributes) subDataEntityInformation.getFirst("fileAttributes");
+        String strFileURI = (String) subDataEntityInformation.getFirst("fileURI");
 
 
-        URLName url = new URLName(fSubfile.toURI().toURL());
+        URLName url = new URLName(strFileURI != null ? strFileURI : fSubfile.toURI().toString());
+
+        // die Attribute haben wir beim Listen schon gelesen - wenn die Metadaten hier schon drinstehen, werden sie von addFirstMetadata nicht nochmal geladen
+        if(fileAttributes != null) FileURLStreamProvider.addFileMetadata(fSubfile, fSubfile.getPath(), fileAttributes, metadata, context);
 
         metadata = URLStreamProvider.getURLStreamProvider(url).addFirstMetadata(url, metadata, context);
         InputStream stream = URLStreamProvider.getURLStreamProvider(url).getStream(url, metadata, context);
@@ -348,10 +550,7 @@ public class DirectoryCrawlerParser extends CrawlerParser
         try
         {
 
-            if(m_leech == null) m_leech = new Leech();
-
-
-            Parser parser = m_leech.getParser();
+            Parser parser = getLeech().getParser();
 
             parser.parse(stream, handler2use4recursiveCall, metadata, context);
 
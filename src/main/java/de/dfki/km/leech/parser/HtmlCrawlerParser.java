@@ -20,13 +20,14 @@ package de.dfki.km.leech.parser;
 
 import de.dfki.inquisitor.collections.MultiValueHashMap;
 import de.dfki.inquisitor.text.StringUtils;
-import de.dfki.km.leech.Leech;
 import de.dfki.km.leech.config.CrawlerContext;
 import de.dfki.km.leech.config.HtmlCrawlerContext;
 import de.dfki.km.leech.io.URLStreamProvider;
 import de.dfki.km.leech.parser.incremental.IncrementalCrawlingHistory;
 import de.dfki.km.leech.parser.incremental.IncrementalCrawlingHistory.Exist;
 import de.dfki.km.leech.parser.incremental.IncrementalCrawlingParser;
+import de.dfki.km.leech.util.CrawlFrontier;
+import de.dfki.km.leech.util.ScalableBloomFilter;
 import de.dfki.km.leech.util.UrlUtil;
 import org.apache.tika.exception.TikaException;
 import org.apache.tika.metadata.Metadata;
@@ -45,6 +46,7 @@ import javax.mail.URLName;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
@@ -54,7 +56,11 @@ import java.util.*;
 /**
  * A CrawlerParser implementation that can crawl html files. The content of the html file is simply delegated to {@link HtmlParser}, then all links will be extracted with
  * {@link LinkContentHandler} and recursively processed again with Leech. Configure it by specifying a {@link CrawlerContext} and a {@link HtmlCrawlerContext} object
- * inside the {@link ParseContext} object for the crawl.
+ * inside the {@link ParseContext} object for the crawl.<br>
+ * <br>
+ * By default, the links will not be followed immediately. The first html crawler invocation of a crawl creates a {@link CrawlFrontier} and puts it into the slot
+ * inside the ParseContext. All recursive invocations only put their links into this frontier, the first invocation processes them breadth first, with per-host queues and an
+ * optional minimum delay per host (see {@link HtmlCrawlerContext#setMinDelayPerHost(long)}).
  *
  * @author Christian Reuschling, Dipl.Ing.(BA)
  */
@@ -66,11 +72,6 @@ public class HtmlCrawlerParser extends CrawlerParser
 
     private static final long serialVersionUID = -8214006342702249257L;
 
-    protected Leech m_leech;
-
-
-
-
     protected HtmlParser m_tikaHtmlParser = new HtmlParser();
 
 
@@ -98,6 +99,32 @@ public class HtmlCrawlerParser extends CrawlerParser
             return false;
         }
 
+        // robots.txt - das prüfen wir hier schon, bevor der Link in die Frontier bzw. zum URLFilteringParser kommt. Aber nur für Links innerhalb der
+        // constraints, sonst holen wir die robots.txt von jedem verlinkten Host. Die anderen Links (und deren Redirects) prüft der HttpURLStreamProvider
+        if(Boolean.TRUE.equals(crawlerContext.getObeyRobotsTxt()) && (strURL2Check.startsWith("http:") || strURL2Check.startsWith("https:"))
+                && crawlerContext.getURLFilter().accept(strURL2Check))
+        {
+            try
+            {
+                if(!crawlerContext.getRobotsTxtCache().isAllowed(new URL(strURL2Check), crawlerContext))
+                {
+                    if(crawlerContext.getVerbose()) LoggerFactory.getLogger(HtmlCrawlerParser.class.getName())
+                            .info("URL " + strURL2Check + " is disallowed by the robots.txt file of its host. Skipping.");
+
+                    return false;
+                }
+            }
+            catch (MalformedURLException e)
+            {
+                return false;
+            }
+            catch (IOException e)
+            {
+                // the robots.txt file is unreachable - this is no disallowed link. The HttpURLStreamProvider checks it again, and reports the fetch failure
+                if(crawlerContext.getVerbose()) LoggerFactory.getLogger(HtmlCrawlerParser.class.getName()).info(e.getMessage());
+            }
+        }
+
         // All links shoud go through the URLFilteringParser to consider positive redirects that are not known yet
         // if(!crawlerContext.getURLFilter().accept(strURL2Check))
         // {
@@ -158,6 +185,12 @@ public class HtmlCrawlerParser extends CrawlerParser
 
 
 
+        CrawlFrontier.Slot frontierSlot = context.get(CrawlFrontier.Slot.class);
+        CrawlFrontier frontier = htmlCrawlerContext.getUseFrontier() && frontierSlot != null ? frontierSlot.get() : null;
+        String strDepth = metadata.get(CrawlerParser.CURRENT_CRAWLING_DEPTH);
+        int iSubEntityCrawlingDepth = (strDepth == null ? 0 : Integer.valueOf(strDepth)) + 1;
+
+
         LinkedList<MultiValueHashMap<String, Object>> llDataEntityInfos = new LinkedList<MultiValueHashMap<String, Object>>();
 
         for (URLName url4link : hsLinkzAndI)
@@ -168,11 +201,32 @@ public class HtmlCrawlerParser extends CrawlerParser
             entityInfo.add(CrawlerParser.SOURCEID, url4link.toString());
             entityInfo.add("url", url4link);
 
+            if(frontier != null)
+            {
+                entityInfo.add(CrawlFrontier.URL, url4link.toString());
+                entityInfo.add(CrawlFrontier.CRAWLING_DEPTH, iSubEntityCrawlingDepth);
+
+                // der Crawl-delay aus der robots.txt - die ist schon im Cache, wir haben die Links innerhalb der constraints ja bereits dagegen geprüft
+                if(crawlerContext != null && Boolean.TRUE.equals(crawlerContext.getObeyRobotsTxt()) && crawlerContext.getURLFilter().accept(url4link.toString()))
+                    frontier.setCrawlDelay(url4link.toString(), crawlerContext.getRobotsTxtCache().getCrawlDelay(new URL(url4link.toString()), crawlerContext));
+            }
+
             llDataEntityInfos.add(entityInfo);
         }
 
 
-        return llDataEntityInfos.iterator();
+        if(frontier == null) return llDataEntityInfos.iterator();
+
+
+        // die erste Invocation arbeitet die Frontier ab, alle anderen legen ihre Links nur dort ab. Ist die Frontier schon geschlossen, machen wir wie gehabt selbst
+        boolean bDrain = frontier.startDrain();
+        if(bDrain && strContainerURL != null) frontier.markSeen(strContainerURL);
+
+        if(!frontier.offer(llDataEntityInfos)) return llDataEntityInfos.iterator();
+
+        if(bDrain) return frontier.drain();
+
+        return Collections.emptyIterator();
     }
 
 
@@ -200,7 +254,38 @@ public class HtmlCrawlerParser extends CrawlerParser
         }
 
 
-        super.parse(stream, handler, metadata, context);
+        // die erste html-Invocation des Crawls erzeugt die Frontier - die rekursiven Aufrufe finden sie dann im Context
+        HtmlCrawlerContext htmlCrawlerContext = context.get(HtmlCrawlerContext.class, new HtmlCrawlerContext());
+        if(!htmlCrawlerContext.getUseFrontier())
+        {
+            super.parse(stream, handler, metadata, context);
+
+            return;
+        }
+
+
+        // in a parallel crawl, the slot was created before the first task was dispatched (see CrawlerParser.createCrawlState(..)). Otherwise, we are the only thread
+        createCrawlState(context);
+        CrawlFrontier.Slot frontierSlot = context.get(CrawlFrontier.Slot.class);
+
+        CrawlerContext crawlerContext = context.get(CrawlerContext.class, new CrawlerContext());
+        CrawlFrontier frontier = frontierSlot.openIfClosed(htmlCrawlerContext.getMinDelayPerHost(), crawlerContext);
+        if(frontier == null)
+        {
+            super.parse(stream, handler, metadata, context);
+
+            return;
+        }
+
+        try
+        {
+            super.parse(stream, handler, metadata, context);
+        }
+        finally
+        {
+            // we leave the closed frontier inside the slot - it will be replaced by the next crawl
+            frontier.close();
+        }
     }
 
 
@@ -225,19 +310,51 @@ public class HtmlCrawlerParser extends CrawlerParser
             ParseContext context) throws Exception
     {
 
-        URLName url = (URLName) subDataEntityInformation.getFirst("url");
+        CrawlFrontier.Slot frontierSlot = context.get(CrawlFrontier.Slot.class);
+        CrawlFrontier frontier = frontierSlot == null ? null : frontierSlot.get();
+        if(frontier == null || subDataEntityInformation.getFirst(CrawlFrontier.CRAWLING_DEPTH) == null)
+        {
+            processSubDataEntity(subDataEntityInformation, metadata, handler2use4recursiveCall, context, (URLName) subDataEntityInformation.getFirst("url"));
 
+            return;
+        }
+
+
+        // die Entity kommt aus der Frontier - sie hat ihre eigene Tiefe, unabhängig vom Container, der die Frontier abarbeitet
+        metadata.set(CrawlerParser.CURRENT_CRAWLING_DEPTH, String.valueOf(subDataEntityInformation.getFirst(CrawlFrontier.CRAWLING_DEPTH)));
+
+        frontier.fetchStarted(subDataEntityInformation);
+        try
+        {
+            processSubDataEntity(subDataEntityInformation, metadata, handler2use4recursiveCall, context, (URLName) subDataEntityInformation.getFirst("url"));
+        }
+        finally
+        {
+            frontier.fetchFinished(subDataEntityInformation);
+        }
+    }
+
+
+
+    protected void processSubDataEntity(MultiValueHashMap<String, Object> subDataEntityInformation, Metadata metadata, ContentHandler handler2use4recursiveCall,
+            ParseContext context, URLName url) throws Exception
+    {
 
         // Performance: wenn wir es in diesem Crawl schon mal prozessiert haben (anhand der nicht-redirect-geprüften URL), skippen wir hier. Redirects checken dauert.
         CrawlerContext crawlerContext = context.get(CrawlerContext.class);
         if(crawlerContext != null)
         {
             IncrementalCrawlingHistory crawlingHistory = crawlerContext.getIncrementalCrawlingHistory();
-            if(crawlingHistory != null)
+            ScalableBloomFilter visitedDataEntities = context.get(ScalableBloomFilter.class);
+            if(crawlingHistory != null || visitedDataEntities != null)
             {
-                Exist exist = crawlingHistory.exists(url.toString());
+                boolean bProcessed;
+                if(crawlingHistory != null)
+                    bProcessed = crawlingHistory.exists(url.toString()).equals(Exist.YES_PROCESSED);
+                else
+                    bProcessed = visitedDataEntities.mightContain(url.toString());
 
-                if(exist.equals(Exist.YES_PROCESSED))
+                if(bProcessed)
                 {
                     metadata.set(IncrementalCrawlingParser.DATA_ENTITY_MODIFICATION_STATE, IncrementalCrawlingParser.PROCESSED);
 
@@ -257,10 +374,7 @@ public class HtmlCrawlerParser extends CrawlerParser
         try (InputStream stream = URLStreamProvider.getURLStreamProvider(url).getStream(url, metadata, context))
         {
 
-            if(m_leech == null) m_leech = new Leech();
-
-
-            Parser parser = m_leech.getParser();
+            Parser parser = getLeech().getParser();
 
             parser.parse(stream, handler2use4recursiveCall, metadata, context);
         }
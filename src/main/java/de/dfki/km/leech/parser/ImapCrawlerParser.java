@@ -23,17 +23,21 @@ package de.dfki.km.leech.parser;
 
 
 
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPMessage;
 import de.dfki.inquisitor.collections.MultiValueHashMap;
 import de.dfki.inquisitor.text.StringUtils;
-import de.dfki.km.leech.Leech;
 import de.dfki.km.leech.config.CrawlerContext;
 import de.dfki.km.leech.config.ImapCrawlerContext;
 import de.dfki.km.leech.detect.DatasourceMediaTypes;
+import de.dfki.km.leech.io.ImapConnectionPool;
+import de.dfki.km.leech.io.ImapFolderState;
 import de.dfki.km.leech.io.ImapURLStreamProvider;
 import de.dfki.km.leech.io.URLStreamProvider;
 import de.dfki.km.leech.metadata.LeechMetadata;
 import de.dfki.km.leech.parser.incremental.IncrementalCrawlingHistory;
-import de.dfki.km.leech.util.ExceptionUtils;
+import de.dfki.km.leech.parser.incremental.IncrementalCrawlingParser;
+import de.dfki.km.leech.util.LeechException;
 import de.dfki.km.leech.util.certificates.CertificateIgnoringSocketFactory;
 import org.apache.tika.exception.TikaException;
 import org.apache.tika.metadata.Metadata;
@@ -47,10 +51,18 @@ import org.xml.sax.SAXException;
 import javax.mail.*;
 import javax.mail.internet.MimeMessage;
 import javax.mail.search.FlagTerm;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 
@@ -66,33 +78,228 @@ import java.util.*;
 public class ImapCrawlerParser extends CrawlerParser
 {
 
-    private static final long serialVersionUID = 6062546853256504993L;
+    /**
+     * The first message of a folder that has to be enumerated, see {@link ImapCrawlerParser#getFirstMessage2Crawl(URLName, String, Metadata, ParseContext)}
+     */
+    protected static class FirstMessage2Crawl
+    {
+        /**
+         * The UID of the first message
+         */
+        protected final long m_lUid;
 
+        /**
+         * The message number of the first message at the time it was determined. This is only a hint where to start looking for the UID
+         */
+        protected final int m_iMessageNumber;
 
 
-    static public Store connect2Server(URLName url, ParseContext context) throws MessagingException
+
+        protected FirstMessage2Crawl(long lUid, int iMessageNumber)
+        {
+            m_lUid = lUid;
+            m_iMessageNumber = iMessageNumber;
+        }
+    }
+
+
+
+    /**
+     * Iterates over the entity informations of the subfolders, followed by the ones of the messages. The messages will be fetched page by page, whereby the data of a page
+     * (UID, flags and Message-ID) is fetched from the server with a single FETCH command. Thus only one page is in memory at a time, also for huge folders. The page
+     * size can be configured with {@link ImapCrawlerContext#setFetchPageSize(int)}.<br>
+     * The folder is borrowed from the pool for each page, thus messages can be expunged between two pages. For this, the pages are UID ranges - the message numbers
+     * are only used to determine the last UID of a page. Thus an expunge can't shift a message out of the range that is not enumerated yet.
+     */
+    protected class MessagePageIterator implements Iterator<MultiValueHashMap<String, Object>>
     {
+        protected final ParseContext m_context;
 
-        ImapCrawlerContext imapCrawlerContext = context.get(ImapCrawlerContext.class, new ImapCrawlerContext());
+        protected final CrawlerContext m_crawlerContext;
 
-        Properties properties = System.getProperties();
+        protected final URLName m_containerURLName;
 
-        properties.setProperty("mail.store.protocol", url.getProtocol());
+        protected int m_iFetchPageSize;
 
-        if(imapCrawlerContext.getIgnoreSSLCertificates())
+        protected long m_lNextUid = 1;
+
+        protected int m_iNextMessageNumber = 1;
+
+        protected final LinkedList<MultiValueHashMap<String, Object>> m_llCurrentPage;
+
+        protected final Iterator<Map.Entry<String, FirstMessage2Crawl>> m_itMessageFolder2FirstMessage;
+
+        protected String m_strCurrentFolderName;
+
+
+
+        protected MessagePageIterator(LinkedList<MultiValueHashMap<String, Object>> llFolderEntityInfo,
+                LinkedHashMap<String, FirstMessage2Crawl> hsMessageFolder2FirstMessage, URLName containerURLName, ParseContext context)
         {
-            properties.setProperty("mail.imaps.socketFactory.class", CertificateIgnoringSocketFactory.class.getName());
-            properties.setProperty("mail.imaps.socketFactory.fallback", "false");
+            m_llCurrentPage = llFolderEntityInfo;
+            m_itMessageFolder2FirstMessage = hsMessageFolder2FirstMessage.entrySet().iterator();
+            m_containerURLName = containerURLName;
+            m_context = context;
+            m_crawlerContext = context.get(CrawlerContext.class, new CrawlerContext());
+
+            ImapCrawlerContext imapCrawlerContext = context.get(ImapCrawlerContext.class, new ImapCrawlerContext());
+            m_iFetchPageSize = Math.max(1, imapCrawlerContext.getFetchPageSize());
+        }
+
+
+
+        @Override
+        public boolean hasNext()
+        {
+            try
+            {
+                while (m_llCurrentPage.isEmpty() && !m_crawlerContext.stopRequested())
+                {
+                    if(m_strCurrentFolderName == null)
+                    {
+                        if(!m_itMessageFolder2FirstMessage.hasNext()) return false;
+
+                        Map.Entry<String, FirstMessage2Crawl> messageFolder2FirstMessage = m_itMessageFolder2FirstMessage.next();
+                        m_strCurrentFolderName = messageFolder2FirstMessage.getKey();
+                        m_lNextUid = messageFolder2FirstMessage.getValue().m_lUid;
+                        m_iNextMessageNumber = messageFolder2FirstMessage.getValue().m_iMessageNumber;
+                    }
+
+                    if(!fetchNextPage()) m_strCurrentFolderName = null;
+                }
+
+                return !m_llCurrentPage.isEmpty();
+            }
+            catch (MessagingException e)
+            {
+                throw new LeechException("Error while fetching the messages of imap folder '" + m_strCurrentFolderName + "'", e);
+            }
+        }
+
+
+
+        /**
+         * Fetches the next page of messages of the current folder and adds the entity informations of the non-deleted messages to the current page
+         *
+         * @return false in the case there are no more messages in the current folder, true otherwise
+         *
+         * @throws MessagingException
+         */
+        protected boolean fetchNextPage() throws MessagingException
+        {
+            ImapConnectionPool connectionPool = ImapConnectionPool.getPool(m_context);
+            IMAPFolder folder = connectionPool.borrowFolder(m_containerURLName, m_strCurrentFolderName, m_context);
+
+            try
+            {
+                // die message count kennt der folder seit dem SELECT - das kostet keinen round trip
+                int iMessageCount = folder.getMessageCount();
+                if(m_iNextMessageNumber > iMessageCount) return false;
+
+                // über die message number bestimmen wir nur die letzte UID der Seite. Die message numbers können sich seit der letzten Seite durch ein
+                // expunge nach vorne verschoben haben - dann wird die Seite eben etwas größer. Liegt die geschätzte Seite vor der nächsten UID, oder
+                // wurde deren letzte message entfernt, dann schieben wir sie weiter. Finden wir so keine Grenze mehr, holen wir den Rest des folders
+                long lLastUid = UIDFolder.LASTUID;
+                while (m_iNextMessageNumber <= iMessageCount)
+                {
+                    int iLastMessageNumber = Math.min(iMessageCount, m_iNextMessageNumber + m_iFetchPageSize - 1);
+                    Message lastMessage = folder.getMessage(iLastMessageNumber);
+                    m_iNextMessageNumber = iLastMessageNumber + 1;
+
+                    if(lastMessage.isExpunged()) continue;
+
+                    long lUid = folder.getUID(lastMessage);
+                    if(lUid >= m_lNextUid)
+                    {
+                        lLastUid = lUid;
+                        break;
+                    }
+                }
+
+                long lFirstUid = m_lNextUid;
+                Message[] messages = folder.getMessagesByUID(lFirstUid, lLastUid);
+
+                if(lLastUid != UIDFolder.LASTUID)
+                    m_lNextUid = lLastUid + 1;
+                else
+                    for (Message message : messages)
+                        if(message != null) m_lNextUid = Math.max(m_lNextUid, folder.getUID(message) + 1);
+
+                // die Daten die wir später benötigen holen wir uns effizient in einem Rutsch für die ganze Seite. Anhand der flags werfen wir die
+                // gelöschten messages raus - dafür brauchen wir kein extra SEARCH
+                FetchProfile profile = new FetchProfile();
+                profile.add(UIDFolder.FetchProfileItem.UID);
+                profile.add(FetchProfile.Item.FLAGS);
+                profile.add("Message-ID");
+                folder.fetch(messages, profile);
+
+
+                for (Message message : messages)
+                {
+                    if(message == null || message.isExpunged() || message.isSet(Flags.Flag.DELETED)) continue;
+
+                    // Achtung: 'n:*' liefert immer mindestens die letzte message, auch wenn deren UID kleiner ist
+                    if(folder.getUID(message) < lFirstUid) continue;
+
+                    MimeMessage mimeMessage = (MimeMessage) message;
+
+                    // hier brauchen wir noch eine URL mit und eine ohne Passwort
+                    URLName urlName = getMessageUrl(folder, mimeMessage);
+                    URLName urlNameWithPassword =
+                            new URLName(m_containerURLName.getProtocol(), urlName.getHost(), urlName.getPort(), urlName.getFile(), urlName.getUsername(),
+                                    m_containerURLName.getPassword());
+
+
+                    if(!checkIfInConstraints(urlName.toString(), mimeMessage, m_context)) continue;
+
+
+                    MultiValueHashMap<String, Object> hsEntityInformation = new MultiValueHashMap<String, Object>();
+
+                    hsEntityInformation.add(CrawlerParser.SOURCEID, urlName);
+                    hsEntityInformation.add("urlNameWithPassword", urlNameWithPassword);
+                    hsEntityInformation.add("Message-ID", mimeMessage.getHeader("Message-ID")[0]);
+                    hsEntityInformation.add("folder", folder.getFullName());
+
+                    m_llCurrentPage.add(hsEntityInformation);
+                }
+
+                // der folder bleibt im pool offen - damit sich dessen message cache nicht mit den headern aller messages füllt, geben wir die wieder frei
+                for (Message message : messages)
+                    if(message != null) ((IMAPMessage) message).invalidateHeaders();
+
+
+                return true;
+            }
+            finally
+            {
+                connectionPool.returnFolder(folder);
+            }
         }
 
-        if(!StringUtils.nullOrWhitespace(imapCrawlerContext.getSSLCertificateFilePath()) && "imaps".equalsIgnoreCase(url.getProtocol()))
+
+
+        @Override
+        public MultiValueHashMap<String, Object> next()
         {
-            properties.setProperty("javax.net.ssl.trustStore", imapCrawlerContext.getSSLCertificateFilePath());
-            properties.setProperty("javax.net.ssl.trustStorePassword", imapCrawlerContext.getSSLCertificateFilePassword());
+            if(!hasNext()) throw new NoSuchElementException();
+
+            return m_llCurrentPage.removeFirst();
         }
+    }
+
+
+
+    private static final long serialVersionUID = 6062546853256504993L;
+
+
+
+    static public Store connect2Server(URLName url, ParseContext context) throws MessagingException
+    {
 
+        ImapCrawlerContext imapCrawlerContext = context == null ? null : context.get(ImapCrawlerContext.class);
+        if(imapCrawlerContext == null) imapCrawlerContext = new ImapCrawlerContext();
 
-        Session session = Session.getDefaultInstance(properties);
+        Session session = createSession(url.getProtocol(), imapCrawlerContext);
         Store mailStore = session.getStore(url.getProtocol());
 
 
@@ -110,6 +317,75 @@ public class ImapCrawlerParser extends CrawlerParser
 
 
 
+    /**
+     * Creates a new mail session with the settings of the given context. Each crawl gets an own session instead of the JVM wide default session, thus crawls with
+     * different settings (timeouts, SSL, fetch sizes) can run in the same process, and the system properties remain untouched. Properties that are not set by the
+     * context fall back to the system properties.
+     * 
+     * @param strProtocol the protocol, i.e. 'imap' or 'imaps'
+     * @param imapCrawlerContext the context with the session settings
+     * 
+     * @return the new session
+     * 
+     * @throws MessagingException in the case the configured SSL certificate file can not be loaded
+     */
+    static public Session createSession(String strProtocol, ImapCrawlerContext imapCrawlerContext) throws MessagingException
+    {
+        Properties properties = new Properties(System.getProperties());
+
+        String strPrefix = "mail." + strProtocol + ".";
+
+        properties.setProperty("mail.store.protocol", strProtocol);
+        properties.setProperty(strPrefix + "fetchsize", String.valueOf(imapCrawlerContext.getFetchSize()));
+        properties.setProperty(strPrefix + "partialfetch", String.valueOf(imapCrawlerContext.getPartialFetch()));
+        if(imapCrawlerContext.getConnectionTimeout() >= 0)
+            properties.setProperty(strPrefix + "connectiontimeout", String.valueOf(imapCrawlerContext.getConnectionTimeout()));
+        if(imapCrawlerContext.getTimeout() >= 0) properties.setProperty(strPrefix + "timeout", String.valueOf(imapCrawlerContext.getTimeout()));
+
+        if(imapCrawlerContext.getIgnoreSSLCertificates())
+        {
+            properties.setProperty("mail.imaps.socketFactory.class", CertificateIgnoringSocketFactory.class.getName());
+            properties.setProperty("mail.imaps.socketFactory.fallback", "false");
+        }
+        else if(!StringUtils.nullOrWhitespace(imapCrawlerContext.getSSLCertificateFilePath()) && "imaps".equalsIgnoreCase(strProtocol))
+        {
+            // the trust store only for this session, instead of setting 'javax.net.ssl.trustStore' for the whole JVM
+            properties.put("mail.imaps.ssl.socketFactory",
+                    createTrustStoreSocketFactory(imapCrawlerContext.getSSLCertificateFilePath(), imapCrawlerContext.getSSLCertificateFilePassword()));
+        }
+
+        properties.putAll(imapCrawlerContext.getSessionProperties());
+
+
+        return Session.getInstance(properties);
+    }
+
+
+
+    protected static SSLSocketFactory createTrustStoreSocketFactory(String strTrustStorePath, String strTrustStorePassword) throws MessagingException
+    {
+        try (InputStream trustStoreStream = new FileInputStream(strTrustStorePath))
+        {
+            KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+            trustStore.load(trustStoreStream, strTrustStorePassword == null ? null : strTrustStorePassword.toCharArray());
+
+            TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trustManagerFactory.init(trustStore);
+
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(null, trustManagerFactory.getTrustManagers(), null);
+
+
+            return sslContext.getSocketFactory();
+        }
+        catch (IOException | GeneralSecurityException e)
+        {
+            throw new MessagingException("could not load the SSL certificate file " + strTrustStorePath, e);
+        }
+    }
+
+
+
     /**
      * Does this folder hold any subfolders?
      * 
@@ -150,14 +426,10 @@ public class ImapCrawlerParser extends CrawlerParser
 
 
 
-    protected HashMap<Folder, Boolean> m_hsImapFolder2Stickyness = new HashMap<Folder, Boolean>();
-
-
-    protected Leech m_leech;
-
-
-
-    protected Store m_mailStore;
+    /**
+     * For each folder that is currently crawled, whether the processing of one of its messages failed
+     */
+    protected final Map<String, AtomicBoolean> m_hsFolderEntityId2MessageFailed = new ConcurrentHashMap<>();
 
 
 
@@ -185,6 +457,84 @@ public class ImapCrawlerParser extends CrawlerParser
 
 
 
+    /**
+     * Determines the first message of the crawled folder that has to be enumerated during an incremental crawl. For this, the current state of the folder (see
+     * {@link ImapFolderState}, which is the content fingerprint of the folder) will be compared with the state of the last crawl:
+     * <li>the folder is unmodified: no message has to be enumerated. The history marked all messages of the folder as crawled yet, because they are slaves of the
+     * folder entity
+     * <li>the folder has the same UIDVALIDITY, and messages were only appended: only the new messages (UID greater or equal the former UIDNEXT) have to be enumerated.
+     * The other messages will be marked as crawled over the folder entity. In the case the server supports CONDSTORE, this is only the case if no message was flagged
+     * as deleted in the meantime. Without CONDSTORE, messages flagged as deleted will be recognized as removed as soon as they are expunged
+     * <li>otherwise, all messages will be enumerated
+     *
+     * @param containerURLName the url of the crawled folder
+     * @param strFolderName    the full name of the crawled folder
+     * @param metadata         the metadata of the folder, with the current and former state
+     * @param context          the parse context
+     *
+     * @return the first message that has to be enumerated. UID 1 for all messages, null in the case no message has to be enumerated - the folder has not to be
+     *         selected at all in this case
+     *
+     * @throws MessagingException
+     */
+    protected FirstMessage2Crawl getFirstMessage2Crawl(URLName containerURLName, String strFolderName, Metadata metadata, ParseContext context) throws MessagingException
+    {
+        ImapFolderState currentState = ImapFolderState.fromFingerprint(metadata.get(IncrementalCrawlingHistory.dataEntityContentFingerprint));
+        if(currentState == null) return new FirstMessage2Crawl(1, 1);
+
+        String strDataEntityModState = metadata.get(IncrementalCrawlingParser.DATA_ENTITY_MODIFICATION_STATE);
+
+        if(IncrementalCrawlingParser.UNMODIFIED.equals(strDataEntityModState)) return null;
+        if(!IncrementalCrawlingParser.MODIFIED.equals(strDataEntityModState)) return new FirstMessage2Crawl(1, 1);
+
+        ImapFolderState formerState = ImapFolderState.fromFingerprint(metadata.get(IncrementalCrawlingParser.FORMER_DATA_ENTITY_CONTENT_FINGERPRINT));
+        if(formerState == null || formerState.getUidValidity() != currentState.getUidValidity()) return new FirstMessage2Crawl(1, 1);
+
+        CrawlerContext crawlerContext = context.get(CrawlerContext.class, new CrawlerContext());
+        IncrementalCrawlingHistory crawlingHistory = crawlerContext.getIncrementalCrawlingHistory();
+        String strFolderEntityId = metadata.get(IncrementalCrawlingHistory.dataEntityId);
+        if(crawlingHistory == null || strFolderEntityId == null) return new FirstMessage2Crawl(1, 1);
+
+
+        ImapConnectionPool connectionPool = ImapConnectionPool.getPool(context);
+        IMAPFolder folder = connectionPool.borrowFolder(containerURLName, strFolderName, context);
+
+        try
+        {
+            // die neuen messages haben eine UID >= dem alten UIDNEXT, und stehen damit alle am Ende des folders. Achtung: 'n:*' liefert immer mindestens
+            // die letzte message, auch wenn deren UID kleiner ist
+            int iFirstNewMessageNumber = folder.getMessageCount() + 1;
+            for (Message message : folder.getMessagesByUID(formerState.getUidNext(), UIDFolder.LASTUID))
+                if(message != null && folder.getUID(message) >= formerState.getUidNext())
+                    iFirstNewMessageNumber = Math.min(iFirstNewMessageNumber, message.getMessageNumber());
+
+            // wurde eine der alten messages entfernt, dann müssen wir alle anschauen - sonst würden wir das nicht bemerken
+            if(iFirstNewMessageNumber - 1 != formerState.getMessageCount()) return new FirstMessage2Crawl(1, 1);
+
+            // mit CONDSTORE sehen wir auch, ob eine der alten messages in der Zwischenzeit als gelöscht markiert wurde
+            if(formerState.getHighestModSeq() >= 0 && currentState.getHighestModSeq() >= 0 && formerState.getUidNext() > 1)
+            {
+                for (Message message : folder.getMessagesByUIDChangedSince(1, formerState.getUidNext() - 1, formerState.getHighestModSeq()))
+                    if(message.isSet(Flags.Flag.DELETED)) return new FirstMessage2Crawl(1, 1);
+            }
+
+
+            // es wurden nur messages angehängt - die alten markieren wir über den folder als gecrawlt
+            crawlingHistory.updateDataEntityLastCrawledTime(strFolderEntityId);
+
+            // z.B. wenn sich nur flags geändert haben
+            if(iFirstNewMessageNumber > folder.getMessageCount()) return null;
+
+            return new FirstMessage2Crawl(formerState.getUidNext(), iFirstNewMessageNumber);
+        }
+        finally
+        {
+            connectionPool.returnFolder(folder);
+        }
+    }
+
+
+
     protected URLName getMessageUrl(Folder folderOfmessage, MimeMessage message) throws MessagingException
     {
         String strUrlName4Folder = folderOfmessage.getURLName().toString();
@@ -228,135 +578,95 @@ public class ImapCrawlerParser extends CrawlerParser
         // imap[s]://uname:pwd@hostname:port/folder;uidvalidity=385759045/;uid=20
 
 
-        CrawlerContext crawlerContext = context.get(CrawlerContext.class, new CrawlerContext());
-
-
         String strContainerURL = metadata.get(Metadata.SOURCE);
 
         URLName containerURLName = new URLName(strContainerURL);
 
-        if(m_mailStore == null) m_mailStore = connect2Server(containerURLName, context);
-
-        // wenn kein directory angegeben wird, dann crawlen wir einfach den default folder und die inbox
-        LinkedList<Folder> llFolderz2Crawl = new LinkedList<Folder>();
-        if(containerURLName.getFile() != null)
-        {
-            Folder folder = m_mailStore.getFolder(containerURLName.getFile());
-            if(folder != null && folder.exists()) llFolderz2Crawl.add(folder);
-             else
-                 throw new FileNotFoundException("Can't find imap folder '" + folder.getFullName() + "'");
-            
-        }
-        else
-        {
-            Folder folder = m_mailStore.getDefaultFolder();
-            if(folder != null && folder.exists()) llFolderz2Crawl.add(folder);
-
-            folder = m_mailStore.getFolder("INBOX");
-            if(folder != null && folder.exists()) llFolderz2Crawl.add(folder);
-        }
-
-
+        ImapConnectionPool connectionPool = ImapConnectionPool.getPool(context);
+        Store mailStore = connectionPool.borrowStore(containerURLName, context);
 
         LinkedList<MultiValueHashMap<String, Object>> llEntityInfo = new LinkedList<MultiValueHashMap<String, Object>>();
+        LinkedHashMap<String, FirstMessage2Crawl> hsMessageFolder2FirstMessage = new LinkedHashMap<String, FirstMessage2Crawl>();
 
-
-        for (Folder folder2crawl : llFolderz2Crawl)
+        try
         {
-            // Jetzt haben wir die Containerobjekte - nun geben wir die Daten zu den SubEntities zurück
-
-
-            // die subfolder
-            boolean bFolderCanHaveSubFolders = (folder2crawl.getType() & Folder.HOLDS_FOLDERS) == Folder.HOLDS_FOLDERS;
-
-            if(bFolderCanHaveSubFolders)
+            // wenn kein directory angegeben wird, dann crawlen wir einfach den default folder und die inbox
+            LinkedList<Folder> llFolderz2Crawl = new LinkedList<Folder>();
+            if(containerURLName.getFile() != null)
             {
-                folder2crawl.open(Folder.READ_ONLY);
-
-
-                Folder[] subFolders = folder2crawl.list();
-                for (Folder subFolder : subFolders)
-                {
-                    URLName urlName = subFolder.getURLName();
-                    URLName urlNameWithPassword =
-                            new URLName(containerURLName.getProtocol(), urlName.getHost(), urlName.getPort(), urlName.getFile(),
-                                    urlName.getUsername(), containerURLName.getPassword());
-
-                    if(!checkIfInConstraints(urlName.toString(), null, context)) continue;
-
-
-                    MultiValueHashMap<String, Object> hsEntityInformation = new MultiValueHashMap<String, Object>();
+                Folder folder = mailStore.getFolder(containerURLName.getFile());
+                if(folder != null && folder.exists()) llFolderz2Crawl.add(folder);
+                else
+                    throw new FileNotFoundException("Can't find imap folder '" + folder.getFullName() + "'");
 
-                    hsEntityInformation.add(CrawlerParser.SOURCEID, urlName);
-                    hsEntityInformation.add("urlNameWithPassword", urlNameWithPassword);
-                    hsEntityInformation.add("folder", subFolder.getFullName());
+            }
+            else
+            {
+                Folder folder = mailStore.getDefaultFolder();
+                if(folder != null && folder.exists()) llFolderz2Crawl.add(folder);
 
-                    llEntityInfo.add(hsEntityInformation);
-                }
+                folder = mailStore.getFolder("INBOX");
+                if(folder != null && folder.exists()) llFolderz2Crawl.add(folder);
             }
 
 
-            // die messages
-            boolean bFolderCanHaveMessages = (folder2crawl.getType() & Folder.HOLDS_MESSAGES) == Folder.HOLDS_MESSAGES;
 
-            if(bFolderCanHaveMessages)
+            for (Folder folder2crawl : llFolderz2Crawl)
             {
-                if(!folder2crawl.isOpen()) folder2crawl.open(Folder.READ_ONLY);
+                // Jetzt haben wir die Containerobjekte - nun geben wir die Daten zu den SubEntities zurück
 
 
-                // wir holen uns alle nicht-deleted messages, und werfen noch die raus, die 'expunged' sind
-                Message[] relevantMessagesOfFolder = folder2crawl.search(new FlagTerm(new Flags(Flags.Flag.DELETED), false));
-                ArrayList<Message> nonDelNonExpungedMessages = new ArrayList<Message>();
-                for (Message message : relevantMessagesOfFolder)
-                    if(!message.isExpunged()) nonDelNonExpungedMessages.add(message);
-                relevantMessagesOfFolder = nonDelNonExpungedMessages.toArray(new Message[0]);
+                // die subfolder - für das Auflisten muss der folder nicht geöffnet (selektiert) werden
+                boolean bFolderCanHaveSubFolders = (folder2crawl.getType() & Folder.HOLDS_FOLDERS) == Folder.HOLDS_FOLDERS;
 
-                // die Daten die wir später benötigen holen wir uns effizient in einem Rutsch - deswegen benötigen wir auch keinen Thread mit dem
-                // OneAfterOneIterator, um Speicher zu sparen (siehe DirectoryCrawlerParser). Das Array haben wir hier eh. Entweder oder.
-                FetchProfile profile = new FetchProfile();
-                profile.add(UIDFolder.FetchProfileItem.UID);
-                profile.add("Message-ID");
-                folder2crawl.fetch(relevantMessagesOfFolder, profile);
-
-
-                for (int i = 0; i < relevantMessagesOfFolder.length && !crawlerContext.stopRequested(); i++)
+                if(bFolderCanHaveSubFolders)
                 {
-                    MimeMessage message = (MimeMessage) relevantMessagesOfFolder[i];
-
-                    // hier brauchen wir noch eine URL mit und eine ohne Passwort
-                    URLName urlName = getMessageUrl(folder2crawl, message);
-                    URLName urlNameWithPassword =
-                            new URLName(containerURLName.getProtocol(), urlName.getHost(), urlName.getPort(), urlName.getFile(),
-                                    urlName.getUsername(), containerURLName.getPassword());
+                    Folder[] subFolders = folder2crawl.list();
+                    for (Folder subFolder : subFolders)
+                    {
+                        URLName urlName = subFolder.getURLName();
+                        URLName urlNameWithPassword =
+                                new URLName(containerURLName.getProtocol(), urlName.getHost(), urlName.getPort(), urlName.getFile(),
+                                        urlName.getUsername(), containerURLName.getPassword());
 
+                        if(!checkIfInConstraints(urlName.toString(), null, context)) continue;
 
-                    if(!checkIfInConstraints(urlName.toString(), message, context)) continue;
 
+                        MultiValueHashMap<String, Object> hsEntityInformation = new MultiValueHashMap<String, Object>();
 
-                    MultiValueHashMap<String, Object> hsEntityInformation = new MultiValueHashMap<String, Object>();
-
-                    hsEntityInformation.add(CrawlerParser.SOURCEID, urlName);
-                    hsEntityInformation.add("urlNameWithPassword", urlNameWithPassword);
-                    hsEntityInformation.add("Message-ID", message.getHeader("Message-ID")[0]);
-                    hsEntityInformation.add("folder", folder2crawl.getFullName());
+                        hsEntityInformation.add(CrawlerParser.SOURCEID, urlName);
+                        hsEntityInformation.add("urlNameWithPassword", urlNameWithPassword);
+                        hsEntityInformation.add("folder", subFolder.getFullName());
 
-                    llEntityInfo.add(hsEntityInformation);
+                        llEntityInfo.add(hsEntityInformation);
+                    }
                 }
-            }
-
-            // wir haben die folder abgearbeitet, dann können wir diesen Speicher wieder frei geben
-            m_hsImapFolder2Stickyness.clear();
-
 
 
+                // die messages - die werden erst beim Iterieren seitenweise geholt, siehe MessagePageIterator
+                boolean bFolderCanHaveMessages = (folder2crawl.getType() & Folder.HOLDS_MESSAGES) == Folder.HOLDS_MESSAGES;
 
+                if(bFolderCanHaveMessages)
+                {
+                    // beim inkrementellen crawlen müssen wir evtl. nur die neuen messages anschauen - das geht nur für den gecrawlten folder selbst
+                    FirstMessage2Crawl firstMessage = new FirstMessage2Crawl(1, 1);
+                    if(containerURLName.getFile() != null)
+                        firstMessage = getFirstMessage2Crawl(containerURLName, folder2crawl.getFullName(), metadata, context);
 
-            if(folder2crawl.isOpen()) folder2crawl.close(false);
+                    // unveränderte folder lassen wir ganz weg - sonst würden wir sie für nix selektieren
+                    if(firstMessage != null) hsMessageFolder2FirstMessage.put(folder2crawl.getFullName(), firstMessage);
+                }
+            }
+        }
+        finally
+        {
+            connectionPool.returnStore(mailStore);
         }
 
 
 
-        return llEntityInfo.iterator();
+        // erst die subfolder, dann die messages
+        return new MessagePageIterator(llEntityInfo, hsMessageFolder2FirstMessage, containerURLName, context);
     }
 
 
@@ -373,10 +683,40 @@ public class ImapCrawlerParser extends CrawlerParser
     public void parse(InputStream stream, ContentHandler handler, Metadata metadata, ParseContext context) throws IOException, SAXException,
             TikaException
     {
-        super.parse(stream, handler, metadata, context);
+        // der Zustand des folders steht schon in der history. Bis alle seine messages fehlerfrei gecrawlt sind, ersetzen wir ihn durch einen Platzhalter -
+        // sonst würde der nächste crawl nach einem Abbruch, Fehler oder Absturz die restlichen messages überspringen
+        CrawlerContext crawlerContext = context.get(CrawlerContext.class, new CrawlerContext());
+        IncrementalCrawlingHistory crawlingHistory = crawlerContext.getIncrementalCrawlingHistory();
+        String strFolderEntityId = metadata.get(IncrementalCrawlingHistory.dataEntityId);
+        String strFolderState = metadata.get(IncrementalCrawlingHistory.dataEntityContentFingerprint);
+        boolean bHasFolderState = strFolderEntityId != null && ImapFolderState.fromFingerprint(strFolderState) != null && crawlingHistory != null;
+        boolean bCompleted = false;
+
+        AtomicBoolean messageFailed = new AtomicBoolean(false);
+        if(bHasFolderState)
+        {
+            if(crawlingHistory.isOpen()) crawlingHistory.updateDataEntityContentFingerprint(strFolderEntityId, strFolderEntityId);
+            m_hsFolderEntityId2MessageFailed.put(strFolderEntityId, messageFailed);
+        }
+
+        try
+        {
+            super.parse(stream, handler, metadata, context);
+
+            bCompleted = !crawlerContext.stopRequested() && !messageFailed.get();
+        }
+        finally
+        {
+            if(bHasFolderState)
+            {
+                m_hsFolderEntityId2MessageFailed.remove(strFolderEntityId, messageFailed);
 
+                if(bCompleted && crawlingHistory.isOpen()) crawlingHistory.updateDataEntityContentFingerprint(strFolderEntityId, strFolderState);
+            }
+        }
 
-        // Wenn ein completter crawl fertig ist, dann schliessen wir auch wieder unseren MailStore
+
+        // Wenn ein completter crawl fertig ist, dann schliessen wir auch wieder die ungenutzten Verbindungen des pools
 
         int iCurrentCrawlingDepth = 0;
         String strDepth = metadata.get(CrawlerParser.CURRENT_CRAWLING_DEPTH);
@@ -385,20 +725,16 @@ public class ImapCrawlerParser extends CrawlerParser
 
         if(iCurrentCrawlingDepth != 0) return;
 
-        try
-        {
+        ImapConnectionPool.getPool(context).closeIdle();
+    }
 
-            m_mailStore.close();
-            m_mailStore = null;
 
-        }
-        catch (MessagingException e)
-        {
-            String strSourceID = metadata.get(Metadata.SOURCE);
 
-            ExceptionUtils.handleException(e, strSourceID, metadata, context.get(CrawlerContext.class, new CrawlerContext()), context,
-                    iCurrentCrawlingDepth, handler);
-        }
+    @Override
+    protected boolean needsCurrentDataEntityContent()
+    {
+        // IMAP folders have no own content - we don't need to copy the stream
+        return false;
     }
 
 
@@ -415,9 +751,39 @@ public class ImapCrawlerParser extends CrawlerParser
     protected void processSubDataEntity(MultiValueHashMap<String, Object> subDataEntityInformation, Metadata metadata,
             ContentHandler handler2use4recursiveCall, ParseContext context) throws Exception
     {
-
         URLName urlNameWithPassword = (URLName) subDataEntityInformation.getFirst("urlNameWithPassword");
 
+        try
+        {
+            processSubDataEntity(subDataEntityInformation, metadata, handler2use4recursiveCall, context, urlNameWithPassword);
+        }
+        catch (Exception e)
+        {
+            // schlägt eine message fehl, dann darf ihr folder seinen Zustand nicht in die history schreiben, und die message selbst muss beim nächsten
+            // crawl als verändert gelten - sonst würde sie nicht nochmal versucht
+            String strMessageId = (String) subDataEntityInformation.getFirst("Message-ID");
+            if(strMessageId != null)
+            {
+                String strMessageFolder = (String) subDataEntityInformation.getFirst("folder");
+
+                AtomicBoolean messageFailed = m_hsFolderEntityId2MessageFailed.get(ImapURLStreamProvider.getEntityId(strMessageFolder, null));
+                if(messageFailed != null) messageFailed.set(true);
+
+                IncrementalCrawlingHistory crawlingHistory = context.get(CrawlerContext.class, new CrawlerContext()).getIncrementalCrawlingHistory();
+                if(crawlingHistory != null && crawlingHistory.isOpen())
+                    crawlingHistory.updateDataEntityContentFingerprint(ImapURLStreamProvider.getEntityId(strMessageFolder, strMessageId), null);
+            }
+
+            throw e;
+        }
+    }
+
+
+
+    protected void processSubDataEntity(MultiValueHashMap<String, Object> subDataEntityInformation, Metadata metadata,
+            ContentHandler handler2use4recursiveCall, ParseContext context, URLName urlNameWithPassword) throws Exception
+    {
+
         String strMessageId = (String) subDataEntityInformation.getFirst("Message-ID");
         String strMessageFolder = (String) subDataEntityInformation.getFirst("folder");
 
@@ -427,8 +793,14 @@ public class ImapCrawlerParser extends CrawlerParser
         // Metadata-Objekt stehen, werden sie von der addFirstMetadata nicht nochmal geladen
         metadata.set(Metadata.SOURCE, urlNameWithPassword.toString());
         metadata.set(IncrementalCrawlingHistory.dataEntityId, strEntityId);
-        metadata.set(IncrementalCrawlingHistory.dataEntityContentFingerprint,
-                ImapURLStreamProvider.getDataEntityContentFingerprint(strEntityId));
+        if(strMessageId != null)
+        {
+            metadata.set(IncrementalCrawlingHistory.dataEntityContentFingerprint,
+                    ImapURLStreamProvider.getDataEntityContentFingerprint(strEntityId));
+            // die messages hängen am folder - ist dieser beim nächsten crawl unverändert, dann werden diese über ihn als gecrawlt markiert
+            metadata.set(IncrementalCrawlingHistory.masterDataEntityId, ImapURLStreamProvider.getEntityId(strMessageFolder, null));
+        }
+        // den fingerprint eines folders (dessen Zustand) holt sich die addFirstMetadata vom server
         URLName urlNameWithoutPassword =
                 new URLName(urlNameWithPassword.getProtocol(), urlNameWithPassword.getHost(), urlNameWithPassword.getPort(),
                         urlNameWithPassword.getFile(), urlNameWithPassword.getUsername(), "");
@@ -448,11 +820,8 @@ public class ImapCrawlerParser extends CrawlerParser
         try
         {
 
-            if(m_leech == null) m_leech = new Leech();
-
-
             // hier nimmt der dann bei einer message hoffentlich den Tika RFC822Parser
-            Parser parser = m_leech.getParser();
+            Parser parser = getLeech().getParser();
 
             parser.parse(stream, handler2use4recursiveCall, metadata, context);
 
@@ -19,7 +19,8 @@ import java.util.Map.Entry;
  * A crawlerParser that simply adds all extracted metadata of subEntities to the handler, without further parsing / recursive call. This is for convinience, if you have
  * simple data containers e.g. big json arrays of csv files that just have to be parsed and can then be written directly to the data sinks. The class ignores the data
  * from the container, e.g. the metadata from the csv file itself. If you want to change this, overwrite
- * {@link #processCurrentDataEntity(InputStream, Metadata, ContentHandler, ParseContext)}<br>
+ * {@link #processCurrentDataEntity(InputStream, Metadata, ContentHandler, ParseContext)}. Subclasses that don't read the container content there can return false
+ * with {@link #needsCurrentDataEntityContent()}, which avoids buffering the content for a second read<br>
  * <br>
  * Remark: <br>
  * <li>You can ignore using the history for performance reasons if this is necessary. This is the default behaviour. If you want to change this, set
@@ -3,7 +3,6 @@ package de.dfki.km.leech.parser;
 
 
 import de.dfki.inquisitor.collections.MultiValueHashMap;
-import de.dfki.km.leech.Leech;
 import de.dfki.km.leech.io.URLStreamProvider;
 import org.apache.tika.metadata.Metadata;
 import org.apache.tika.mime.MediaType;
@@ -26,11 +25,6 @@ public class UrlListCrawlerParser extends CrawlerParser
 
 
 
-
-    protected Leech m_leech;
-
-
-
     @Override
     protected Iterator<MultiValueHashMap<String, Object>> getSubDataEntitiesInformation(InputStream stream, ContentHandler handler, Metadata metadata,
             ParseContext context) throws Exception
@@ -69,6 +63,15 @@ public class UrlListCrawlerParser extends CrawlerParser
 
 
 
+    @Override
+    protected boolean needsCurrentDataEntityContent()
+    {
+        // the url list is only read once, for getting the sub entities
+        return false;
+    }
+
+
+
     @Override
     protected void processCurrentDataEntity(InputStream stream, Metadata metadata, ContentHandler handler, ParseContext context) throws Exception
     {
@@ -94,11 +97,9 @@ public class UrlListCrawlerParser extends CrawlerParser
         try
         {
 
-            if(m_leech == null) m_leech = new Leech();
-
             LoggerFactory.getLogger(UrlListCrawlerParser.class.getName()).info("Will crawl " + strUrl);
 
-            Parser parser = m_leech.getParser();
+            Parser parser = getLeech().getParser();
 
             parser.parse(stream, handler2use4recursiveCall, metadata2use4recursiveCall, context);
 
@@ -0,0 +1,321 @@
+/*
+    Leech - crawling capabilities for Apache Tika
+
+    Copyright (C) 2012 DFKI GmbH, Author: Christian Reuschling
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+    Contact us by mail: christian.reuschling@dfki.de
+*/
+
+package de.dfki.km.leech.parser.filter;
+
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+
+/**
+ * Matches a set of substrings against a string at once, in a single pass over the string (Aho-Corasick automaton). The automaton is immutable after construction, thus
+ * it can be used by several threads at the same time. This is used by {@link URLFilter} to evaluate many {@link SubstringPattern} objects at once.
+ */
+public class AhoCorasickMatcher
+{
+
+    /**
+     * A state of the automaton
+     */
+    protected static class Node
+    {
+        protected char[] m_children2Chars = new char[0];
+
+        protected Node[] m_children = new Node[0];
+
+        protected Node m_fail;
+
+        /**
+         * the ids of all substrings that end in this state, including the ones of the fail states
+         */
+        protected int[] m_outputs = new int[0];
+
+        /**
+         * whether a substring ends exactly in this state - i.e. not only because of a fail state
+         */
+        protected boolean m_bTerminal = false;
+
+
+
+        protected Node getChild(char c)
+        {
+            int iIndex = Arrays.binarySearch(m_children2Chars, c);
+
+            return iIndex < 0 ? null : m_children[iIndex];
+        }
+    }
+
+
+
+    protected final int m_iSubstringCount;
+
+    protected final Node m_root;
+
+
+
+    /**
+     * Creates a new matcher for the given substrings. Duplicates will be counted once.
+     *
+     * @param substrings the substrings
+     */
+    public AhoCorasickMatcher(Collection<String> substrings)
+    {
+        List<String> lDistinctSubstrings = new ArrayList<>(new LinkedHashSet<>(substrings));
+        m_iSubstringCount = lDistinctSubstrings.size();
+
+
+        // ## der trie - während des Aufbaus mit Maps, danach kompakt mit sortierten Arrays
+
+        Map<Node, TreeMap<Character, Node>> hsNode2Children = new HashMap<>();
+        m_root = new Node();
+        hsNode2Children.put(m_root, new TreeMap<>());
+
+        for (int iId = 0; iId < lDistinctSubstrings.size(); iId++)
+        {
+            Node node = m_root;
+            for (char c : lDistinctSubstrings.get(iId).toCharArray())
+            {
+                TreeMap<Character, Node> hsChildren = hsNode2Children.get(node);
+                Node child = hsChildren.get(c);
+                if(child == null)
+                {
+                    child = new Node();
+                    hsChildren.put(c, child);
+                    hsNode2Children.put(child, new TreeMap<>());
+                }
+                node = child;
+            }
+
+            node.m_bTerminal = true;
+            node.m_outputs = appendOutput(node.m_outputs, iId);
+        }
+
+        for (Map.Entry<Node, TreeMap<Character, Node>> node2Children : hsNode2Children.entrySet())
+        {
+            Node node = node2Children.getKey();
+            TreeMap<Character, Node> hsChildren = node2Children.getValue();
+
+            node.m_children2Chars = new char[hsChildren.size()];
+            node.m_children = new Node[hsChildren.size()];
+            int i = 0;
+            for (Map.Entry<Character, Node> char2Child : hsChildren.entrySet())
+            {
+                node.m_children2Chars[i] = char2Child.getKey();
+                node.m_children[i] = char2Child.getValue();
+                i++;
+            }
+        }
+
+
+        // ## die fail links - breadth first, die Outputs der fail states werden übernommen
+
+        LinkedList<Node> llQueue = new LinkedList<>();
+        m_root.m_fail = m_root;
+        for (Node child : m_root.m_children)
+        {
+            child.m_fail = m_root;
+            child.m_outputs = mergeOutputs(child.m_outputs, m_root.m_outputs);
+            llQueue.add(child);
+        }
+
+        while (!llQueue.isEmpty())
+        {
+            Node node = llQueue.removeFirst();
+
+            for (int i = 0; i < node.m_children.length; i++)
+            {
+                char c = node.m_children2Chars[i];
+                Node child = node.m_children[i];
+
+                Node fail = node.m_fail;
+                while (fail != m_root && fail.getChild(c) == null)
+                    fail = fail.m_fail;
+                Node failChild = fail.getChild(c);
+                child.m_fail = failChild == null || failChild == child ? m_root : failChild;
+
+                child.m_outputs = mergeOutputs(child.m_outputs, child.m_fail.m_outputs);
+                llQueue.add(child);
+            }
+        }
+    }
+
+
+
+    protected static int[] appendOutput(int[] outputs, int iId)
+    {
+        int[] newOutputs = Arrays.copyOf(outputs, outputs.length + 1);
+        newOutputs[outputs.length] = iId;
+
+        return newOutputs;
+    }
+
+
+
+    protected static int[] mergeOutputs(int[] outputs, int[] outputs2merge)
+    {
+        if(outputs2merge.length == 0) return outputs;
+
+        int[] newOutputs = Arrays.copyOf(outputs, outputs.length + outputs2merge.length);
+        System.arraycopy(outputs2merge, 0, newOutputs, outputs.length, outputs2merge.length);
+
+        return newOutputs;
+    }
+
+
+
+    /**
+     * Checks whether the string contains at least one of the substrings
+     *
+     * @param strString the string to check
+     *
+     * @return true in the case at least one substring occurs inside the string
+     */
+    public boolean containsAny(String strString)
+    {
+        if(m_root.m_outputs.length > 0) return true;
+
+        Node node = m_root;
+        for (int i = 0; i < strString.length(); i++)
+        {
+            node = step(node, strString.charAt(i));
+            if(node.m_outputs.length > 0) return true;
+        }
+
+        return false;
+    }
+
+
+
+    /**
+     * Counts how many of the (distinct) substrings occur inside the string
+     *
+     * @param strString the string to check
+     *
+     * @return the number of substrings that occur inside the string
+     */
+    public int countContained(String strString)
+    {
+        boolean[] found = new boolean[m_iSubstringCount];
+        int iFound = 0;
+
+        Node node = m_root;
+        for (int i = -1; i < strString.length(); i++)
+        {
+            // i == -1: the empty substring, which occurs always
+            if(i >= 0) node = step(node, strString.charAt(i));
+
+            for (int iId : node.m_outputs)
+            {
+                if(found[iId]) continue;
+
+                found[iId] = true;
+                if(++iFound == m_iSubstringCount) return iFound;
+            }
+        }
+
+        return iFound;
+    }
+
+
+
+    /**
+     * Checks whether the string ends with at least one of the substrings. For this, the matcher must be created with the reversed substrings.
+     *
+     * @param strString the string to check
+     *
+     * @return true in the case the string ends with at least one of the (reversed) substrings
+     */
+    public boolean endsWithAnyReversed(String strString)
+    {
+        Node node = m_root;
+        if(node.m_bTerminal) return true;
+
+        for (int i = strString.length() - 1; i >= 0; i--)
+        {
+            node = node.getChild(strString.charAt(i));
+            if(node == null) return false;
+            if(node.m_bTerminal) return true;
+        }
+
+        return false;
+    }
+
+
+
+    /**
+     * Gets the number of distinct substrings of this matcher
+     *
+     * @return the number of distinct substrings
+     */
+    public int getSubstringCount()
+    {
+        return m_iSubstringCount;
+    }
+
+
+
+    /**
+     * Checks whether the string starts with at least one of the substrings
+     *
+     * @param strString the string to check
+     *
+     * @return true in the case the string starts with at least one of the substrings
+     */
+    public boolean startsWithAny(String strString)
+    {
+        Node node = m_root;
+        if(node.m_bTerminal) return true;
+
+        for (int i = 0; i < strString.length(); i++)
+        {
+            node = node.getChild(strString.charAt(i));
+            if(node == null) return false;
+            if(node.m_bTerminal) return true;
+        }
+
+        return false;
+    }
+
+
+
+    protected Node step(Node node, char c)
+    {
+        while (true)
+        {
+            Node child = node.getChild(c);
+            if(child != null) return child;
+            if(node == m_root) return m_root;
+
+            node = node.m_fail;
+        }
+    }
+
+}
@@ -26,10 +26,15 @@ package de.dfki.km.leech.parser.filter;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 
 
@@ -41,6 +46,12 @@ import java.util.List;
  * it is inside or outside the domain. A URL/source string is inside the domain when it matches at least one of the include patterns but none of the
  * exclude patterns. In case no include patterns are specified, all URLs that don't match any of the exclude patterns are included.<br>
  * <br>
+ * For a fast evaluation also of hundreds of patterns, each pattern list will be compiled at the first check: all {@link SubstringPattern} objects into
+ * {@link AhoCorasickMatcher} automatons (one for each condition), and the {@link RegExpPattern} objects into a single alternation (as long as they have the same
+ * flags and no back references). Thus a URL will be checked against all substring patterns in one pass. The compiled form will be recreated when the pattern lists
+ * are modified by this class - in the case you modify a pattern object that is already inside the filter, invoke {@link #patternsChanged()} afterwards.
+ * Optionally, the recent verdicts can be cached (see {@link #setVerdictCacheSize(int)}).<br>
+ * <br>
  * Examples:<br>
  * <br>
  * URLFilter URLFilter = new URLFilter().addIncludePattern(new SubstringPattern("file:", SubstringPattern.STARTS_WITH));<br>
@@ -51,10 +62,152 @@ import java.util.List;
 public class URLFilter implements FilenameFilter
 {
 
+    /**
+     * A compiled pattern list, that checks whether a URL/source string matches at least one of the patterns
+     */
+    protected static class CompiledPatterns
+    {
+        protected AhoCorasickMatcher m_containsMatcher;
+
+        protected AhoCorasickMatcher m_doesNotContainMatcher;
+
+        protected AhoCorasickMatcher m_endsWithMatcher;
+
+        protected URLFilterPattern[] m_otherPatterns;
+
+        protected Pattern[] m_regExps;
+
+        protected AhoCorasickMatcher m_startsWithMatcher;
+
+
+
+        protected CompiledPatterns(List<URLFilterPattern> lPatterns)
+        {
+            List<String> lContains = new ArrayList<>();
+            List<String> lDoesNotContain = new ArrayList<>();
+            List<String> lEndsWithReversed = new ArrayList<>();
+            List<String> lStartsWith = new ArrayList<>();
+            Map<Integer, List<String>> hsFlags2RegExps = new LinkedHashMap<>();
+            List<Pattern> lRegExps = new ArrayList<>();
+            List<URLFilterPattern> lOtherPatterns = new ArrayList<>();
+
+            for (URLFilterPattern pattern : lPatterns)
+            {
+                // subclasses may have their own matches implementation - we compile only the patterns we know exactly
+                if(pattern != null && pattern.getClass() == SubstringPattern.class && ((SubstringPattern) pattern).getSubstring() != null)
+                {
+                    SubstringPattern substringPattern = (SubstringPattern) pattern;
+                    String strSubstring = substringPattern.getSubstring();
+                    Class<?> conditionClass = substringPattern.getCondition() == null ? null : substringPattern.getCondition().getClass();
+
+                    if(conditionClass == SubstringPattern.Contains.class) lContains.add(strSubstring);
+                    else if(conditionClass == SubstringPattern.DoesNotContain.class) lDoesNotContain.add(strSubstring);
+                    else if(conditionClass == SubstringPattern.EndsWith.class) lEndsWithReversed.add(new StringBuilder(strSubstring).reverse().toString());
+                    else if(conditionClass == SubstringPattern.StartsWith.class) lStartsWith.add(strSubstring);
+                    else lOtherPatterns.add(pattern);
+                }
+                else if(pattern != null && pattern.getClass() == RegExpPattern.class && ((RegExpPattern) pattern).getPattern() != null)
+                {
+                    Pattern regExp = ((RegExpPattern) pattern).getPattern();
+
+                    if(isCombinable(regExp)) hsFlags2RegExps.computeIfAbsent(regExp.flags(), iFlags -> new ArrayList<>()).add(regExp.pattern());
+                    else lRegExps.add(regExp);
+                }
+                else if(pattern != null) lOtherPatterns.add(pattern);
+            }
+
+
+            if(!lContains.isEmpty()) m_containsMatcher = new AhoCorasickMatcher(lContains);
+            if(!lDoesNotContain.isEmpty()) m_doesNotContainMatcher = new AhoCorasickMatcher(lDoesNotContain);
+            if(!lEndsWithReversed.isEmpty()) m_endsWithMatcher = new AhoCorasickMatcher(lEndsWithReversed);
+            if(!lStartsWith.isEmpty()) m_startsWithMatcher = new AhoCorasickMatcher(lStartsWith);
+
+            for (Map.Entry<Integer, List<String>> flags2RegExps : hsFlags2RegExps.entrySet())
+            {
+                List<String> lRegExpStrings = flags2RegExps.getValue();
+                if(lRegExpStrings.size() == 1)
+                {
+                    lRegExps.add(Pattern.compile(lRegExpStrings.get(0), flags2RegExps.getKey()));
+                    continue;
+                }
+
+                StringBuilder strbAlternation = new StringBuilder();
+                for (String strRegExp : lRegExpStrings)
+                {
+                    if(strbAlternation.length() > 0) strbAlternation.append('|');
+                    strbAlternation.append("(?:").append(strRegExp).append(')');
+                }
+
+                try
+                {
+                    lRegExps.add(Pattern.compile(strbAlternation.toString(), flags2RegExps.getKey()));
+                }
+                catch (PatternSyntaxException e)
+                {
+                    for (String strRegExp : lRegExpStrings)
+                        lRegExps.add(Pattern.compile(strRegExp, flags2RegExps.getKey()));
+                }
+            }
+
+            m_regExps = lRegExps.toArray(new Pattern[0]);
+            m_otherPatterns = lOtherPatterns.toArray(new URLFilterPattern[0]);
+        }
+
+
+
+        /**
+         * Checks whether a regular expression can be part of an alternation without changing its meaning
+         *
+         * @param regExp the regular expression
+         *
+         * @return true in the case the expression can be combined with others
+         */
+        protected static boolean isCombinable(Pattern regExp)
+        {
+            if((regExp.flags() & (Pattern.LITERAL | Pattern.COMMENTS)) != 0) return false;
+
+            String strRegExp = regExp.pattern();
+
+            // back references and named groups depend on the group numbering, quotings and comments could swallow the alternation syntax
+            return !strRegExp.matches("(?s).*(\\\\[1-9]|\\\\k<|\\(\\?<[a-zA-Z]|\\\\Q|\\(\\?[a-zA-Z]*x).*");
+        }
+
+
+
+        protected boolean matchesAny(String strUrlOrSource)
+        {
+            if(m_startsWithMatcher != null && m_startsWithMatcher.startsWithAny(strUrlOrSource)) return true;
+            if(m_endsWithMatcher != null && m_endsWithMatcher.endsWithAnyReversed(strUrlOrSource)) return true;
+            if(m_containsMatcher != null && m_containsMatcher.containsAny(strUrlOrSource)) return true;
+            // a 'does not contain' pattern matches in the case its substring is missing - i.e. not all of the substrings were found
+            if(m_doesNotContainMatcher != null && m_doesNotContainMatcher.countContained(strUrlOrSource) < m_doesNotContainMatcher.getSubstringCount()) return true;
+
+            for (Pattern regExp : m_regExps)
+                if(regExp.matcher(strUrlOrSource).matches()) return true;
+
+            for (URLFilterPattern pattern : m_otherPatterns)
+                if(pattern.matches(strUrlOrSource)) return true;
+
+            return false;
+        }
+    }
+
+
+
+
+
+    protected volatile CompiledPatterns m_compiledExcludePatterns;
+
+    protected volatile CompiledPatterns m_compiledIncludePatterns;
+
+    protected int m_iVerdictCacheSize = 0;
+
     protected LinkedList<URLFilterPattern> m_llExcludePatterns;
 
     protected LinkedList<URLFilterPattern> m_llIncludePatterns;
 
+    protected volatile Map<String, Boolean> m_hsVerdictCache;
+
 
 
     public URLFilter()
@@ -90,42 +243,36 @@ public class URLFilter implements FilenameFilter
      */
     public boolean accept(String strUrlOrSource)
     {
-        URLFilterPattern pattern;
-
-        boolean insideDomain = false;
-
-        int nrIncludePatterns = m_llIncludePatterns.size();
-        if(nrIncludePatterns == 0)
+        Map<String, Boolean> hsVerdictCache = m_hsVerdictCache;
+        if(hsVerdictCache != null)
         {
-            insideDomain = true;
-        }
-        else
-        {
-            for (int i = 0; i < nrIncludePatterns; i++)
-            {
-                pattern = m_llIncludePatterns.get(i);
-                if(pattern.matches(strUrlOrSource))
-                {
-                    insideDomain = true;
-                    break;
-                }
-            }
+            Boolean bCachedVerdict = hsVerdictCache.get(strUrlOrSource);
+            if(bCachedVerdict != null) return bCachedVerdict;
         }
 
-        if(insideDomain)
+
+        CompiledPatterns compiledIncludePatterns = m_compiledIncludePatterns;
+        CompiledPatterns compiledExcludePatterns = m_compiledExcludePatterns;
+        if(compiledIncludePatterns == null || compiledExcludePatterns == null)
         {
-            int nrExcludePatterns = m_llExcludePatterns.size();
-            for (int i = 0; i < nrExcludePatterns; i++)
+            synchronized (this)
             {
-                pattern = m_llExcludePatterns.get(i);
-                if(pattern.matches(strUrlOrSource))
-                {
-                    insideDomain = false;
-                    break;
-                }
+                if(m_compiledIncludePatterns == null) m_compiledIncludePatterns = new CompiledPatterns(m_llIncludePatterns);
+                if(m_compiledExcludePatterns == null) m_compiledExcludePatterns = new CompiledPatterns(m_llExcludePatterns);
+
+                compiledIncludePatterns = m_compiledIncludePatterns;
+                compiledExcludePatterns = m_compiledExcludePatterns;
             }
         }
 
+
+        boolean insideDomain = m_llIncludePatterns.isEmpty() || compiledIncludePatterns.matchesAny(strUrlOrSource);
+
+        if(insideDomain) insideDomain = !compiledExcludePatterns.matchesAny(strUrlOrSource);
+
+
+        if(hsVerdictCache != null) hsVerdictCache.put(strUrlOrSource, insideDomain);
+
         return insideDomain;
     }
 
@@ -155,6 +302,7 @@ public class URLFilter implements FilenameFilter
     public URLFilter addExcludePattern(URLFilterPattern... pattern)
     {
         m_llExcludePatterns.addAll(Arrays.asList(pattern));
+        patternsChanged();
 
         return this;
     }
@@ -171,6 +319,7 @@ public class URLFilter implements FilenameFilter
     public URLFilter addIncludePattern(URLFilterPattern... pattern)
     {
         m_llIncludePatterns.addAll(Arrays.asList(pattern));
+        patternsChanged();
 
         return this;
     }
@@ -197,6 +346,40 @@ public class URLFilter implements FilenameFilter
 
 
 
+    /**
+     * Gets the maximum number of recent verdicts that will be cached. The default is 0, i.e. no caching.
+     *
+     * @return the maximum number of cached verdicts
+     */
+    public int getVerdictCacheSize()
+    {
+        return m_iVerdictCacheSize;
+    }
+
+
+
+    /**
+     * Discards the compiled patterns and the cached verdicts. The patterns will be compiled again at the next check. Invoke this in the case you modified a pattern
+     * object that is already part of this filter, e.g. with {@link SubstringPattern#setSubstring(String)}. All modifications with the methods of this class invoke it
+     * automatically.
+     *
+     * @return this for convenience
+     */
+    public URLFilter patternsChanged()
+    {
+        synchronized (this)
+        {
+            m_compiledIncludePatterns = null;
+            m_compiledExcludePatterns = null;
+        }
+
+        setVerdictCacheSize(m_iVerdictCacheSize);
+
+        return this;
+    }
+
+
+
     /**
      * Removes all exclude pattern
      *
@@ -205,6 +388,7 @@ public class URLFilter implements FilenameFilter
     public URLFilter removeAllExcludePatterns()
     {
         m_llExcludePatterns.clear();
+        patternsChanged();
 
         return this;
     }
@@ -219,6 +403,7 @@ public class URLFilter implements FilenameFilter
     public URLFilter removeAllIncludePatterns()
     {
         m_llIncludePatterns.clear();
+        patternsChanged();
 
         return this;
     }
@@ -242,14 +427,20 @@ public class URLFilter implements FilenameFilter
 
     public boolean removeExcludePattern(URLFilterPattern... pattern)
     {
-        return m_llExcludePatterns.removeAll(Arrays.asList(pattern));
+        boolean bRemoved = m_llExcludePatterns.removeAll(Arrays.asList(pattern));
+        patternsChanged();
+
+        return bRemoved;
     }
 
 
 
     public boolean removeIncludePattern(URLFilterPattern... pattern)
     {
-        return m_llIncludePatterns.removeAll(Arrays.asList(pattern));
+        boolean bRemoved = m_llIncludePatterns.removeAll(Arrays.asList(pattern));
+        patternsChanged();
+
+        return bRemoved;
     }
 
 
@@ -264,6 +455,7 @@ public class URLFilter implements FilenameFilter
     public URLFilter setExcludePatterns(List<URLFilterPattern> lExcludePatterns)
     {
         this.m_llExcludePatterns = new LinkedList<URLFilterPattern>(lExcludePatterns);
+        patternsChanged();
 
         return this;
     }
@@ -280,6 +472,38 @@ public class URLFilter implements FilenameFilter
     public URLFilter setIncludePatterns(List<URLFilterPattern> lIncludePatterns)
     {
         this.m_llIncludePatterns = new LinkedList<URLFilterPattern>(lIncludePatterns);
+        patternsChanged();
+
+        return this;
+    }
+
+
+
+    /**
+     * Sets the maximum number of recent verdicts that will be cached. In the case the same URLs/source strings are checked again and again (e.g. the links of a web
+     * site, which are part of each page), the verdict will be taken out of this cache (least recently used). The key is the whole URL/source string, because the
+     * patterns can refer to any part of it. The default is 0, i.e. no caching.
+     *
+     * @param iVerdictCacheSize the maximum number of cached verdicts. 0 or less disables the cache
+     *
+     * @return this with the new entry. For convenience.
+     */
+    @SuppressWarnings("serial")
+    public URLFilter setVerdictCacheSize(final int iVerdictCacheSize)
+    {
+        m_iVerdictCacheSize = Math.max(iVerdictCacheSize, 0);
+
+        if(m_iVerdictCacheSize == 0)
+            m_hsVerdictCache = null;
+        else
+            m_hsVerdictCache = Collections.synchronizedMap(new LinkedHashMap<String, Boolean>(16, 0.75f, true)
+            {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest)
+                {
+                    return size() > iVerdictCacheSize;
+                }
+            });
 
         return this;
     }
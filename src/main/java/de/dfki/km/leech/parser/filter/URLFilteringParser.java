@@ -52,10 +52,14 @@ public class URLFilteringParser extends ParserDecorator
 {
 
 
+    /**
+     * The state of the URLFilteringParser that is shared by all invocations of a crawl. Invocations from several threads synchronize on
+     * {@link #redirect2OriginSource}.
+     */
     public static class URLFilteringParserContext
     {
 
-        public MultiValueHashMap<String, String> redirect2OriginSource = new MultiValueHashMap<>();
+        public final MultiValueHashMap<String, String> redirect2OriginSource = new MultiValueHashMap<>();
 
     }
 
@@ -107,12 +111,14 @@ public class URLFilteringParser extends ParserDecorator
         if(crawlerContext == null) crawlerContext = new CrawlerContext();
 
 
+        // in a parallel crawl, the CrawlerParser created this before the first task was dispatched. Otherwise, we are the only thread
         URLFilteringParserContext urlFilteringParserContext = context.get(URLFilteringParserContext.class);
         if(urlFilteringParserContext == null)
         {
             urlFilteringParserContext = new URLFilteringParserContext();
             context.set(URLFilteringParserContext.class, urlFilteringParserContext);
         }
+        MultiValueHashMap<String, String> redirect2OriginSource = urlFilteringParserContext.redirect2OriginSource;
 
 
 
@@ -125,7 +131,12 @@ public class URLFilteringParser extends ParserDecorator
         if(m_hsMetadataKeys.contains(Metadata.SOURCE) && metadata.get(LeechMetadata.originSource) != null && m_bAcceptSuceedingRedirects)
         {
             if(!metadata.get(Metadata.SOURCE).equals(metadata.get(LeechMetadata.originSource)))
-                urlFilteringParserContext.redirect2OriginSource.add(metadata.get(Metadata.SOURCE), metadata.get(LeechMetadata.originSource));
+            {
+                synchronized (redirect2OriginSource)
+                {
+                    redirect2OriginSource.add(metadata.get(Metadata.SOURCE), metadata.get(LeechMetadata.originSource));
+                }
+            }
         }
 
         // ## URLFilter - wenn unsere zu parsende entity ausserhalb der Domäne steht, dann ignorieren wir sie auch
@@ -140,8 +151,14 @@ public class URLFilteringParser extends ParserDecorator
             if(m_bAcceptSuceedingRedirects)
             {
                 // wenn wir einen redirect angegeben haben, dann haben wir im Filter eventuell das originale spezifiziert - das gilt dann auch
+                List<Map.Entry<String, String>> llRedirect2Origin;
+                synchronized (redirect2OriginSource)
+                {
+                    llRedirect2Origin = new ArrayList<>(redirect2OriginSource.entryList());
+                }
+
                 String strUrlWithOrigin = null;
-                for (Map.Entry<String, String> redirect2Origin : urlFilteringParserContext.redirect2OriginSource.entryList())
+                for (Map.Entry<String, String> redirect2Origin : llRedirect2Origin)
                 {
                     if(strValue.startsWith(redirect2Origin.getKey()))
                     {
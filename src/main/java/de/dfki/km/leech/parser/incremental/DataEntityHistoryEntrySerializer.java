@@ -0,0 +1,218 @@
+/*
+ * Leech - crawling capabilities for Apache Tika
+ *
+ * Copyright (C) 2012 DFKI GmbH, Author: Christian Reuschling
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contact us by mail: christian.reuschling@dfki.de
+ */
+
+package de.dfki.km.leech.parser.incremental;
+
+
+
+import org.mapdb.DataInput2;
+import org.mapdb.DataOutput2;
+import org.mapdb.Serializer;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+
+/**
+ * A compact MapDB serializer for {@link DataEntityHistoryEntry} objects, used by {@link IncrementalCrawlingHistory}. An entry will be stored as a packed record:<br>
+ * <li>a flag byte
+ * <li>the content fingerprint - as packed long in the case it is a plain number (e.g. a modified date), as String otherwise
+ * <li>the last crawled time as packed long
+ * <li>the master data entity id as packed reference into a dictionary, because many entries share the same few master ids<br>
+ * <br>
+ * The data entity id is not stored, because it is the key of the map anyway. Thus, deserialized entries have no data entity id - the history sets it from the key.
+ */
+public class DataEntityHistoryEntrySerializer implements Serializer<DataEntityHistoryEntry>
+{
+
+    protected static final int FINGERPRINT_NUMERIC = 1;
+
+    protected static final int FINGERPRINT_NULL = 2;
+
+    protected static final int LAST_CRAWLED_TIME_NULL = 4;
+
+    protected static final int MASTER_ID_PRESENT = 8;
+
+
+
+    protected final Map<String, Long> m_hsMasterId2RefCache = new ConcurrentHashMap<>();
+
+    protected final Map<Long, String> m_hsRef2MasterIdCache = new ConcurrentHashMap<>();
+
+    protected final Map<String, Long> m_hsMasterId2RefPersistent;
+
+    protected final Map<Long, String> m_hsRef2MasterIdPersistent;
+
+    protected long m_lNextRef = 1;
+
+
+
+    /**
+     * Creates a new serializer
+     *
+     * @param hsMasterId2RefPersistent the persistent dictionary from master data entity ids to their references
+     * @param hsRef2MasterIdPersistent the persistent dictionary from references to the master data entity ids
+     */
+    public DataEntityHistoryEntrySerializer(Map<String, Long> hsMasterId2RefPersistent, Map<Long, String> hsRef2MasterIdPersistent)
+    {
+        m_hsMasterId2RefPersistent = hsMasterId2RefPersistent;
+        m_hsRef2MasterIdPersistent = hsRef2MasterIdPersistent;
+
+        m_hsMasterId2RefCache.putAll(hsMasterId2RefPersistent);
+        m_hsRef2MasterIdCache.putAll(hsRef2MasterIdPersistent);
+
+        // references of pruned master ids must not be reused - old entries could still point to them
+        for (Long lRef : m_hsRef2MasterIdCache.keySet())
+            m_lNextRef = Math.max(m_lNextRef, lRef + 1);
+    }
+
+
+
+    protected static boolean isPackableNumber(String strFingerprint)
+    {
+        int iLength = strFingerprint.length();
+        if(iLength == 0 || iLength > 18) return false;
+        // leading zeros would get lost
+        if(iLength > 1 && strFingerprint.charAt(0) == '0') return false;
+
+        for (int i = 0; i < iLength; i++)
+        {
+            char c = strFingerprint.charAt(i);
+            if(c < '0' || c > '9') return false;
+        }
+
+        return true;
+    }
+
+
+
+    @Override
+    public DataEntityHistoryEntry deserialize(DataInput2 in, int available) throws IOException
+    {
+        int iFlags = in.readByte();
+
+        String strFingerprint = null;
+        if((iFlags & FINGERPRINT_NUMERIC) != 0)
+            strFingerprint = String.valueOf(in.unpackLong());
+        else if((iFlags & FINGERPRINT_NULL) == 0) strFingerprint = Serializer.STRING.deserialize(in, available);
+
+        Long lLastCrawledTime = null;
+        if((iFlags & LAST_CRAWLED_TIME_NULL) == 0) lLastCrawledTime = in.unpackLong();
+
+        String strMasterId = null;
+        if((iFlags & MASTER_ID_PRESENT) != 0)
+        {
+            long lRef = in.unpackLong();
+            strMasterId = m_hsRef2MasterIdCache.get(lRef);
+            if(strMasterId == null) throw new IOException("unknown master data entity reference " + lRef);
+        }
+
+
+        return new DataEntityHistoryEntry(null, strFingerprint, strMasterId, lLastCrawledTime);
+    }
+
+
+
+    /**
+     * Gets the reference for a master data entity id. In the case the id is not known yet, a new reference will be created and stored persistently. Must be invoked
+     * before an entry with this master id will be serialized - the serialization itself only looks up the references.
+     *
+     * @param strMasterDataEntityId the master data entity id
+     *
+     * @return the reference for this master data entity id
+     */
+    synchronized public long internMasterDataEntityId(String strMasterDataEntityId)
+    {
+        Long lRef = m_hsMasterId2RefCache.get(strMasterDataEntityId);
+        if(lRef != null) return lRef;
+
+        lRef = m_lNextRef++;
+
+        m_hsRef2MasterIdPersistent.put(lRef, strMasterDataEntityId);
+        m_hsMasterId2RefPersistent.put(strMasterDataEntityId, lRef);
+        m_hsRef2MasterIdCache.put(lRef, strMasterDataEntityId);
+        m_hsMasterId2RefCache.put(strMasterDataEntityId, lRef);
+
+        return lRef;
+    }
+
+
+
+    /**
+     * Removes all master data entity ids from the dictionary that are not inside the given set. Must only be invoked when no entry that references one of the removed
+     * ids is stored anymore, and while no other thread works with this serializer.
+     *
+     * @param sReferencedMasterIds the master data entity ids that are still referenced by stored entries
+     *
+     * @return the number of removed master data entity ids
+     */
+    synchronized public int retainMasterDataEntityIds(Set<String> sReferencedMasterIds)
+    {
+        int iRemoved = 0;
+
+        for (Map.Entry<String, Long> masterId2Ref : m_hsMasterId2RefCache.entrySet())
+        {
+            if(sReferencedMasterIds.contains(masterId2Ref.getKey())) continue;
+
+            m_hsMasterId2RefPersistent.remove(masterId2Ref.getKey());
+            m_hsRef2MasterIdPersistent.remove(masterId2Ref.getValue());
+            m_hsMasterId2RefCache.remove(masterId2Ref.getKey());
+            m_hsRef2MasterIdCache.remove(masterId2Ref.getValue());
+
+            iRemoved++;
+        }
+
+        return iRemoved;
+    }
+
+
+
+    @Override
+    public void serialize(DataOutput2 out, DataEntityHistoryEntry historyEntry) throws IOException
+    {
+        int iFlags = 0;
+
+        String strFingerprint = historyEntry.dataEntityContentFingerprint;
+        if(strFingerprint == null)
+            iFlags |= FINGERPRINT_NULL;
+        else if(isPackableNumber(strFingerprint)) iFlags |= FINGERPRINT_NUMERIC;
+
+        if(historyEntry.lastCrawledTime == null) iFlags |= LAST_CRAWLED_TIME_NULL;
+
+        Long lMasterRef = null;
+        if(historyEntry.masterDataEntityId != null)
+        {
+            lMasterRef = m_hsMasterId2RefCache.get(historyEntry.masterDataEntityId);
+            if(lMasterRef == null) throw new IllegalStateException("master data entity id was not interned: " + historyEntry.masterDataEntityId);
+            iFlags |= MASTER_ID_PRESENT;
+        }
+
+
+        out.writeByte(iFlags);
+
+        if((iFlags & FINGERPRINT_NUMERIC) != 0)
+            out.packLong(Long.parseLong(strFingerprint));
+        else if(strFingerprint != null) Serializer.STRING.serialize(out, strFingerprint);
+
+        if(historyEntry.lastCrawledTime != null) out.packLong(historyEntry.lastCrawledTime);
+
+        if(lMasterRef != null) out.packLong(lMasterRef);
+    }
+
+}
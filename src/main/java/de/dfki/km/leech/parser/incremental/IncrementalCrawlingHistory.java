@@ -20,9 +20,16 @@ package de.dfki.km.leech.parser.incremental;
 import de.dfki.inquisitor.collections.MultiValueBalancedTreeMap;
 import de.dfki.inquisitor.text.StringUtils;
 import de.dfki.km.leech.config.CrawlerContext;
+import de.dfki.km.leech.util.ValueHolder;
+import org.mapdb.DB;
+import org.mapdb.Serializer;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -34,7 +41,15 @@ import java.util.*;
  * gives the hint whether the content of the data entity has changed. This e.g. can be the modifed date of a file, or a mail header hash.<br>
  * To determine the data entities that were removed since the last crawl, IncrementalCrawlingHistory remarks the crawl starting time, and updates a 'last crawled/checked
  * time' entry for every data entity. When the crawl is finished, every data entity which 'last crawled/checked time' is before the remarked crawl starting time is
- * considered as outdated and thus as removed.<br>
+ * considered as outdated and thus as removed. This stamp is the only per crawl bookkeeping - starting a crawl is a constant time operation, also for huge
+ * histories.<br>
+ * Writes are buffered and flushed to the underlying database in batches (see {@link #setWriteBatchSize(int)} and {@link #setFlushInterval(long)}). Several writes for
+ * the same data entity inside one batch will be coalesced. All reads consider the buffered writes, and the buffer will be flushed before the history is closed.
+ * While the history is opened, a background timer flushes the buffer and commits the underlying database shortly after the flush interval, also when no further writes arrive. Thus, in the case
+ * the process dies without closing the history (a regular JVM exit closes it with a shutdown hook), only the writes of about the last flush interval are lost - these
+ * entities will be considered as new with the next crawl.<br>
+ * The entries are stored in a compact binary format (see {@link DataEntityHistoryEntrySerializer}). Histories written by older versions will be migrated
+ * automatically when they are opened the first time.<br>
  * This is an easy, intuitive, general approach that should work for almost all possible data entities. Other approaches stores e.g. parent/child relationships of data
  * entities, maintain resulting relationship lists, and infer whether an entity was deleted or not. These approaches have the advantage that you can determine, in some
  * cases, immediately by crawling a container data source whether a data entity was deleted or not, before the recursive call. Nevertheless, where this is easy in e.g.
@@ -52,7 +67,14 @@ import java.util.*;
  * leech.parse(new File("resource"), new PrintlnContentHandler(metadata), crawlerContext.createParseContext());<br>
  * </code> <br>
  * Make sure that you always use the according history for a specific crawling source - this is a 1:1 relationship, you can't mix. Otherwise, all new stuff will be
- * considered as new, and all old stuff as deleted.
+ * considered as new, and all old stuff as deleted.<br>
+ * <br>
+ * Concurrency: the history can be shared by several crawling threads (see {@link CrawlerContext#setParallelism(int)}). All operations on a single data entity are
+ * atomic - they are guarded by a lock that is chosen by the data entity id out of a fixed set of striped locks, thus threads working on different entities rarely
+ * block each other. For the typical 'check, then add or update' sequence, use {@link #checkAndUpdateDataEntity(String, String, String)}, which performs the check
+ * and the according update as one atomic step. Invoking {@link #exists(String)} and {@link #addDataEntity(String, String)} one after another is not atomic - another
+ * thread could add the same entity in between. The lifecycle methods ({@link #crawlStarted()}, {@link #crawlFinished()}, {@link #openDBStuff()} and
+ * {@link #closeDBStuff()}) must not be invoked while other threads are still working on the history.
  *
  * @author Christian Reuschling, Dipl.Ing.(BA)
  */
@@ -65,15 +87,25 @@ public class IncrementalCrawlingHistory
     static public final String dataEntityId = "dataEntityId";
     static public final String masterDataEntityId = "masterDataEntityId";
     protected final String m_strHistoryPath;
-    protected Long m_lCrawlStartingTime = null;
+    protected volatile Long m_lCrawlStartingTime = null;
+    protected long m_lFlushInterval = 10000;
+    protected volatile long m_lLastFlushTime = System.currentTimeMillis();
+    protected final Object[] m_stripedLocks = new Object[64];
+    protected int m_iWriteBatchSize = 10000;
+    protected final Map<String, DataEntityHistoryEntry> m_hsPendingWrites = new ConcurrentHashMap<>();
+    protected DataEntityHistoryEntrySerializer m_historyEntrySerializer;
+    protected ScheduledExecutorService m_flushTimer;
     Map<String, DataEntityHistoryEntry> m_hsDataEntityId2HistoryEntry;
+    Map<String, String> m_hsHost2RobotsTxt;
     MultiValueBalancedTreeMap<String, String> m_hsMasterDataEntityId2DataEntityIds;
-    Set<String> m_sDataEntityIdsNotProcessed;
 
     public IncrementalCrawlingHistory(String strHistoryPath)
     {
         m_strHistoryPath = strHistoryPath + "/mapDB";
 
+        for (int i = 0; i < m_stripedLocks.length; i++)
+            m_stripedLocks[i] = new Object();
+
 
         Runtime.getRuntime().addShutdownHook(new Thread("IncrementalCrawlingHistory shutdown hook for " + strHistoryPath)
         {
@@ -114,66 +146,173 @@ public class IncrementalCrawlingHistory
     public void addDataEntity(String strDataEntityId, String strDataEntityContentFingerprint, String strMasterDataEntityId)
     {
 
-        DataEntityHistoryEntry historyEntry = new DataEntityHistoryEntry(strDataEntityId, strDataEntityContentFingerprint, strMasterDataEntityId, System.currentTimeMillis());
+        synchronized (getLock(strDataEntityId))
+        {
+            putEntry(new DataEntityHistoryEntry(strDataEntityId, strDataEntityContentFingerprint, strMasterDataEntityId, System.currentTimeMillis()));
+        }
 
-        m_hsDataEntityId2HistoryEntry.put(strDataEntityId, historyEntry);
+        addSlave(strMasterDataEntityId, strDataEntityId);
+    }
 
-        if (StringUtils.notNullOrWhitespace(strMasterDataEntityId))
-            m_hsMasterDataEntityId2DataEntityIds.add(strMasterDataEntityId, strDataEntityId);
+    /**
+     * Remarks a data entity as slave of a master data entity
+     *
+     * @param strMasterDataEntityId the master data entity id. Nothing happens in the case it is null or empty
+     * @param strDataEntityId       the slave data entity id
+     */
+    protected void addSlave(String strMasterDataEntityId, String strDataEntityId)
+    {
+        if (StringUtils.nullOrWhitespace(strMasterDataEntityId))
+            return;
 
-        m_sDataEntityIdsNotProcessed.remove(strDataEntityId);
+        MultiValueBalancedTreeMap<String, String> hsMasterDataEntityId2DataEntityIds = m_hsMasterDataEntityId2DataEntityIds;
+        synchronized (hsMasterDataEntityId2DataEntityIds)
+        {
+            hsMasterDataEntityId2DataEntityIds.add(strMasterDataEntityId, strDataEntityId);
+        }
     }
 
-    public void closeDBStuff()
+    /**
+     * Checks whether a data entity is new, modified, unmodified or was already processed during this crawl, and performs the according update of the history, as
+     * one atomic step:
+     * <li>NEW: the entity will be added
+     * <li>MODIFIED: the entity will be updated with the new content fingerprint
+     * <li>UNMODIFIED: the 'last crawled/checked time' of the entity (and of its slaves) will be updated
+     * <li>PROCESSED: the entity was processed during this crawl yet (a cycle or double entry). Nothing will be updated<br>
+     * Thus, in the case several threads check the same entity at the same time, exactly one of them gets NEW, MODIFIED or UNMODIFIED, all others get PROCESSED.
+     *
+     * @param strDataEntityId                 an identifier for a data entity that is independent from the content of this entity (e.g. a filename)
+     * @param strDataEntityContentFingerprint some fingerprint/identifier that gives the hint whether the content of the data entity has changed, e.g. the modifed date of
+     *                                        a file
+     * @param strMasterDataEntityId           optional: the master data entity id, see {@link #addDataEntity(String, String, String)}. Can be null
+     * @return the state of the data entity, before the update
+     */
+    public DataEntityState checkAndUpdateDataEntity(String strDataEntityId, String strDataEntityContentFingerprint, String strMasterDataEntityId)
     {
+        return checkAndUpdateDataEntity(strDataEntityId, strDataEntityContentFingerprint, strMasterDataEntityId, null);
+    }
+
+    /**
+     * Same as {@link #checkAndUpdateDataEntity(String, String, String)}, but additionally hands out the content fingerprint the entity had before the update. This is
+     * for crawlers that store some state inside the fingerprint of a container entity, and need the former state to determine what has changed inside the
+     * container (e.g. the UIDNEXT of an imap folder).<br>
+     * In the case the entity is UNMODIFIED and a master data entity id is given that differs from the stored one, the new master will be remarked. Thus, entities
+     * that were added without master can be associated to one during a later crawl.
+     *
+     * @param strDataEntityId                 an identifier for a data entity that is independent from the content of this entity (e.g. a filename)
+     * @param strDataEntityContentFingerprint some fingerprint/identifier that gives the hint whether the content of the data entity has changed, e.g. the modifed date of
+     *                                        a file
+     * @param strMasterDataEntityId           optional: the master data entity id, see {@link #addDataEntity(String, String, String)}. Can be null
+     * @param formerFingerprint               optional: will be filled with the content fingerprint stored before the update, null in the case the entity is NEW. Can be
+     *                                        null
+     * @return the state of the data entity, before the update
+     */
+    public DataEntityState checkAndUpdateDataEntity(String strDataEntityId, String strDataEntityContentFingerprint, String strMasterDataEntityId,
+            ValueHolder<String> formerFingerprint)
+    {
+        // without an id, we can't remark anything
+        if (StringUtils.nullOrWhitespace(strDataEntityId))
+            return DataEntityState.NEW;
+
+
+        DataEntityState state;
+        boolean bNewMaster = false;
 
-        if (m_sDataEntityIdsNotProcessed != null)
-            m_sDataEntityIdsNotProcessed.clear();
+        synchronized (getLock(strDataEntityId))
+        {
+            DataEntityHistoryEntry historyEntry = getEntry(strDataEntityId);
+
+            if (formerFingerprint != null)
+                formerFingerprint.setValue(historyEntry == null ? null : historyEntry.dataEntityContentFingerprint);
+
+            if (historyEntry == null)
+                state = DataEntityState.NEW;
+            else if (historyEntry.lastCrawledTime >= m_lCrawlStartingTime)
+                return DataEntityState.PROCESSED;
+            else if (Objects.equals(historyEntry.dataEntityContentFingerprint, strDataEntityContentFingerprint))
+                state = DataEntityState.UNMODIFIED;
+            else
+                state = DataEntityState.MODIFIED;
+
+
+            if (state == DataEntityState.UNMODIFIED)
+            {
+                String strMasterDataEntityId2Store = historyEntry.masterDataEntityId;
+                if (!StringUtils.nullOrWhitespace(strMasterDataEntityId) && !strMasterDataEntityId.equals(strMasterDataEntityId2Store))
+                {
+                    strMasterDataEntityId2Store = strMasterDataEntityId;
+                    bNewMaster = true;
+                }
+
+                putEntry(new DataEntityHistoryEntry(strDataEntityId, historyEntry.dataEntityContentFingerprint, strMasterDataEntityId2Store,
+                        System.currentTimeMillis()));
+            }
+            else
+                putEntry(new DataEntityHistoryEntry(strDataEntityId, strDataEntityContentFingerprint, strMasterDataEntityId, System.currentTimeMillis()));
+        }
+
+
+        // outside the entity lock - the slaves have their own locks
+        if (state == DataEntityState.UNMODIFIED)
+            updateSlavesLastCrawledTime(strDataEntityId, System.currentTimeMillis());
+        if (state != DataEntityState.UNMODIFIED || bNewMaster)
+            addSlave(strMasterDataEntityId, strDataEntityId);
+
+        return state;
+    }
+
+    synchronized public void closeDBStuff()
+    {
 
         if (m_hsMasterDataEntityId2DataEntityIds != null)
         {
+            stopFlushTimer();
+
+            flush();
+
             m_hsMasterDataEntityId2DataEntityIds.getInternalMapDB().close();
 
             m_hsMasterDataEntityId2DataEntityIds = null;
             m_hsDataEntityId2HistoryEntry = null;
-            m_sDataEntityIdsNotProcessed = null;
+            m_hsHost2RobotsTxt = null;
+            m_historyEntrySerializer = null;
         }
     }
 
     /**
      * Returns all DataEntityIds with a 'last crawled/checked time' before the 'crawl starting time' as outdated data entities. These are all entities that didn't
      * exist in this crawl anymore, and thus can be considered as removed.<br>
-     * You can only invoke and walk to the iterator once - the outdated entries inside the history will be deleted. In the case you invoke this method
-     * twice, the second invocation will result into an empty list. This is to ensure that also huge deleted entity lists can be handled without problematic memory
-     * consumption.<br>
-     * Remark: The database instance for the underlying MapDB database will be closed when you walk the iterator to the end. All data will be committed before.
+     * The outdated entries are determined lazily, with a single sweep over the history while you walk the iterator - nothing will be collected in advance. Each
+     * entry will be deleted from the history as soon as it was returned by {@link Iterator#next()}. Thus, in the case you invoke this method twice, the second
+     * invocation only returns the entries that were not walked by the first one. Entries you don't walk (e.g. because the crawl was stopped) will remain inside the
+     * history and will be returned again after the next crawl. This is to ensure that also huge deleted entity lists can be handled without problematic memory or
+     * disk consumption.<br>
+     * Remark: The database instance for the underlying MapDB database will be closed when you walk the iterator to the end. All data will be committed before. Also
+     * the master data entity ids that are not referenced by any remaining entry will be removed from the internal master id dictionary at this point.
      *
      * @return all DataEntityIds with a 'last crawled/checked time' before the 'crawl starting time', thus all entities that can be considered as removed.
      */
-    public Iterator<String> crawlFinished()
+    synchronized public Iterator<String> crawlFinished()
     {
-        //ich lösche schon mal die nicht mehr benötigten aus der History, damit wir ein sauberes System haben
-        for (String strRemovedId : m_sDataEntityIdsNotProcessed)
-            m_hsDataEntityId2HistoryEntry.remove(strRemovedId);
+        flush();
 
         return new CrawlFinishedIterator();
     }
 
     /**
-     * Informs the history that a new crawl has started. The history will save the current time as 'crawl starting time'. <br>
+     * Informs the history that a new crawl has started. The history will save the current time as 'crawl starting time'. This is a constant time operation,
+     * independent from the history size.<br>
      * Remark: The database instance for the underlying MapDB database will be opened if necessary
      */
-    public void crawlStarted()
+    synchronized public void crawlStarted()
     {
 
         openDBStuff();
 
 
-        // wir merken uns die aktuelle crawlStartingTime - diese wird gebraucht um zu ermitteln ob ein item schon in diesem Lauf processed wurde (Zykel)
+        // wir merken uns die aktuelle crawlStartingTime - damit ermitteln wir, ob ein item schon in diesem Lauf processed wurde (Zykel), und am Schluß,
+        // welche items gelöscht wurden. Die Einträge selbst fassen wir hier nicht an
         m_lCrawlStartingTime = System.currentTimeMillis();
-
-        // wir schreiben initial alle dataEntityIds aus der History in unser set - die werden dann im Laufe des crawls wieder ausgetragen, übrig bleiben die gelöschten
-        m_sDataEntityIdsNotProcessed.addAll(m_hsDataEntityId2HistoryEntry.keySet());
     }
 
     /**
@@ -190,13 +329,16 @@ public class IncrementalCrawlingHistory
     public Exist exists(String strDataEntityId) throws IOException
     {
 
-        Long lDataEntityLastCrawledTime = getDataEntityLastCrawledTime(strDataEntityId);
+        if (StringUtils.nullOrWhitespace(strDataEntityId))
+            return Exist.NOT;
 
 
-        if (lDataEntityLastCrawledTime == null)
+        DataEntityHistoryEntry historyEntry = getEntry(strDataEntityId);
+
+        if (historyEntry == null)
             return Exist.NOT;
 
-        if (lDataEntityLastCrawledTime >= m_lCrawlStartingTime)
+        if (historyEntry.lastCrawledTime >= m_lCrawlStartingTime)
             return Exist.YES_PROCESSED;
 
         return Exist.YES_UNPROCESSED;
@@ -220,11 +362,12 @@ public class IncrementalCrawlingHistory
             return false;
 
 
-        DataEntityHistoryEntry historyEntry = m_hsDataEntityId2HistoryEntry.get(strDataEntityId);
+        DataEntityHistoryEntry historyEntry = getEntry(strDataEntityId);
         if (historyEntry == null)
             return false;
 
-        if (historyEntry.dataEntityContentFingerprint.equals(strDataEntityContentFingerprint))
+        // the packed format allows entries without fingerprint
+        if (Objects.equals(historyEntry.dataEntityContentFingerprint, strDataEntityContentFingerprint))
             return true;
 
         return false;
@@ -242,7 +385,7 @@ public class IncrementalCrawlingHistory
         if (StringUtils.nullOrWhitespace(strDataEntityId))
             return null;
 
-        DataEntityHistoryEntry historyEntry = m_hsDataEntityId2HistoryEntry.get(strDataEntityId);
+        DataEntityHistoryEntry historyEntry = getEntry(strDataEntityId);
         if (historyEntry == null)
             return null;
 
@@ -263,13 +406,147 @@ public class IncrementalCrawlingHistory
             return null;
 
 
-        DataEntityHistoryEntry historyEntry = m_hsDataEntityId2HistoryEntry.get(strDataEntityId);
+        DataEntityHistoryEntry historyEntry = getEntry(strDataEntityId);
         if (historyEntry == null)
             return null;
 
         return historyEntry.lastCrawledTime;
     }
 
+    /**
+     * Writes all buffered history entries into the underlying database
+     */
+    public void flush()
+    {
+        synchronized (m_hsPendingWrites)
+        {
+            flushPendingWrites();
+        }
+    }
+
+    protected void flushPendingWrites()
+    {
+        m_lLastFlushTime = System.currentTimeMillis();
+
+        if (m_hsDataEntityId2HistoryEntry == null)
+            return;
+
+        for (Map.Entry<String, DataEntityHistoryEntry> pendingWrite : m_hsPendingWrites.entrySet())
+        {
+            m_hsDataEntityId2HistoryEntry.put(pendingWrite.getKey(), pendingWrite.getValue());
+            // only in the case it was not overwritten in the meantime
+            m_hsPendingWrites.remove(pendingWrite.getKey(), pendingWrite.getValue());
+        }
+    }
+
+    /**
+     * Gets the lock that guards all operations on a specific data entity
+     *
+     * @param strDataEntityId the id of the data entity
+     * @return the lock for this data entity
+     */
+    protected Object getLock(String strDataEntityId)
+    {
+        if (strDataEntityId == null)
+            return m_stripedLocks[0];
+
+        return m_stripedLocks[(strDataEntityId.hashCode() & 0x7fffffff) % m_stripedLocks.length];
+    }
+
+    /**
+     * Gets the history entry of a data entity, considering the buffered writes
+     *
+     * @param strDataEntityId the id of the data entity
+     * @return the history entry, null in the case there is none
+     */
+    protected DataEntityHistoryEntry getEntry(String strDataEntityId)
+    {
+        DataEntityHistoryEntry historyEntry = m_hsPendingWrites.get(strDataEntityId);
+        if (historyEntry != null)
+            return historyEntry;
+
+        historyEntry = m_hsDataEntityId2HistoryEntry.get(strDataEntityId);
+
+        // the serializer doesn't store the id - it is the key anyway
+        if (historyEntry != null)
+            historyEntry.dataEntityId = strDataEntityId;
+
+        return historyEntry;
+    }
+
+    /**
+     * Gets the maximum time buffered writes stay in memory before they will be flushed to the underlying database
+     *
+     * @return the flush interval in milliseconds
+     */
+    public long getFlushInterval()
+    {
+        return m_lFlushInterval;
+    }
+
+    /**
+     * Gets the number of buffered writes that will trigger a flush to the underlying database
+     *
+     * @return the write batch size
+     */
+    public int getWriteBatchSize()
+    {
+        return m_iWriteBatchSize;
+    }
+
+    /**
+     * Buffers a history entry write. In the case the batch size or the flush interval is reached, all buffered entries will be flushed
+     *
+     * @param historyEntry the entry to write
+     */
+    protected void putEntry(DataEntityHistoryEntry historyEntry)
+    {
+        // the serializer only looks up the master references - new ones have to be created before
+        if (historyEntry.masterDataEntityId != null)
+            m_historyEntrySerializer.internMasterDataEntityId(historyEntry.masterDataEntityId);
+
+        m_hsPendingWrites.put(historyEntry.dataEntityId, historyEntry);
+
+        if (m_hsPendingWrites.size() >= m_iWriteBatchSize || System.currentTimeMillis() - m_lLastFlushTime >= m_lFlushInterval)
+            flush();
+    }
+
+    /**
+     * Sets the maximum time buffered writes stay in memory before they will be flushed to the underlying database. The flush happens with the next write after this
+     * time, or by a background timer in the case no write arrives. This is also the durability window: in the case the process dies without closing the history, about the
+     * writes of the last time span of this length are lost. The default is 10 seconds.
+     *
+     * @param lFlushInterval the flush interval in milliseconds. 0 means that each write will be flushed immediately
+     * @return this for convenience
+     */
+    synchronized public IncrementalCrawlingHistory setFlushInterval(long lFlushInterval)
+    {
+        m_lFlushInterval = Math.max(lFlushInterval, 0);
+
+        // restart with the new interval
+        if (m_flushTimer != null)
+        {
+            stopFlushTimer();
+            startFlushTimer();
+        }
+
+        return this;
+    }
+
+    /**
+     * Sets the number of buffered writes that will trigger a flush to the underlying database. Bigger batches mean less database writes (several writes for the same
+     * data entity will be coalesced), but more memory. The default is 10000.
+     *
+     * @param iWriteBatchSize the write batch size. 1 means that each write will be flushed immediately
+     * @return this for convenience
+     */
+    public IncrementalCrawlingHistory setWriteBatchSize(int iWriteBatchSize)
+    {
+        m_iWriteBatchSize = Math.max(iWriteBatchSize, 1);
+
+        return this;
+    }
+
     /**
      * Gets the path to this history
      *
@@ -280,25 +557,143 @@ public class IncrementalCrawlingHistory
         return m_strHistoryPath;
     }
 
+    /**
+     * Gets the robots.txt file stored for a host, as stored with {@link #putRobotsTxt(String, String, long)}
+     *
+     * @param strHost the host, e.g. 'https://www.dfki.de:443'
+     * @return the fetch time together with the content of the robots.txt file, null in the case there is nothing stored for this host or the history is not opened
+     */
+    public Map.Entry<Long, String> getRobotsTxt(String strHost)
+    {
+        Map<String, String> hsHost2RobotsTxt = m_hsHost2RobotsTxt;
+        if (hsHost2RobotsTxt == null)
+            return null;
+
+        String strValue = hsHost2RobotsTxt.get(strHost);
+        if (strValue == null)
+            return null;
+
+        int iLineBreakIndex = strValue.indexOf('\n');
+
+        return new AbstractMap.SimpleImmutableEntry<>(Long.valueOf(strValue.substring(0, iLineBreakIndex)), strValue.substring(iLineBreakIndex + 1));
+    }
+
+    /**
+     * Gets whether the underlying database is opened, i.e. whether the history can be read and written
+     *
+     * @return true in the case the history is opened, false otherwise
+     */
+    synchronized public boolean isOpen()
+    {
+        return m_hsDataEntityId2HistoryEntry != null;
+    }
+
     /**
      * Creates all writer, reader, and searcher objects if necessary
      */
     @SuppressWarnings("unchecked")
-    public void openDBStuff()
+    synchronized public void openDBStuff()
     {
 
         if (m_hsMasterDataEntityId2DataEntityIds == null)
         {
             m_hsMasterDataEntityId2DataEntityIds = new MultiValueBalancedTreeMap<>(m_strHistoryPath, HashSet.class);
+            DB mapDB = m_hsMasterDataEntityId2DataEntityIds.getInternalMapDB();
+
+            m_historyEntrySerializer = new DataEntityHistoryEntrySerializer(
+                    mapDB.hashMap("masterDataEntityId2Ref", Serializer.STRING, Serializer.LONG_PACKED).createOrOpen(),
+                    mapDB.hashMap("masterDataEntityRef2Id", Serializer.LONG_PACKED, Serializer.STRING).createOrOpen());
 
-            m_hsDataEntityId2HistoryEntry =
-                    (Map<String, DataEntityHistoryEntry>) m_hsMasterDataEntityId2DataEntityIds.getInternalMapDB().hashMap("dataEntityId2HistoryEntry").createOrOpen();
+            m_hsDataEntityId2HistoryEntry = mapDB.hashMap("dataEntityId2PackedHistoryEntry", Serializer.STRING, m_historyEntrySerializer).createOrOpen();
 
-            m_sDataEntityIdsNotProcessed = (Set<String>) m_hsMasterDataEntityId2DataEntityIds.getInternalMapDB().hashSet("dataEntityIdsNotProcessed").createOrOpen();
-            m_sDataEntityIdsNotProcessed.clear();
+            // the robots.txt files of the crawled hosts, as '<fetch time>\n<content>'
+            m_hsHost2RobotsTxt = mapDB.hashMap("host2RobotsTxt", Serializer.STRING, Serializer.STRING).createOrOpen();
+
+            // histories written by older versions store the entries with the generic MapDB serialization - we migrate them once into the packed format
+            if (mapDB.exists("dataEntityId2HistoryEntry"))
+            {
+                Map<String, DataEntityHistoryEntry> hsDataEntityId2HistoryEntryOld =
+                        (Map<String, DataEntityHistoryEntry>) mapDB.hashMap("dataEntityId2HistoryEntry").open();
+
+                for (Map.Entry<String, DataEntityHistoryEntry> id2HistoryEntry : hsDataEntityId2HistoryEntryOld.entrySet())
+                {
+                    DataEntityHistoryEntry historyEntry = id2HistoryEntry.getValue();
+                    if (historyEntry.masterDataEntityId != null)
+                        m_historyEntrySerializer.internMasterDataEntityId(historyEntry.masterDataEntityId);
+
+                    m_hsDataEntityId2HistoryEntry.put(id2HistoryEntry.getKey(), historyEntry);
+                }
+
+                hsDataEntityId2HistoryEntryOld.clear();
+            }
+
+            // older versions copied all ids into this set at each crawl start - we don't need it anymore
+            if (mapDB.exists("dataEntityIdsNotProcessed"))
+                ((Set<String>) mapDB.hashSet("dataEntityIdsNotProcessed").open()).clear();
+
+            startFlushTimer();
         }
     }
 
+    /**
+     * Starts the background timer that flushes the buffered writes after the flush interval and commits the underlying database. Must be invoked while holding the
+     * lock of the history.
+     */
+    protected void startFlushTimer()
+    {
+        // in this case, each write will be flushed immediately anyway
+        if (m_flushTimer != null || m_lFlushInterval <= 0)
+            return;
+
+        m_flushTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "leech-history-flush " + m_strHistoryPath);
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long lInterval = Math.max(m_lFlushInterval / 2, 100);
+        m_flushTimer.scheduleWithFixedDelay(() -> {
+            // the lock of the history guarantees that the database won't be closed during the flush
+            synchronized (IncrementalCrawlingHistory.this)
+            {
+                if (m_hsDataEntityId2HistoryEntry != null && System.currentTimeMillis() - m_lLastFlushTime >= m_lFlushInterval)
+                {
+                    flush();
+                    m_hsMasterDataEntityId2DataEntityIds.getInternalMapDB().commit();
+                }
+            }
+        }, lInterval, lInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the background flush timer. Must be invoked while holding the lock of the history.
+     */
+    protected void stopFlushTimer()
+    {
+        if (m_flushTimer == null)
+            return;
+
+        m_flushTimer.shutdown();
+        m_flushTimer = null;
+    }
+
+    /**
+     * Stores the robots.txt file of a host, thus the next crawl has not to fetch it again as long as it is not outdated. Nothing will be stored in the case the
+     * history is not opened.
+     *
+     * @param strHost     the host, e.g. 'https://www.dfki.de:443'
+     * @param strContent  the content of the robots.txt file. An empty String in the case there is no such file
+     * @param lFetchTime  the time the file was fetched
+     */
+    public void putRobotsTxt(String strHost, String strContent, long lFetchTime)
+    {
+        Map<String, String> hsHost2RobotsTxt = m_hsHost2RobotsTxt;
+        if (hsHost2RobotsTxt == null)
+            return;
+
+        hsHost2RobotsTxt.put(strHost, lFetchTime + "\n" + strContent);
+    }
+
     /**
      * Updates a whole data entity - same as addDataEntity, but removes a former entry before storing the new one
      *
@@ -331,14 +726,33 @@ public class IncrementalCrawlingHistory
     public void updateDataEntity(String strDataEntityId, String strDataEntityContentFingerprint, String strMasterDataEntityId)
     {
 
-        DataEntityHistoryEntry historyEntry = new DataEntityHistoryEntry(strDataEntityId, strDataEntityContentFingerprint, strMasterDataEntityId, System.currentTimeMillis());
+        synchronized (getLock(strDataEntityId))
+        {
+            putEntry(new DataEntityHistoryEntry(strDataEntityId, strDataEntityContentFingerprint, strMasterDataEntityId, System.currentTimeMillis()));
+        }
+
+        addSlave(strMasterDataEntityId, strDataEntityId);
+    }
 
-        m_hsDataEntityId2HistoryEntry.put(strDataEntityId, historyEntry);
+    /**
+     * Replaces the content fingerprint of a data entity, without touching its 'last crawled/checked time'. This is for the case a fingerprint changed, whereby the
+     * content of the entity is known to be the same (e.g. a touched file with a content hash fingerprint). Thus, the entity will be recognized as unmodified during
+     * this crawl.
+     *
+     * @param strDataEntityId                 the data entity to update
+     * @param strDataEntityContentFingerprint the new content fingerprint
+     */
+    public void updateDataEntityContentFingerprint(String strDataEntityId, String strDataEntityContentFingerprint)
+    {
+        synchronized (getLock(strDataEntityId))
+        {
+            DataEntityHistoryEntry historyEntryOld = getEntry(strDataEntityId);
 
-        if (StringUtils.notNullOrWhitespace(strMasterDataEntityId))
-            m_hsMasterDataEntityId2DataEntityIds.add(strMasterDataEntityId, strDataEntityId);
+            if (historyEntryOld == null)
+                return;
 
-        m_sDataEntityIdsNotProcessed.remove(strDataEntityId);
+            putEntry(new DataEntityHistoryEntry(strDataEntityId, strDataEntityContentFingerprint, historyEntryOld.masterDataEntityId, historyEntryOld.lastCrawledTime));
+        }
     }
 
     /**
@@ -352,36 +766,55 @@ public class IncrementalCrawlingHistory
 
         long lCurrentTime = System.currentTimeMillis();
 
-        DataEntityHistoryEntry historyEntryOld = m_hsDataEntityId2HistoryEntry.get(strDataEntityId);
+        synchronized (getLock(strDataEntityId))
+        {
+            DataEntityHistoryEntry historyEntryOld = getEntry(strDataEntityId);
 
-        if (historyEntryOld == null)
-            throw new IllegalStateException("there has to be an data entry with Id " + strDataEntityId + " for updating. Nothing was found.");
+            if (historyEntryOld == null)
+                throw new IllegalStateException("there has to be an data entry with Id " + strDataEntityId + " for updating. Nothing was found.");
 
-        DataEntityHistoryEntry historyEntryNew =
-                new DataEntityHistoryEntry(strDataEntityId, historyEntryOld.dataEntityContentFingerprint, historyEntryOld.masterDataEntityId, lCurrentTime);
+            DataEntityHistoryEntry historyEntryNew =
+                    new DataEntityHistoryEntry(strDataEntityId, historyEntryOld.dataEntityContentFingerprint, historyEntryOld.masterDataEntityId, lCurrentTime);
 
-        m_hsDataEntityId2HistoryEntry.put(strDataEntityId, historyEntryNew);
+            putEntry(historyEntryNew);
+        }
 
-        m_sDataEntityIdsNotProcessed.remove(strDataEntityId);
 
+        updateSlavesLastCrawledTime(strDataEntityId, lCurrentTime);
+    }
 
+    /**
+     * Sets the 'last crawled/checked time' of all slaves of a master data entity. Each slave will be updated under its own lock, we never hold two entity locks at
+     * the same time
+     *
+     * @param strMasterDataEntityId the master data entity id
+     * @param lCurrentTime          the new 'last crawled/checked time'
+     */
+    protected void updateSlavesLastCrawledTime(String strMasterDataEntityId, long lCurrentTime)
+    {
         // wenn das Teil eine MasterDataEntity ist, dann müssen alle assoziierten Sklaven auch noch aktualisiert werden
 
-
-        Collection<String> sSlaveIds = m_hsMasterDataEntityId2DataEntityIds.get(strDataEntityId);
-        for (String strSlaveId : sSlaveIds)
+        List<String> lSlaveIds;
+        MultiValueBalancedTreeMap<String, String> hsMasterDataEntityId2DataEntityIds = m_hsMasterDataEntityId2DataEntityIds;
+        synchronized (hsMasterDataEntityId2DataEntityIds)
         {
-            DataEntityHistoryEntry historyEntryOldSlave = m_hsDataEntityId2HistoryEntry.get(strSlaveId);
+            lSlaveIds = new ArrayList<>(hsMasterDataEntityId2DataEntityIds.get(strMasterDataEntityId));
+        }
 
-            if (historyEntryOldSlave == null)
-                continue;
+        for (String strSlaveId : lSlaveIds)
+        {
+            synchronized (getLock(strSlaveId))
+            {
+                DataEntityHistoryEntry historyEntryOldSlave = getEntry(strSlaveId);
 
-            DataEntityHistoryEntry historyEntryNewSlave =
-                    new DataEntityHistoryEntry(strSlaveId, historyEntryOldSlave.dataEntityContentFingerprint, historyEntryOldSlave.masterDataEntityId, lCurrentTime);
+                if (historyEntryOldSlave == null)
+                    continue;
 
-            m_hsDataEntityId2HistoryEntry.put(strSlaveId, historyEntryNewSlave);
+                DataEntityHistoryEntry historyEntryNewSlave =
+                        new DataEntityHistoryEntry(strSlaveId, historyEntryOldSlave.dataEntityContentFingerprint, historyEntryOldSlave.masterDataEntityId, lCurrentTime);
 
-            m_sDataEntityIdsNotProcessed.remove(strSlaveId);
+                putEntry(historyEntryNewSlave);
+            }
         }
     }
 
@@ -398,41 +831,106 @@ public class IncrementalCrawlingHistory
         NOT, YES_PROCESSED, YES_UNPROCESSED
     }
 
+    /**
+     * The result of {@link #checkAndUpdateDataEntity(String, String, String)}: the data entity is NEW, MODIFIED or UNMODIFIED with respect to the last crawl, or it
+     * was PROCESSED during this crawl yet.
+     */
+    public enum DataEntityState
+    {
+        NEW, MODIFIED, UNMODIFIED, PROCESSED
+    }
+
+    /**
+     * Walks the history lazily and returns all data entity ids with a 'last crawled/checked time' before the crawl starting time. Each returned entry will be
+     * deleted from the history. When the end is reached, the underlying database will be closed.
+     */
     protected class CrawlFinishedIterator implements Iterator<String>
     {
 
-        Iterator<String> m_itDataEntityIdsNotProcessed;
+        final Map<String, DataEntityHistoryEntry> m_hsDataEntityId2HistoryEntry4Sweep;
+
+        final Iterator<Map.Entry<String, DataEntityHistoryEntry>> m_itId2HistoryEntry;
+
+        final long m_lCrawlStartingTime4Sweep;
+
+        final Set<String> m_sReferencedMasterIds = new HashSet<>();
+
+        String m_strNextRemovedId;
 
 
         protected CrawlFinishedIterator()
         {
+            m_hsDataEntityId2HistoryEntry4Sweep = m_hsDataEntityId2HistoryEntry;
+            m_lCrawlStartingTime4Sweep = m_lCrawlStartingTime == null ? Long.MIN_VALUE : m_lCrawlStartingTime;
 
-            if (m_sDataEntityIdsNotProcessed == null)
-                m_itDataEntityIdsNotProcessed = Collections.emptyIterator();
+            if (m_hsDataEntityId2HistoryEntry4Sweep == null)
+                m_itId2HistoryEntry = Collections.emptyIterator();
             else
-                m_itDataEntityIdsNotProcessed = m_sDataEntityIdsNotProcessed.iterator();
+                m_itId2HistoryEntry = m_hsDataEntityId2HistoryEntry4Sweep.entrySet().iterator();
         }
 
 
         @Override
         public boolean hasNext()
         {
+            if (m_strNextRemovedId != null)
+                return true;
+
+            // wir suchen den nächsten Eintrag, der in diesem crawl nicht mehr dabei war
+            while (m_itId2HistoryEntry.hasNext())
+            {
+                Map.Entry<String, DataEntityHistoryEntry> id2HistoryEntry = m_itId2HistoryEntry.next();
+
+                if (id2HistoryEntry.getValue().lastCrawledTime < m_lCrawlStartingTime4Sweep)
+                {
+                    m_strNextRemovedId = id2HistoryEntry.getKey();
+                    return true;
+                }
 
+                if (id2HistoryEntry.getValue().masterDataEntityId != null)
+                    m_sReferencedMasterIds.add(id2HistoryEntry.getValue().masterDataEntityId);
+            }
 
-            boolean bHasNext = m_itDataEntityIdsNotProcessed.hasNext();
+            // alle veralteten Einträge sind jetzt gelöscht - Master-Ids, auf die keiner mehr verweist, fliegen aus dem Wörterbuch
+            removeUnreferencedMasterIds();
 
             // wenn wir nichts mehr haben, machen wir die unterliegene DB zu - der crawl ist final beendet
-            if (!bHasNext)
-                closeDBStuff();
+            closeDBStuff();
 
-            return bHasNext;
+            return false;
+        }
+
+
+        protected void removeUnreferencedMasterIds()
+        {
+            synchronized (IncrementalCrawlingHistory.this)
+            {
+                // the history was closed or reopened in the meantime
+                if (m_hsDataEntityId2HistoryEntry4Sweep == null || m_hsDataEntityId2HistoryEntry4Sweep != m_hsDataEntityId2HistoryEntry)
+                    return;
+
+                for (DataEntityHistoryEntry pendingWrite : m_hsPendingWrites.values())
+                    if (pendingWrite.masterDataEntityId != null)
+                        m_sReferencedMasterIds.add(pendingWrite.masterDataEntityId);
+
+                m_historyEntrySerializer.retainMasterDataEntityIds(m_sReferencedMasterIds);
+            }
         }
 
 
         @Override
         public String next()
         {
-            return m_itDataEntityIdsNotProcessed.next();
+            if (!hasNext())
+                throw new NoSuchElementException();
+
+            String strRemovedId = m_strNextRemovedId;
+            m_strNextRemovedId = null;
+
+            // erst jetzt löschen wir den Eintrag aus der History - was nicht abgeholt wurde, bleibt für den nächsten crawl drin
+            m_hsDataEntityId2HistoryEntry4Sweep.remove(strRemovedId);
+
+            return strRemovedId;
         }
 
 
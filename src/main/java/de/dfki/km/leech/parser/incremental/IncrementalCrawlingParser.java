@@ -22,8 +22,10 @@ import de.dfki.km.leech.Leech;
 import de.dfki.km.leech.config.CrawlerContext;
 import de.dfki.km.leech.metadata.LeechMetadata;
 import de.dfki.km.leech.parser.CrawlerParser;
-import de.dfki.km.leech.parser.incremental.IncrementalCrawlingHistory.Exist;
+import de.dfki.km.leech.parser.incremental.IncrementalCrawlingHistory.DataEntityState;
+import de.dfki.km.leech.util.ScalableBloomFilter;
 import de.dfki.km.leech.util.TikaUtils;
+import de.dfki.km.leech.util.ValueHolder;
 import org.apache.tika.exception.TikaException;
 import org.apache.tika.metadata.Metadata;
 import org.apache.tika.mime.MediaType;
@@ -61,6 +63,12 @@ public class IncrementalCrawlingParser extends ParserDecorator
 
     static public final String DATA_ENTITY_MODIFICATION_STATE = "dataEntitiyModificationState";
 
+    /**
+     * For MODIFIED data entities, the content fingerprint stored inside the history before this crawl. Crawlers can use this to determine what has changed inside a
+     * container entity.
+     */
+    static public final String FORMER_DATA_ENTITY_CONTENT_FINGERPRINT = "formerDataEntityContentFingerprint";
+
     static public final String MODIFIED = "modified";
 
     static public final String NEW = "new";
@@ -77,17 +85,32 @@ public class IncrementalCrawlingParser extends ParserDecorator
 
 
 
-    protected Leech m_leech = new Leech();
+    protected Leech m_leech;
 
 
 
     public IncrementalCrawlingParser(Parser parser)
     {
-        super(parser);
+        this(parser, new Leech());
     };
 
 
 
+    /**
+     * Creates a new IncrementalCrawlingParser
+     * 
+     * @param parser the parser to decorate
+     * @param leech the Leech object whose detector will be used to determine the type of a data entity
+     */
+    public IncrementalCrawlingParser(Parser parser, Leech leech)
+    {
+        super(parser);
+
+        m_leech = leech;
+    }
+
+
+
     @Override
     public void parse(InputStream stream, ContentHandler handler, Metadata metadata, ParseContext context) throws IOException, SAXException, TikaException
     {
@@ -98,6 +121,7 @@ public class IncrementalCrawlingParser extends ParserDecorator
 
         IncrementalCrawlingHistory crawlingHistory = null;
         boolean bIsTmpHistory = false;
+        boolean bIsOwnVisitedFilter = false;
         FileLock tmpLock = null;
         FileOutputStream fosTmpLock = null;
         int iCurrentCrawlingDepth = 0;
@@ -121,7 +145,18 @@ public class IncrementalCrawlingParser extends ParserDecorator
 
             // ## die crawling history
             crawlingHistory = crawlerContext.getIncrementalCrawlingHistory();
-            if(crawlingHistory == null && crawlerContext.getDetectCycles() && iCurrentCrawlingDepth == 0)
+            if(crawlingHistory == null && crawlerContext.getDetectCycles() && crawlerContext.getDetectCyclesInMemory() && iCurrentCrawlingDepth == 0)
+            {
+                // die in diesem Crawl schon prozessierten Entities merken wir uns nur im Speicher - die sub crawls finden den Filter im ParseContext
+                if(context.get(ScalableBloomFilter.class) == null)
+                {
+                    context.set(ScalableBloomFilter.class, new ScalableBloomFilter(crawlerContext.getCycleDetectionExpectedEntityCount(),
+                            crawlerContext.getCycleDetectionFalsePositiveProbability()));
+
+                    bIsOwnVisitedFilter = true;
+                }
+            }
+            else if(crawlingHistory == null && crawlerContext.getDetectCycles() && iCurrentCrawlingDepth == 0)
             {
                 // wir erstellen eine temporäre crawlerhistory, die am Schluß des Crawls auch wieder gelöscht wird
                 File parentDir = new File(System.getProperty("java.io.tmpdir"));
@@ -147,7 +182,7 @@ public class IncrementalCrawlingParser extends ParserDecorator
             // ## content and history
 
 
-            boolean bProcessEntity = performHistoryStuff(crawlingHistory, metadata);
+            boolean bProcessEntity = performHistoryStuff(crawlingHistory, context.get(ScalableBloomFilter.class), metadata);
 
             if(bProcessEntity)
             {
@@ -188,10 +223,14 @@ public class IncrementalCrawlingParser extends ParserDecorator
 
             if(iCurrentCrawlingDepth != 0 || crawlingHistory == null) return;
 
+            // a temporary history is only for cycle detection, it will be deleted anyway. Without the removed entity check, the entries of all untouched entities
+            // simply stay inside the history. In both cases, we don't need the sweep over the history
+            if(bIsTmpHistory || !crawlerContext.getCheckForRemovedEntities()) return;
+
 
 
             Iterator<String> itRemovedDataEntitiesIDs = crawlingHistory.crawlFinished();
-            while (itRemovedDataEntitiesIDs.hasNext() && !crawlerContext.stopRequested() && crawlerContext.getCheckForRemovedEntities())
+            while (!crawlerContext.stopRequested() && itRemovedDataEntitiesIDs.hasNext())
             {
 
 
@@ -231,6 +270,8 @@ public class IncrementalCrawlingParser extends ParserDecorator
         finally
         {
 
+            if(bIsOwnVisitedFilter) context.set(ScalableBloomFilter.class, null);
+
             if(crawlingHistory != null && iCurrentCrawlingDepth == 0) crawlingHistory.closeDBStuff();
 
             if(tmpLock != null) tmpLock.release();
@@ -275,7 +316,8 @@ public class IncrementalCrawlingParser extends ParserDecorator
 
     /**
      * Performs the entries into the incremental crawling history and put the data entity modification state into the metadata object. In the case this data entity was
-     * processed during this crawl yet (when we have a cycle or double entry), the method will return false which means that it don't have to be processed again.
+     * processed during this crawl yet (when we have a cycle or double entry), the method will return false which means that it don't have to be processed again. The
+     * method is thread safe with respect to the given crawling history object.
      * 
      * @param crawlingHistory the crawling history. Can be null, in this case the data entity will be flagged as NEW in any case
      * @param metadata the metadata of the data entity. The method will put the data entity modification state into
@@ -286,64 +328,80 @@ public class IncrementalCrawlingParser extends ParserDecorator
      */
     public static boolean performHistoryStuff(IncrementalCrawlingHistory crawlingHistory, Metadata metadata) throws Exception
     {
+        return performHistoryStuff(crawlingHistory, null, metadata);
+    }
 
-        if(crawlingHistory == null)
-        {
-            metadata.set(DATA_ENTITY_MODIFICATION_STATE, NEW);
-
-            return true;
-        }
-        else
-        {
-            // wir wollen inkrementelles indexieren - war das Teil schon mal da?
 
-            String strDataEntityId = metadata.get(IncrementalCrawlingHistory.dataEntityId);
-            String strMasterDataEntityId = metadata.get(IncrementalCrawlingHistory.masterDataEntityId);
 
+    /**
+     * Performs the entries into the incremental crawling history and put the data entity modification state into the metadata object. In the case there is no
+     * history, but a filter with the data entities processed during this crawl (see {@link CrawlerContext#setDetectCyclesInMemory(Boolean)}), the filter will be used
+     * for the cycle detection. In the case this data entity was processed during this crawl yet (when we have a cycle or double entry), the method will return false
+     * which means that it don't have to be processed again. The method is thread safe with respect to the given crawling history and filter objects.
+     * 
+     * @param crawlingHistory the crawling history. Can be null
+     * @param visitedDataEntities the ids of the data entities processed during this crawl. Only considered in the case there is no crawling history, can be null. If
+     *            both are null, the data entity will be flagged as NEW in any case
+     * @param metadata the metadata of the data entity. The method will put the data entity modification state into
+     * 
+     * @return true: process the data entity (it was not processed formerly in this crawl), false otherwise (it was processed during this call, we have a circle)
+     * 
+     * @throws Exception
+     */
+    public static boolean performHistoryStuff(IncrementalCrawlingHistory crawlingHistory, ScalableBloomFilter visitedDataEntities, Metadata metadata)
+            throws Exception
+    {
 
-            Exist exist = crawlingHistory.exists(strDataEntityId);
+        if(crawlingHistory == null)
+        {
+            String strDataEntityId = metadata.get(IncrementalCrawlingHistory.dataEntityId);
 
-            // wenn wir es in diesem Crawl schon mal prozessiert haben, dann machen wir gar nix - und verfolgen auch keine Links mehr
-            // weiter. Dann haben wir einen Zykel.
-            if(exist.equals(Exist.YES_PROCESSED))
+            if(visitedDataEntities != null && strDataEntityId != null && !visitedDataEntities.add(strDataEntityId))
             {
                 metadata.set(DATA_ENTITY_MODIFICATION_STATE, PROCESSED);
-
                 return false;
             }
 
+            metadata.set(DATA_ENTITY_MODIFICATION_STATE, NEW);
 
+            return true;
+        }
+        else
+        {
+            // the check and the according update are atomic - there could be several crawling threads in the case of a parallel crawl
+            String strDataEntityId = metadata.get(IncrementalCrawlingHistory.dataEntityId);
+            String strMasterDataEntityId = metadata.get(IncrementalCrawlingHistory.masterDataEntityId);
             String strDataEntityContentFingerprint = metadata.get(IncrementalCrawlingHistory.dataEntityContentFingerprint);
 
-            if(exist.equals(Exist.NOT))
-            {
-                metadata.set(DATA_ENTITY_MODIFICATION_STATE, NEW);
-
-                crawlingHistory.addDataEntity(strDataEntityId, strDataEntityContentFingerprint, strMasterDataEntityId);
 
-                return true;
-            }
+            ValueHolder<String> formerFingerprint = new ValueHolder<>();
+            DataEntityState state =
+                    crawlingHistory.checkAndUpdateDataEntity(strDataEntityId, strDataEntityContentFingerprint, strMasterDataEntityId, formerFingerprint);
 
+            metadata.remove(FORMER_DATA_ENTITY_CONTENT_FINGERPRINT);
 
-            // es war schon mal da - hat es sich verändert?
-            boolean bExistsWithContent = crawlingHistory.existsWithContent(strDataEntityId, strDataEntityContentFingerprint);
-            if(bExistsWithContent)
+            switch (state)
             {
-                // nicht verändert - wir merken uns, daß es bei diesem crawl immer noch dabei war
-                metadata.set(DATA_ENTITY_MODIFICATION_STATE, UNMODIFIED);
-
-                crawlingHistory.updateDataEntityLastCrawledTime(strDataEntityId);
-
-                return true;
+                case NEW:
+                    metadata.set(DATA_ENTITY_MODIFICATION_STATE, NEW);
+                    return true;
+
+                case MODIFIED:
+                    metadata.set(DATA_ENTITY_MODIFICATION_STATE, MODIFIED);
+                    if(formerFingerprint.getValue() != null) metadata.set(FORMER_DATA_ENTITY_CONTENT_FINGERPRINT, formerFingerprint.getValue());
+                    return true;
+
+                case UNMODIFIED:
+                    // nicht verändert - die history hat sich gemerkt, daß es bei diesem crawl immer noch dabei war
+                    metadata.set(DATA_ENTITY_MODIFICATION_STATE, UNMODIFIED);
+                    return true;
+
+                default:
+                    // wenn wir es in diesem Crawl schon mal prozessiert haben, dann machen wir gar nix - und verfolgen auch keine Links mehr
+                    // weiter. Dann haben wir einen Zykel.
+                    metadata.set(DATA_ENTITY_MODIFICATION_STATE, PROCESSED);
+                    return false;
             }
-
-
-            // verändert
-            metadata.set(DATA_ENTITY_MODIFICATION_STATE, MODIFIED);
-
-            crawlingHistory.updateDataEntity(strDataEntityId, strDataEntityContentFingerprint, strMasterDataEntityId);
-
-            return true;
         }
 
     }
@@ -139,7 +139,9 @@ public abstract class DataSinkContentHandler extends ContentHandlerDecorator
 
         // wir entfernen die Dinge, die wir gar nicht drin haben wollen
         m_metadata.remove(IncrementalCrawlingParser.DATA_ENTITY_MODIFICATION_STATE);
+        m_metadata.remove(IncrementalCrawlingParser.FORMER_DATA_ENTITY_CONTENT_FINGERPRINT);
         m_metadata.remove(CrawlerParser.CURRENT_CRAWLING_DEPTH);
+        m_metadata.remove(LeechMetadata.detectedMediaType);
 
         // und passen auf, daß nicht noch Passwörter in einer URL stehen
         String strBadAttName = IncrementalCrawlingHistory.dataEntityId;
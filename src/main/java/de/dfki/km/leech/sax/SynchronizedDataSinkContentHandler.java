@@ -0,0 +1,111 @@
+package de.dfki.km.leech.sax;
+
+
+
+import org.apache.tika.metadata.Metadata;
+
+
+
+/**
+ * A {@link DataSinkContentHandler} that collects the content and metadata of a single data entity on its own, and forwards the final processData invocations to a
+ * wrapped, shared {@link DataSinkContentHandler}. All forwarded invocations are synchronized on the wrapped handler. This is used by Leech for parallel crawling (see
+ * CrawlerContext.setParallelism(int)): each worker gets its own instance of this class, together with its own metadata object, whereby the wrapped handler will be
+ * invoked by one thread at a time.
+ */
+public class SynchronizedDataSinkContentHandler extends DataSinkContentHandlerDecorator
+{
+
+
+
+    /**
+     * Creates a new {@link SynchronizedDataSinkContentHandler}
+     *
+     * @param wrappedDataSinkContentHandler the shared handler all data will be forwarded to
+     * @param metadata                      the metadata object given to the parser object that works with this ContentHandler
+     */
+    public SynchronizedDataSinkContentHandler(DataSinkContentHandler wrappedDataSinkContentHandler, Metadata metadata)
+    {
+        super(wrappedDataSinkContentHandler);
+
+        m_metadata = metadata;
+        m_iWriteLimit = wrappedDataSinkContentHandler.m_iWriteLimit;
+    }
+
+
+
+    @Override
+    public void crawlFinished()
+    {
+        synchronized (m_wrappedDataSinkContentHandler)
+        {
+            super.crawlFinished();
+        }
+    }
+
+
+
+    @Override
+    public void processErrorData(Metadata metadata)
+    {
+        synchronized (m_wrappedDataSinkContentHandler)
+        {
+            super.processErrorData(metadata);
+        }
+    }
+
+
+
+    @Override
+    public void processModifiedData(Metadata metadata, String strFulltext)
+    {
+        synchronized (m_wrappedDataSinkContentHandler)
+        {
+            super.processModifiedData(metadata, strFulltext);
+        }
+    }
+
+
+
+    @Override
+    public void processNewData(Metadata metadata, String strFulltext)
+    {
+        synchronized (m_wrappedDataSinkContentHandler)
+        {
+            super.processNewData(metadata, strFulltext);
+        }
+    }
+
+
+
+    @Override
+    public void processProcessedData(Metadata metadata)
+    {
+        synchronized (m_wrappedDataSinkContentHandler)
+        {
+            super.processProcessedData(metadata);
+        }
+    }
+
+
+
+    @Override
+    public void processRemovedData(Metadata metadata)
+    {
+        synchronized (m_wrappedDataSinkContentHandler)
+        {
+            super.processRemovedData(metadata);
+        }
+    }
+
+
+
+    @Override
+    public void processUnmodifiedData(Metadata metadata)
+    {
+        synchronized (m_wrappedDataSinkContentHandler)
+        {
+            super.processUnmodifiedData(metadata);
+        }
+    }
+
+}
@@ -153,7 +153,7 @@ public class CookieManager
      * @param conn a java.net.URLConnection - must NOT be open, or IOException will be thrown
      * @throws java.io.IOException Thrown if conn has already been opened.
      */
-    public void setCookies(URLConnection conn) throws IOException
+    synchronized public void setCookies(URLConnection conn) throws IOException
     {
 
         // let's determine the domain and path to retrieve the appropriate cookies
@@ -206,7 +206,7 @@ public class CookieManager
      * @param conn a java.net.URLConnection - must be open, or IOException will be thrown
      * @throws java.io.IOException Thrown if conn is not open.
      */
-    public void storeCookies(URLConnection conn) throws IOException
+    synchronized public void storeCookies(URLConnection conn) throws IOException
     {
 
         // let's determine the domain from where these cookies are being sent
@@ -0,0 +1,490 @@
+/*
+ * Leech - crawling capabilities for Apache Tika
+ *
+ * Copyright (C) 2012 DFKI GmbH, Author: Christian Reuschling
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contact us by mail: christian.reuschling@dfki.de
+ */
+
+package de.dfki.km.leech.util;
+
+
+
+import de.dfki.inquisitor.collections.MultiValueHashMap;
+import de.dfki.km.leech.config.CrawlerContext;
+import de.dfki.km.leech.parser.HtmlCrawlerParser;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+
+
+/**
+ * The frontier of a web crawl, as used by {@link HtmlCrawlerParser}. Instead of following each extracted link immediately (depth first), the links of all crawled
+ * pages will be collected here and handed out again breadth first, i.e. ordered by their crawling depth.<br>
+ * <br>
+ * There is one FIFO queue per host. With a minimum delay per host, there is at most one request to a host at a time, and the next request to this host will not
+ * start before the delay is elapsed. A host can have its own, bigger delay, e.g. the Crawl-delay of its robots.txt file (see
+ * {@link #setCrawlDelay(String, long)}). Requests to different hosts are not affected by this - they can run in parallel, up to the parallelism of the crawl (see
+ * {@link CrawlerContext#setParallelism(int)}), which is the global concurrency limit. Between the ready hosts, the frontier always hands out the entry with the
+ * lowest crawling depth.<br>
+ * <br>
+ * A url will be queued only once per frontier. The crawler that created the frontier drains it with {@link #drain()} - all other (recursive) crawler invocations
+ * only add their links with {@link #offer(List)}. The drain ends as soon as the queues are empty and no handed out entry is still in process.
+ */
+public class CrawlFrontier
+{
+
+    /**
+     * Holds the current frontier of a crawl inside the ParseContext. The slot will be created before the crawl dispatches work to other threads (see
+     * {@link de.dfki.km.leech.parser.CrawlerParser}), thus the crawler invocations never have to modify the ParseContext - they only exchange the frontier inside
+     * the slot.
+     */
+    public static class Slot
+    {
+        protected CrawlFrontier m_frontier;
+
+
+
+        /**
+         * Gets the current frontier
+         *
+         * @return the current frontier, null in the case no frontier was opened yet
+         */
+        synchronized public CrawlFrontier get()
+        {
+            return m_frontier;
+        }
+
+
+
+        /**
+         * Opens a new frontier in the case there is no open one. The calling thread will be the owner of the new frontier.
+         *
+         * @param lMinDelayPerHost the minimum delay between the starts of two requests to the same host in milliseconds
+         * @param crawlerContext   the crawler context, to consider stop requests
+         *
+         * @return the new frontier, null in the case there is an open frontier yet
+         */
+        synchronized public CrawlFrontier openIfClosed(long lMinDelayPerHost, CrawlerContext crawlerContext)
+        {
+            if(m_frontier != null && !m_frontier.isClosed()) return null;
+
+            m_frontier = new CrawlFrontier(lMinDelayPerHost, crawlerContext);
+
+            return m_frontier;
+        }
+    }
+
+
+
+    /**
+     * A queued sub data entity
+     */
+    protected static class Entry implements Comparable<Entry>
+    {
+        protected final CrawlFrontier m_frontier;
+
+        protected final int m_iCrawlingDepth;
+
+        protected final long m_lSequenceNumber;
+
+        protected final String m_strHost;
+
+        protected final MultiValueHashMap<String, Object> m_subDataEntityInfo;
+
+
+
+        protected Entry(CrawlFrontier frontier, MultiValueHashMap<String, Object> subDataEntityInfo, String strHost, int iCrawlingDepth, long lSequenceNumber)
+        {
+            m_frontier = frontier;
+            m_subDataEntityInfo = subDataEntityInfo;
+            m_strHost = strHost;
+            m_iCrawlingDepth = iCrawlingDepth;
+            m_lSequenceNumber = lSequenceNumber;
+        }
+
+
+
+        @Override
+        public int compareTo(Entry other)
+        {
+            if(m_iCrawlingDepth != other.m_iCrawlingDepth) return Integer.compare(m_iCrawlingDepth, other.m_iCrawlingDepth);
+
+            return Long.compare(m_lSequenceNumber, other.m_lSequenceNumber);
+        }
+    }
+
+
+
+    /**
+     * The queue and the politeness state of a single host
+     */
+    protected static class HostQueue
+    {
+        protected boolean m_bBusy = false;
+
+        protected long m_lNextFetchTime = 0;
+
+        protected final PriorityQueue<Entry> m_queue = new PriorityQueue<>();
+    }
+
+
+
+    /**
+     * The key inside the sub data entity information that holds the crawling depth of the entity, i.e. the depth of its container + 1
+     */
+    public static final String CRAWLING_DEPTH = "frontierCrawlingDepth";
+
+    /**
+     * The key inside the sub data entity information that holds the url of the entity, as String
+     */
+    public static final String URL = "frontierUrl";
+
+    protected static final String ENTRY = "frontierEntry";
+
+    protected static final long MAX_WAIT = 500;
+
+
+
+    protected boolean m_bClosed = false;
+
+    protected boolean m_bDrainStarted = false;
+
+    protected final CrawlerContext m_crawlerContext;
+
+    protected final Map<String, Long> m_hsHost2CrawlDelay = new HashMap<>();
+
+    protected final Map<String, HostQueue> m_hsHost2Queue = new HashMap<>();
+
+    protected Set<String> m_hsSeenUrls = new HashSet<>();
+
+    protected int m_iInProcess = 0;
+
+    protected int m_iQueued = 0;
+
+    protected final long m_lMinDelayPerHost;
+
+    protected long m_lSequenceNumber = 0;
+
+    protected final Thread m_ownerThread = Thread.currentThread();
+
+
+
+    /**
+     * Creates a new frontier. The calling thread is the owner of the frontier, i.e. the thread that will drain it with {@link #drain()}
+     *
+     * @param lMinDelayPerHost the minimum delay between the starts of two requests to the same host in milliseconds. 0 means no delay - in this case, there can also
+     *                         be several requests to the same host at a time
+     * @param crawlerContext   the crawler context, to consider stop requests
+     */
+    public CrawlFrontier(long lMinDelayPerHost, CrawlerContext crawlerContext)
+    {
+        m_lMinDelayPerHost = Math.max(lMinDelayPerHost, 0);
+        m_crawlerContext = crawlerContext;
+    }
+
+
+
+    protected static String getHost(String strUrl)
+    {
+        try
+        {
+            String strHost = new URL(strUrl).getHost();
+
+            return strHost == null ? "" : strHost.toLowerCase();
+        }
+        catch (Exception e)
+        {
+            return "";
+        }
+    }
+
+
+
+    /**
+     * Closes the frontier. Entries offered afterwards will be rejected, all queued entries will be dropped.
+     */
+    synchronized public void close()
+    {
+        m_bClosed = true;
+        m_hsHost2Queue.clear();
+        m_hsHost2CrawlDelay.clear();
+        m_hsSeenUrls = new HashSet<>();
+        m_iQueued = 0;
+
+        notifyAll();
+    }
+
+
+
+    /**
+     * Gets an iterator that hands out the queued entries. {@link Iterator#hasNext()} blocks until the next entry is ready, i.e. its host is not busy and the delay for
+     * its host is elapsed. It returns false as soon as the frontier is empty and all handed out entries are processed, or a stop was requested. The processing of each
+     * handed out entry must be embraced with {@link #fetchStarted(MultiValueHashMap)} and {@link #fetchFinished(MultiValueHashMap)}. The frontier will be closed at
+     * the end.
+     *
+     * @return the iterator over the queued entries
+     */
+    public Iterator<MultiValueHashMap<String, Object>> drain()
+    {
+        return new Iterator<MultiValueHashMap<String, Object>>()
+        {
+            Entry m_next;
+
+
+
+            @Override
+            public boolean hasNext()
+            {
+                synchronized (CrawlFrontier.this)
+                {
+                    try
+                    {
+                        while (m_next == null)
+                        {
+                            if(m_bClosed || m_crawlerContext.stopRequested()) return false;
+
+                            long lNow = System.currentTimeMillis();
+                            long lWait = MAX_WAIT;
+
+                            Entry nextEntry = null;
+                            HostQueue nextHostQueue = null;
+                            for (Iterator<HostQueue> itQueues = m_hsHost2Queue.values().iterator(); itQueues.hasNext(); )
+                            {
+                                HostQueue hostQueue = itQueues.next();
+
+                                if(hostQueue.m_queue.isEmpty())
+                                {
+                                    // the politeness state is only needed as long as the delay is not elapsed
+                                    if(!hostQueue.m_bBusy && hostQueue.m_lNextFetchTime <= lNow) itQueues.remove();
+                                    continue;
+                                }
+                                if(hostQueue.m_bBusy) continue;
+                                if(hostQueue.m_lNextFetchTime > lNow)
+                                {
+                                    lWait = Math.min(lWait, hostQueue.m_lNextFetchTime - lNow);
+                                    continue;
+                                }
+
+                                if(nextEntry == null || hostQueue.m_queue.peek().compareTo(nextEntry) < 0)
+                                {
+                                    nextEntry = hostQueue.m_queue.peek();
+                                    nextHostQueue = hostQueue;
+                                }
+                            }
+
+
+                            if(nextEntry != null)
+                            {
+                                nextHostQueue.m_queue.poll();
+                                m_iQueued--;
+                                m_iInProcess++;
+
+                                long lMinDelay = getMinDelay(nextEntry.m_strHost);
+                                if(lMinDelay > 0)
+                                {
+                                    nextHostQueue.m_bBusy = true;
+                                    nextHostQueue.m_lNextFetchTime = lNow + lMinDelay;
+                                }
+
+                                m_next = nextEntry;
+                            }
+                            else if(m_iQueued == 0 && m_iInProcess == 0)
+                            {
+                                close();
+                                return false;
+                            }
+                            else
+                                CrawlFrontier.this.wait(Math.max(lWait, 1));
+                        }
+
+                        return true;
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+            }
+
+
+
+            @Override
+            public MultiValueHashMap<String, Object> next()
+            {
+                if(!hasNext()) throw new NoSuchElementException();
+
+                synchronized (CrawlFrontier.this)
+                {
+                    MultiValueHashMap<String, Object> subDataEntityInfo = m_next.m_subDataEntityInfo;
+                    m_next = null;
+
+                    return subDataEntityInfo;
+                }
+            }
+        };
+    }
+
+
+
+    /**
+     * Marks a handed out entry as finished. Its host is free for the next request afterwards.
+     *
+     * @param subDataEntityInfo the entry, as handed out by {@link #drain()}
+     */
+    synchronized public void fetchFinished(MultiValueHashMap<String, Object> subDataEntityInfo)
+    {
+        Entry entry = (Entry) subDataEntityInfo.getFirst(ENTRY);
+        if(entry == null || entry.m_frontier != this) return;
+
+        m_iInProcess--;
+
+        HostQueue hostQueue = m_hsHost2Queue.get(entry.m_strHost);
+        if(hostQueue != null) hostQueue.m_bBusy = false;
+
+        notifyAll();
+    }
+
+
+
+    /**
+     * Marks a handed out entry as started, i.e. the request will be sent now. The delay for the host of the entry starts at this point in time, not at the time the
+     * entry was handed out - a task can wait for a free worker for a while.
+     *
+     * @param subDataEntityInfo the entry, as handed out by {@link #drain()}
+     */
+    synchronized public void fetchStarted(MultiValueHashMap<String, Object> subDataEntityInfo)
+    {
+        Entry entry = (Entry) subDataEntityInfo.getFirst(ENTRY);
+        if(entry == null || entry.m_frontier != this) return;
+
+        long lMinDelay = getMinDelay(entry.m_strHost);
+        if(lMinDelay <= 0) return;
+
+        HostQueue hostQueue = m_hsHost2Queue.get(entry.m_strHost);
+        if(hostQueue != null) hostQueue.m_lNextFetchTime = System.currentTimeMillis() + lMinDelay;
+    }
+
+
+
+    /**
+     * Gets the minimum delay between two requests to a host, i.e. the maximum of the general minimum delay and the crawl delay of this host
+     *
+     * @param strHost the host
+     *
+     * @return the minimum delay in milliseconds
+     */
+    synchronized protected long getMinDelay(String strHost)
+    {
+        Long lCrawlDelay = m_hsHost2CrawlDelay.get(strHost);
+
+        return lCrawlDelay == null ? m_lMinDelayPerHost : Math.max(m_lMinDelayPerHost, lCrawlDelay);
+    }
+
+
+
+    /**
+     * Gets whether the frontier is closed, i.e. whether it was already drained completely.
+     *
+     * @return true in the case the frontier is closed, false otherwise
+     */
+    synchronized public boolean isClosed()
+    {
+        return m_bClosed;
+    }
+
+
+
+    /**
+     * Marks an url as already queued, e.g. the url of the start page of the crawl. Entries with this url will be ignored afterwards
+     *
+     * @param strUrl the url
+     */
+    synchronized public void markSeen(String strUrl)
+    {
+        if(!m_bClosed) m_hsSeenUrls.add(strUrl);
+    }
+
+
+
+    /**
+     * Adds sub data entities to the frontier. Each entry must contain its url ({@link #URL}) and crawling depth ({@link #CRAWLING_DEPTH}). Urls that were queued
+     * already will be ignored. Either all or no entries will be added.
+     *
+     * @param llSubDataEntityInfos the entries to add
+     *
+     * @return false in the case the frontier is closed already, and thus the entries were not added. true otherwise
+     */
+    synchronized public boolean offer(List<MultiValueHashMap<String, Object>> llSubDataEntityInfos)
+    {
+        if(m_bClosed) return false;
+
+        for (MultiValueHashMap<String, Object> subDataEntityInfo : llSubDataEntityInfos)
+        {
+            String strUrl = (String) subDataEntityInfo.getFirst(URL);
+            if(strUrl == null || !m_hsSeenUrls.add(strUrl)) continue;
+
+            String strHost = getHost(strUrl);
+            Entry entry = new Entry(this, subDataEntityInfo, strHost, (Integer) subDataEntityInfo.getFirst(CRAWLING_DEPTH), m_lSequenceNumber++);
+            subDataEntityInfo.add(ENTRY, entry);
+
+            m_hsHost2Queue.computeIfAbsent(strHost, strKey -> new HostQueue()).m_queue.add(entry);
+            m_iQueued++;
+        }
+
+        notifyAll();
+
+        return true;
+    }
+
+
+
+    /**
+     * Sets a crawl delay for the host of an url, e.g. out of its robots.txt file. The bigger one of this delay and the general minimum delay will be used for this host.
+     *
+     * @param strUrl      an url on the host
+     * @param lCrawlDelay the crawl delay in milliseconds
+     */
+    synchronized public void setCrawlDelay(String strUrl, long lCrawlDelay)
+    {
+        String strHost = getHost(strUrl);
+
+        if(lCrawlDelay > 0) m_hsHost2CrawlDelay.put(strHost, lCrawlDelay);
+        else m_hsHost2CrawlDelay.remove(strHost);
+    }
+
+
+
+    /**
+     * Marks the start of the drain. Returns true only once, and only for the thread that created the frontier - this is the crawler invocation that has to drain
+     * it. All other crawler invocations only offer their entries.
+     *
+     * @return true in the case the calling thread has to drain the frontier, false otherwise
+     */
+    synchronized public boolean startDrain()
+    {
+        if(m_bDrainStarted || m_bClosed || Thread.currentThread() != m_ownerThread) return false;
+
+        m_bDrainStarted = true;
+
+        return true;
+    }
+
+}
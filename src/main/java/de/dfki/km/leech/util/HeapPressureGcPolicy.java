@@ -0,0 +1,222 @@
+/*
+ * Leech - crawling capabilities for Apache Tika
+ *
+ * Copyright (C) 2012 DFKI GmbH, Author: Christian Reuschling
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contact us by mail: christian.reuschling@dfki.de
+ */
+
+package de.dfki.km.leech.util;
+
+
+
+import de.dfki.km.leech.config.CrawlerContext;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+
+/**
+ * An opt-in policy that triggers a garbage collection during a crawl only in the case the heap is really under pressure, as configured with
+ * {@link CrawlerContext#setHeapPressureGcPolicy(HeapPressureGcPolicy)}. Every 'checkInterval' processed entities, the heap occupancy (used / max) will be read from
+ * the {@link MemoryMXBean}. Only in the case it exceeds the threshold, and the last triggered gc is longer ago than 'minGcInterval', System.gc() will be invoked.<br>
+ * <br>
+ * The policy counts how often it checked the heap, how often it triggered a gc and how long these took. The metrics can be read with the getters or with
+ * {@link #toString()}, e.g. after the crawl.
+ */
+public class HeapPressureGcPolicy
+{
+
+    protected final double m_dHeapOccupancyThreshold;
+
+    protected final int m_iCheckInterval;
+
+    protected final long m_lMinGcIntervalMillis;
+
+    protected final AtomicLong m_lProcessedEntities = new AtomicLong();
+
+    protected long m_lChecks = 0;
+
+    protected long m_lTriggeredGcs = 0;
+
+    protected long m_lGcMillis = 0;
+
+    protected long m_lLastGcTime = 0;
+
+    protected double m_dLastHeapOccupancy = 0;
+
+    protected final MemoryMXBean m_memoryMXBean = ManagementFactory.getMemoryMXBean();
+
+
+
+    /**
+     * Creates a new policy that checks the heap every 1000 entities, and triggers a gc at most once a minute
+     *
+     * @param dHeapOccupancyThreshold the heap occupancy (used / max, between 0 and 1) above which a gc will be triggered, e.g. 0.9
+     */
+    public HeapPressureGcPolicy(double dHeapOccupancyThreshold)
+    {
+        this(dHeapOccupancyThreshold, 1000, 60000);
+    }
+
+
+
+    /**
+     * Creates a new policy
+     *
+     * @param dHeapOccupancyThreshold the heap occupancy (used / max, between 0 and 1) above which a gc will be triggered, e.g. 0.9
+     * @param iCheckInterval          the heap will be checked every iCheckInterval processed entities
+     * @param lMinGcIntervalMillis    the minimum time between two triggered gcs. This avoids a gc storm in the case the heap stays full anyway
+     */
+    public HeapPressureGcPolicy(double dHeapOccupancyThreshold, int iCheckInterval, long lMinGcIntervalMillis)
+    {
+        m_dHeapOccupancyThreshold = dHeapOccupancyThreshold;
+        m_iCheckInterval = Math.max(iCheckInterval, 1);
+        m_lMinGcIntervalMillis = lMinGcIntervalMillis;
+    }
+
+
+
+    /**
+     * Gets the current heap occupancy, i.e. used / max. In the case the max heap size is undefined, the committed size will be used instead.
+     *
+     * @return the current heap occupancy, between 0 and 1
+     */
+    public double getCurrentHeapOccupancy()
+    {
+        MemoryUsage heapUsage = m_memoryMXBean.getHeapMemoryUsage();
+
+        long lMax = heapUsage.getMax() > 0 ? heapUsage.getMax() : heapUsage.getCommitted();
+        if(lMax <= 0) return 0;
+
+        return (double) heapUsage.getUsed() / lMax;
+    }
+
+
+
+    /**
+     * Gets how often the heap was checked
+     *
+     * @return how often the heap was checked
+     */
+    synchronized public long getCheckCount()
+    {
+        return m_lChecks;
+    }
+
+
+
+    /**
+     * Gets the overall time spent inside the triggered gcs
+     *
+     * @return the overall time spent inside the triggered gcs, in milliseconds
+     */
+    synchronized public long getGcMillis()
+    {
+        return m_lGcMillis;
+    }
+
+
+
+    /**
+     * Gets the heap occupancy measured at the last check
+     *
+     * @return the heap occupancy measured at the last check, between 0 and 1
+     */
+    synchronized public double getLastHeapOccupancy()
+    {
+        return m_dLastHeapOccupancy;
+    }
+
+
+
+    /**
+     * Gets the number of entities reported with {@link #entityProcessed()}
+     *
+     * @return the number of processed entities
+     */
+    public long getProcessedEntityCount()
+    {
+        return m_lProcessedEntities.get();
+    }
+
+
+
+    /**
+     * Gets how often a gc was triggered
+     *
+     * @return how often a gc was triggered
+     */
+    synchronized public long getTriggeredGcCount()
+    {
+        return m_lTriggeredGcs;
+    }
+
+
+
+    /**
+     * Will be invoked by the crawling parsers for each processed sub entity. Every 'checkInterval' invocations, the heap will be checked and a gc triggered in the
+     * case the heap is under pressure. Can be invoked by several threads at the same time.
+     *
+     * @return true in the case a gc was triggered, false otherwise
+     */
+    public boolean entityProcessed()
+    {
+        if(m_lProcessedEntities.incrementAndGet() % m_iCheckInterval != 0) return false;
+
+        return checkHeapPressure();
+    }
+
+
+
+    /**
+     * Checks the heap occupancy and triggers a gc in the case it exceeds the threshold and the last triggered gc is longer ago than 'minGcInterval'
+     *
+     * @return true in the case a gc was triggered, false otherwise
+     */
+    synchronized public boolean checkHeapPressure()
+    {
+        m_lChecks++;
+        m_dLastHeapOccupancy = getCurrentHeapOccupancy();
+
+        if(m_dLastHeapOccupancy < m_dHeapOccupancyThreshold) return false;
+
+        long lNow = System.currentTimeMillis();
+        if(m_lTriggeredGcs > 0 && lNow - m_lLastGcTime < m_lMinGcIntervalMillis) return false;
+
+
+        System.gc();
+
+        m_lLastGcTime = System.currentTimeMillis();
+        m_lTriggeredGcs++;
+        m_lGcMillis += m_lLastGcTime - lNow;
+
+        LoggerFactory.getLogger(HeapPressureGcPolicy.class.getName())
+                .info(String.format("Heap occupancy %.0f%% exceeded threshold %.0f%%. Triggered gc #%d (%d ms), occupancy now %.0f%%", m_dLastHeapOccupancy * 100,
+                        m_dHeapOccupancyThreshold * 100, m_lTriggeredGcs, m_lLastGcTime - lNow, getCurrentHeapOccupancy() * 100));
+
+        return true;
+    }
+
+
+
+    @Override
+    synchronized public String toString()
+    {
+        return String.format("HeapPressureGcPolicy[threshold=%.2f, processedEntities=%d, checks=%d, triggeredGcs=%d, gcMillis=%d, lastHeapOccupancy=%.2f]",
+                m_dHeapOccupancyThreshold, m_lProcessedEntities.get(), m_lChecks, m_lTriggeredGcs, m_lGcMillis, m_dLastHeapOccupancy);
+    }
+
+}
@@ -0,0 +1,247 @@
+/*
+ * Leech - crawling capabilities for Apache Tika
+ *
+ * Copyright (C) 2012 DFKI GmbH, Author: Christian Reuschling
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contact us by mail: christian.reuschling@dfki.de
+ */
+
+package de.dfki.km.leech.util;
+
+
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+
+/**
+ * An in-memory set of Strings that can grow without a known size, with a bounded false positive probability and without false negatives (scalable Bloom filter, as
+ * of Almeida et al.). It starts with one Bloom filter for the expected number of entries. As soon as this is full, a new one with twice the capacity and half the
+ * false positive probability will be appended - thus the overall false positive probability stays below the configured one, independent of the number of entries.
+ * Each entry needs about 4 bytes for a false positive probability of 1E-6, independent of its length.<br>
+ * <br>
+ * Thread safety: {@link #add(String)} is an atomic 'check and add' for a single entry - in the case several threads add the same entry at the same time, only one of
+ * them gets true as result.
+ */
+public class ScalableBloomFilter
+{
+
+    /**
+     * A single, fixed size Bloom filter of the series
+     */
+    protected static class BloomFilter
+    {
+        protected final AtomicLongArray m_bits;
+
+        protected final long m_lBitCount;
+
+        protected final long m_lCapacity;
+
+        protected final AtomicLong m_lEntryCount = new AtomicLong();
+
+        protected final int m_iHashCount;
+
+
+
+        protected BloomFilter(long lCapacity, double dFalsePositiveProbability)
+        {
+            m_lCapacity = Math.max(lCapacity, 1);
+
+            double dBitCount = -m_lCapacity * Math.log(dFalsePositiveProbability) / (Math.log(2) * Math.log(2));
+            m_lBitCount = Math.max(64, (long) Math.ceil(dBitCount / 64) * 64);
+            m_iHashCount = Math.max(1, (int) Math.round((double) m_lBitCount / m_lCapacity * Math.log(2)));
+
+            if(m_lBitCount / 64 > Integer.MAX_VALUE) throw new IllegalArgumentException("Bloom filter too big: " + m_lBitCount + " bits");
+            m_bits = new AtomicLongArray((int) (m_lBitCount / 64));
+        }
+
+
+
+        protected boolean mightContain(long lHash1, long lHash2)
+        {
+            for (int i = 0; i < m_iHashCount; i++)
+            {
+                long lBit = Math.floorMod(lHash1 + i * lHash2, m_lBitCount);
+                if((m_bits.get((int) (lBit >>> 6)) & (1L << lBit)) == 0) return false;
+            }
+
+            return true;
+        }
+
+
+
+        protected void put(long lHash1, long lHash2)
+        {
+            for (int i = 0; i < m_iHashCount; i++)
+            {
+                long lBit = Math.floorMod(lHash1 + i * lHash2, m_lBitCount);
+                long lMask = 1L << lBit;
+                int iIndex = (int) (lBit >>> 6);
+
+                long lWord = m_bits.get(iIndex);
+                while ((lWord & lMask) == 0 && !m_bits.compareAndSet(iIndex, lWord, lWord | lMask))
+                    lWord = m_bits.get(iIndex);
+            }
+
+            m_lEntryCount.incrementAndGet();
+        }
+    }
+
+
+
+    protected static long fmix64(long lHash)
+    {
+        lHash ^= lHash >>> 33;
+        lHash *= 0xff51afd7ed558ccdL;
+        lHash ^= lHash >>> 33;
+        lHash *= 0xc4ceb9fe1a85ec53L;
+        lHash ^= lHash >>> 33;
+
+        return lHash;
+    }
+
+
+
+
+
+    protected final double m_dFalsePositiveProbability;
+
+    protected final CopyOnWriteArrayList<BloomFilter> m_lFilters = new CopyOnWriteArrayList<>();
+
+    protected final Object[] m_stripedLocks = new Object[64];
+
+
+
+    /**
+     * Creates a new filter
+     *
+     * @param lExpectedEntryCount       the expected number of entries, for the size of the first Bloom filter. The set can grow beyond, it's only a hint
+     * @param dFalsePositiveProbability the maximum probability that an entry that was not added will be considered as contained, e.g. 1E-6
+     */
+    public ScalableBloomFilter(long lExpectedEntryCount, double dFalsePositiveProbability)
+    {
+        if(dFalsePositiveProbability <= 0 || dFalsePositiveProbability >= 1)
+            throw new IllegalArgumentException("the false positive probability must be between 0 and 1: " + dFalsePositiveProbability);
+
+        m_dFalsePositiveProbability = dFalsePositiveProbability;
+
+        for (int i = 0; i < m_stripedLocks.length; i++)
+            m_stripedLocks[i] = new Object();
+
+        // the probabilities of the series are p/4, p/8, p/16, ... - the sum stays below p/2, which leaves a margin for the approximations of the sizing formula
+        m_lFilters.add(new BloomFilter(lExpectedEntryCount, dFalsePositiveProbability / 4));
+    }
+
+
+
+    /**
+     * Adds an entry, in the case it is not contained yet
+     *
+     * @param strEntry the entry
+     *
+     * @return true in the case the entry was added, i.e. it was not contained before. false in the case it was contained already - or, with the configured false
+     *         positive probability, if it was not
+     */
+    public boolean add(String strEntry)
+    {
+        long lHash1 = hash(strEntry, 0);
+        long lHash2 = hash(strEntry, 0x9e3779b97f4a7c15L) | 1;
+
+        synchronized (m_stripedLocks[(int) ((lHash1 >>> 1) % m_stripedLocks.length)])
+        {
+            for (BloomFilter filter : m_lFilters)
+                if(filter.mightContain(lHash1, lHash2)) return false;
+
+            getCurrentFilter().put(lHash1, lHash2);
+
+            return true;
+        }
+    }
+
+
+
+    /**
+     * Checks whether an entry was added
+     *
+     * @param strEntry the entry
+     *
+     * @return true in the case the entry was added before - or, with the configured false positive probability, if it was not. false in the case the entry was
+     *         definitely not added
+     */
+    public boolean mightContain(String strEntry)
+    {
+        long lHash1 = hash(strEntry, 0);
+        long lHash2 = hash(strEntry, 0x9e3779b97f4a7c15L) | 1;
+
+        for (BloomFilter filter : m_lFilters)
+            if(filter.mightContain(lHash1, lHash2)) return true;
+
+        return false;
+    }
+
+
+
+    /**
+     * Gets the number of added entries
+     *
+     * @return the number of added entries
+     */
+    public long size()
+    {
+        long lSize = 0;
+        for (BloomFilter filter : m_lFilters)
+            lSize += filter.m_lEntryCount.get();
+
+        return lSize;
+    }
+
+
+
+    /**
+     * Gets the Bloom filter new entries will be added to, and appends a new one to the series in the case it is full
+     *
+     * @return the current filter
+     */
+    protected BloomFilter getCurrentFilter()
+    {
+        BloomFilter currentFilter = m_lFilters.get(m_lFilters.size() - 1);
+        if(currentFilter.m_lEntryCount.get() < currentFilter.m_lCapacity) return currentFilter;
+
+        synchronized (m_lFilters)
+        {
+            currentFilter = m_lFilters.get(m_lFilters.size() - 1);
+            if(currentFilter.m_lEntryCount.get() < currentFilter.m_lCapacity) return currentFilter;
+
+            currentFilter = new BloomFilter(currentFilter.m_lCapacity * 2, m_dFalsePositiveProbability / Math.pow(2, m_lFilters.size() + 2));
+            m_lFilters.add(currentFilter);
+
+            return currentFilter;
+        }
+    }
+
+
+
+    protected long hash(String strEntry, long lSeed)
+    {
+        // FNV-1a over the chars, with a final avalanche step
+        long lHash = 0xcbf29ce484222325L ^ lSeed;
+        for (int i = 0; i < strEntry.length(); i++)
+        {
+            lHash ^= strEntry.charAt(i);
+            lHash *= 0x100000001b3L;
+        }
+
+        return fmix64(lHash);
+    }
+
+}
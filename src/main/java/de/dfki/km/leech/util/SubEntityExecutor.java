@@ -0,0 +1,359 @@
+/*
+ * Leech - crawling capabilities for Apache Tika
+ *
+ * Copyright (C) 2012 DFKI GmbH, Author: Christian Reuschling
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contact us by mail: christian.reuschling@dfki.de
+ */
+
+package de.dfki.km.leech.util;
+
+
+
+import de.dfki.km.leech.config.CrawlerContext;
+import de.dfki.km.leech.parser.CrawlerParser;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.ContentHandler;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+
+/**
+ * A bounded pool of worker threads for processing sub data entities in parallel, as configured with {@link CrawlerContext#setParallelism(int)}. One executor will be
+ * shared by all {@link CrawlerParser} invocations of a crawl, i.e. also by the recursive calls.<br>
+ * <br>
+ * Backpressure: at most 'parallelism' tasks are in flight at the same time. A thread that is not a worker (normally the thread that started the crawl) blocks on
+ * {@link TaskGroup#execute(ContentHandler, SubEntityTask)} until a worker is free. A worker thread that dispatches sub entities of a recursive call never blocks - in the
+ * case no worker is free, the task runs inline in the dispatching thread. Thus recursive crawls (e.g. a directory inside a directory) can not deadlock.<br>
+ * <br>
+ * Optionally, the tasks can be executed inside virtual threads instead of pooled platform threads (see {@link CrawlerContext#setUseVirtualThreads(Boolean)}). This
+ * is for I/O bound crawls, e.g. of web sites or IMAP servers, where a task spends most of its time waiting for the network. In this case you can keep thousands of
+ * fetches in flight, without having thousands of OS threads. Virtual threads are available since Java 21 - on older JVMs, the executor falls back to platform
+ * threads.<br>
+ * <br>
+ * During the execution of a task, a content handler can be bound to the executing thread. {@link TikaUtils#createContentHandler4SubCrawl(CrawlerContext)} returns this
+ * handler, so all recursive calls inside the task work with the same handler and metadata object, as it is in the sequential case.
+ */
+public class SubEntityExecutor
+{
+
+    /**
+     * A task processing a single sub data entity
+     */
+    public interface SubEntityTask
+    {
+        void run() throws Exception;
+    }
+
+
+
+    /**
+     * A group of tasks dispatched by one {@link CrawlerParser} invocation. The dispatching parser waits for all tasks of its group with {@link #await()}.
+     */
+    public class TaskGroup
+    {
+
+        protected Exception m_firstFailure;
+
+        protected int m_iRunningTasks = 0;
+
+
+
+        /**
+         * Waits until all tasks of this group are finished. In the case a task failed with an exception, the first exception will be thrown after all other tasks
+         * are finished.
+         *
+         * @throws Exception the first exception thrown by a task of this group
+         */
+        public void await() throws Exception
+        {
+            synchronized (this)
+            {
+                while (m_iRunningTasks > 0)
+                    wait();
+
+                if(m_firstFailure != null) throw m_firstFailure;
+            }
+        }
+
+
+
+        /**
+         * Executes a task, either inside a worker thread or, in the case the calling thread is a worker itself and no other worker is free, inline. In the case the
+         * calling thread is not a worker, the method blocks until a worker is free.
+         *
+         * @param handler2bind the content handler that should be returned by {@link SubEntityExecutor#getBoundContentHandler()} during the execution of the task. Can be
+         *                     null
+         * @param task         the task to execute
+         *
+         * @throws Exception in the case the task was executed inline and failed, or the calling thread was interrupted while waiting for a free worker
+         */
+        public void execute(final ContentHandler handler2bind, final SubEntityTask task) throws Exception
+        {
+            if(Boolean.TRUE.equals(m_tlIsWorker.get()))
+            {
+                if(!m_semaphore.tryAcquire())
+                {
+                    runBound(handler2bind, task);
+                    return;
+                }
+            }
+            else
+                m_semaphore.acquire();
+
+
+            synchronized (this)
+            {
+                m_iRunningTasks++;
+            }
+
+            try
+            {
+                m_executor.execute(() -> {
+                    try
+                    {
+                        m_tlIsWorker.set(true);
+                        runBound(handler2bind, task);
+                    }
+                    catch (Exception e)
+                    {
+                        synchronized (TaskGroup.this)
+                        {
+                            if(m_firstFailure == null) m_firstFailure = e;
+                        }
+                    }
+                    finally
+                    {
+                        m_semaphore.release();
+                        taskFinished();
+                    }
+                });
+            }
+            catch (RuntimeException e)
+            {
+                m_semaphore.release();
+                taskFinished();
+                throw e;
+            }
+        }
+
+
+
+        /**
+         * Gets whether a task of this group failed with an exception. A dispatching parser should stop dispatching new tasks in this case.
+         *
+         * @return true in the case a task failed, false otherwise
+         */
+        synchronized public boolean hasFailed()
+        {
+            return m_firstFailure != null;
+        }
+
+
+
+        synchronized protected void taskFinished()
+        {
+            m_iRunningTasks--;
+            if(m_iRunningTasks == 0) notifyAll();
+        }
+    }
+
+
+
+
+
+    protected static final ThreadLocal<ContentHandler> m_tlBoundContentHandler = new ThreadLocal<>();
+
+    protected static final ThreadLocal<Boolean> m_tlIsWorker = new ThreadLocal<>();
+
+
+
+    /**
+     * Gets the content handler bound to the current thread by the task that is currently executed in this thread.
+     *
+     * @return the bound content handler, null in the case there is none
+     */
+    public static ContentHandler getBoundContentHandler()
+    {
+        return m_tlBoundContentHandler.get();
+    }
+
+
+
+    /**
+     * Creates a thread factory for virtual threads. Virtual threads are available since Java 21 - because we still compile against Java 17, we have to go the
+     * reflective way (Thread.ofVirtual().name(prefix, 1).factory()).
+     *
+     * @return a thread factory for virtual threads, or null in the case the current JVM does not support them
+     */
+    public static ThreadFactory createVirtualThreadFactory()
+    {
+        try
+        {
+            Object threadBuilder = Thread.class.getMethod("ofVirtual").invoke(null);
+
+            Class<?> threadBuilderClass = Class.forName("java.lang.Thread$Builder");
+            threadBuilder = threadBuilderClass.getMethod("name", String.class, long.class).invoke(threadBuilder, "Leech SubEntityExecutor virtual worker ", 1L);
+
+            return (ThreadFactory) threadBuilderClass.getMethod("factory").invoke(threadBuilder);
+        }
+        catch (ReflectiveOperationException | RuntimeException e)
+        {
+            // e.g. Java < 21, or Java 19/20 without enabled preview features
+            return null;
+        }
+    }
+
+
+
+    protected static void runBound(ContentHandler handler2bind, SubEntityTask task) throws Exception
+    {
+        ContentHandler formerlyBoundHandler = m_tlBoundContentHandler.get();
+        try
+        {
+            if(handler2bind != null) m_tlBoundContentHandler.set(handler2bind);
+
+            task.run();
+        }
+        finally
+        {
+            if(formerlyBoundHandler == null) m_tlBoundContentHandler.remove();
+            else m_tlBoundContentHandler.set(formerlyBoundHandler);
+        }
+    }
+
+
+
+
+
+    protected final Executor m_executor;
+
+    protected final int m_iParallelism;
+
+    protected final Semaphore m_semaphore;
+
+    protected final ThreadPoolExecutor m_threadPoolExecutor;
+
+    protected final boolean m_bUsesVirtualThreads;
+
+
+
+    /**
+     * Creates a new executor with the given number of pooled platform worker threads. Idle workers will be terminated after a while.
+     *
+     * @param iParallelism the maximum number of tasks that will be executed by worker threads at the same time
+     */
+    public SubEntityExecutor(int iParallelism)
+    {
+        this(iParallelism, false);
+    }
+
+
+
+    /**
+     * Creates a new executor.
+     *
+     * @param iParallelism       the maximum number of tasks that will be executed by worker threads at the same time
+     * @param bUseVirtualThreads true: each task gets its own virtual thread (if the JVM supports them, otherwise the executor falls back to pooled platform
+     *                           threads). false: the tasks will be executed by pooled platform threads. Idle workers will be terminated after a while.
+     */
+    public SubEntityExecutor(int iParallelism, boolean bUseVirtualThreads)
+    {
+        m_iParallelism = Math.max(iParallelism, 1);
+        m_semaphore = new Semaphore(m_iParallelism);
+
+
+        final ThreadFactory virtualThreadFactory = bUseVirtualThreads ? createVirtualThreadFactory() : null;
+
+        if(bUseVirtualThreads && virtualThreadFactory == null)
+            LoggerFactory.getLogger(SubEntityExecutor.class.getName())
+                    .warn("Virtual threads are not supported by this JVM (Java 21 or newer is needed). Will fall back to platform threads.");
+
+
+        m_bUsesVirtualThreads = virtualThreadFactory != null;
+
+        if(m_bUsesVirtualThreads)
+        {
+            // virtual threads are cheap - we don't pool them, each task gets its own one. The semaphore bounds the number of tasks in flight
+            m_threadPoolExecutor = null;
+            m_executor = runnable -> virtualThreadFactory.newThread(runnable).start();
+        }
+        else
+        {
+            final AtomicInteger iThreadNumber = new AtomicInteger();
+            ThreadFactory threadFactory = runnable -> {
+                Thread thread = new Thread(runnable, "Leech SubEntityExecutor worker " + iThreadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            };
+
+            // the semaphore ensures that there are never more tasks in the queue than free workers - thus a queued task will never wait for a busy worker
+            m_threadPoolExecutor =
+                    new ThreadPoolExecutor(m_iParallelism, m_iParallelism, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), threadFactory);
+            m_threadPoolExecutor.allowCoreThreadTimeOut(true);
+            m_executor = m_threadPoolExecutor;
+        }
+    }
+
+
+
+    /**
+     * Creates a new, empty task group. Each {@link CrawlerParser} invocation uses its own group to wait for its sub entities.
+     *
+     * @return the new task group
+     */
+    public TaskGroup createTaskGroup()
+    {
+        return new TaskGroup();
+    }
+
+
+
+    /**
+     * Gets the maximum number of tasks that will be executed by worker threads at the same time
+     *
+     * @return the maximum number of tasks that will be executed by worker threads at the same time
+     */
+    public int getParallelism()
+    {
+        return m_iParallelism;
+    }
+
+
+
+    /**
+     * Gets whether the tasks will be executed inside virtual threads or not
+     *
+     * @return true in the case the tasks will be executed inside virtual threads, false in the case of pooled platform threads
+     */
+    public boolean usesVirtualThreads()
+    {
+        return m_bUsesVirtualThreads;
+    }
+
+
+
+    /**
+     * Shuts down the worker threads. Already dispatched tasks will be finished.
+     */
+    public void shutdown()
+    {
+        if(m_threadPoolExecutor != null) m_threadPoolExecutor.shutdown();
+    }
+
+}
@@ -120,7 +120,8 @@ public class TikaUtils
 
     /**
      * Returns the content handler object given inside crawlerContext or creates a new handler according to the configured class (also configured
-     * inside crawlerContext)
+     * inside crawlerContext). In the case the current thread processes a sub entity during a parallel crawl, the handler bound to this thread by the
+     * {@link SubEntityExecutor} will be returned.
      *
      * @param crawlerContext the crawlerContext configuration. The method will throw an exception in the case it is null
      *
@@ -133,6 +134,10 @@ public class TikaUtils
         if(crawlerContext == null) throw new IllegalStateException("no crawlerContext was set");
 
 
+        ContentHandler boundHandler = SubEntityExecutor.getBoundContentHandler();
+        if(boundHandler != null) return boundHandler;
+
+
         ContentHandler handler2use4recursiveCall = crawlerContext.getContentHandler();
 
 